@@ -0,0 +1,11 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Example: ./batch.sh commands.jsonl
+#          generate-commands | ./batch.sh
+#          JAVA_OPTS="-Dticketmaster.batch.size=500" ./batch.sh commands.jsonl
+java $JAVA_OPTS -cp lib/*:bin/ BatchRunner $dbname $PGPORT $(logname) ${1:--}
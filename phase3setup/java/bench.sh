@@ -0,0 +1,35 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+scales=${SCALES:-"1 10"}
+results=$root/java/benchmarks/results
+PGDATA=/tmp/$(logname)/mydb/data
+
+cd $root/java
+
+# Example: ./bench.sh --seed              (re)creates one database per scale factor
+#          ./bench.sh                     runs all benchmarks at every scale factor
+#          SCALES="1" ./bench.sh Listing  runs the benchmarks matching a pattern
+# Needs the jar built by "mvn -B package" and the database started.
+if [ "$1" == "--seed" ]; then
+	for scale in $scales; do
+		db=${dbname}_sf${scale//./_}
+		echo "Seeding $db at scale $scale ..."
+		dropdb -h localhost --if-exists $db
+		createdb -h localhost $db
+		cp $root/data/*.csv $PGDATA/
+		psql -q -h localhost $db < $root/sql/create.sql
+		java -cp lib/*:bin/ SchemaMigrator $db $PGPORT $(logname) $root/sql/migrations
+		java -cp bin/ DataGenerator /tmp/$(logname)/sf$scale --scale $scale
+		java -cp lib/*:bin/ BulkLoader $db $PGPORT $(logname) /tmp/$(logname)/sf$scale
+	done
+	exit
+fi
+
+mkdir -p $results
+java -jar benchmarks/target/benchmarks.jar "${@:-.*}" \
+	-p scale=$(echo $scales | tr ' ' ',') \
+	-jvmArgsAppend "-Dticketmaster.bench.db=$dbname -Dticketmaster.bench.port=$PGPORT -Dticketmaster.bench.user=$(logname)" \
+	-prof gc \
+	-rf json -rff $results/jmh-$(date +%Y%m%d-%H%M%S).json
@@ -0,0 +1,161 @@
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import ticketmaster.bench.Driver;
+
+/**
+ * This class exposes TicketOperations to the benchmarks in
+ * ticketmaster.bench, see Driver.
+ *
+ */
+
+public class BenchmarkDriver implements Driver{
+	private Ticketmaster esql;
+	private TicketOperations ops;
+	//rows of the listings go nowhere, only producing them is measured
+	private final RowWriter sink = RowWriter.create("tsv", Writer.nullWriter());
+
+	public void open(String dbname, String port, String user, String passwd) throws SQLException {
+		esql = new Ticketmaster(dbname, port, user, passwd);
+		ops = new TicketOperations(esql);
+	}
+
+	public List<List<String>> query(String sql, Object... params) throws SQLException {
+		return esql.executeQueryAndReturnResult(sql, params);
+	}
+
+	public int update(String sql, Object... params) throws SQLException {
+		return esql.executeUpdate(sql, params);
+	}
+
+	public long readAsStrings(String sql, Object... params) throws SQLException {
+		long sum = 0;
+		for (List<String> row : esql.executeQueryAndReturnResult(sql, params)){
+			for (String cell : row){
+				//how callers read List<List<String>>: parse every cell back
+				sum += cell == null ? 0 : cell.indexOf('.') < 0 ? Long.parseLong(cell) : (long) Float.parseFloat(cell);
+			}
+		}
+		return sum;
+	}
+
+	public long readAsTable(String sql, Object... params) throws SQLException {
+		ResultTable table = esql.executeQueryAndReturnTable(sql, params);
+		long sum = 0;
+		for (int row = 0; row < table.size(); ++row){
+			for (int c = 0; c < table.columnCount(); ++c){
+				sum += (long) table.getDouble(row, c);
+			}
+		}
+		return sum;
+	}
+
+	public long readByMapper(String sql, Object... params) throws SQLException {
+		long sum = 0;
+		for (long[] row : esql.executeQueryAndMap(BenchmarkDriver::numbers, sql, params)){
+			for (long value : row){
+				sum += value;
+			}
+		}
+		return sum;
+	}
+
+	private static long[] numbers(ResultSet rs) throws SQLException {
+		long[] row = new long[rs.getMetaData().getColumnCount()];
+		for (int c = 0; c < row.length; ++c){
+			row[c] = (long) rs.getDouble(c + 1);
+		}
+		return row;
+	}
+
+	public long readByVisitor(String sql, Object... params) throws SQLException {
+		final int[] columns = {-1};
+		final long[] sum = {0};
+		esql.executeQueryAndVisit(rs -> {
+			if (columns[0] < 0){
+				columns[0] = rs.getMetaData().getColumnCount();
+			}
+			for (int c = 1; c <= columns[0]; ++c){
+				sum[0] += (long) rs.getDouble(c);
+			}
+		}, sql, params);
+		return sum[0];
+	}
+
+	public void resetCaches(){
+		ops.getSeatIndex().invalidateAll();
+	}
+
+	public long newBookingId() throws SQLException {
+		return ops.newBookingId();
+	}
+
+	public void addUser(String email, String lname, String fname, BigDecimal phone, String pwd) throws SQLException {
+		ops.addUser(email, lname, fname, phone, pwd);
+	}
+
+	public void addBooking(long bid, String status, long sid, String email, long[] ssids) throws SQLException {
+		ops.addBooking(bid, status, sid, email, ssids);
+	}
+
+	public long[] addMovieShowing(String title, String releaseDate, String country, String description, int duration,
+			String lang, String genre, String sdate, String sttime, String edtime, int tid) throws SQLException {
+		return ops.addMovieShowing(title, releaseDate, country, description, duration, lang, genre, sdate, sttime, edtime, tid);
+	}
+
+	public int cancelPendingBookings() throws SQLException {
+		return ops.cancelPendingBookings();
+	}
+
+	public void changeSeat(long bid, long oldSsid, long newSsid) throws SQLException {
+		ops.changeSeat(bid, oldSsid, newSsid);
+	}
+
+	public boolean isPaidBooking(long bid) throws SQLException {
+		return ops.isPaidBooking(bid);
+	}
+
+	public void removePayment(long bid) throws SQLException {
+		ops.removePayment(bid);
+	}
+
+	public int clearCancelledBookings() throws SQLException {
+		return ops.clearCancelledBookings();
+	}
+
+	public int removeShowsOnDate(String cinemaName, String showDate) throws SQLException {
+		return ops.removeShowsOnDate(cinemaName, showDate).shows;
+	}
+
+	public int listTheatersPlayingShow(long cid, long sid) throws SQLException {
+		return ops.listTheatersPlayingShow(cid, sid, sink);
+	}
+
+	public int listShowsStartingOnTimeAndDate(String sdate, String sttime) throws SQLException {
+		return ops.listShowsStartingOnTimeAndDate(sdate, sttime, sink);
+	}
+
+	public int listMovieTitlesContainingLoveReleasedAfter2010() throws SQLException {
+		return ops.listMovieTitlesContainingLoveReleasedAfter2010(sink);
+	}
+
+	public int listUsersWithPendingBooking() throws SQLException {
+		return ops.listUsersWithPendingBooking(sink);
+	}
+
+	public int listMovieAndShowInfoAtCinemaInDateRange(String movieTitle, String cinemaName, String date1, String date2)
+			throws SQLException {
+		return ops.listMovieAndShowInfoAtCinemaInDateRange(movieTitle, cinemaName, date1, date2, sink);
+	}
+
+	public int listBookingInfoForUser(String email) throws SQLException {
+		return ops.listBookingInfoForUser(email, sink);
+	}
+
+	public void close(){
+		esql.cleanup();
+	}
+}//end BenchmarkDriver
@@ -0,0 +1,72 @@
+package ticketmaster.bench;
+
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The database a benchmark runs against, plus a sample of existing keys to
+ * feed the operations with.
+ *
+ * Every scale factor has its own database, named after the base name with
+ * the scale appended ("alice_db_sf10"), seeded by bench.sh from
+ * DataGenerator output.  Connection settings come from system properties,
+ * falling back to the environment bench.sh runs in:
+ *
+ *   ticketmaster.bench.db     base database name, default $USER_db
+ *   ticketmaster.bench.port   default $PGPORT
+ *   ticketmaster.bench.user   default $USER
+ */
+@State(Scope.Benchmark)
+public class Database {
+	//keys sampled per table, the operations cycle through them
+	static final int SAMPLE = 1000;
+
+	@Param({"1", "10"})
+	public String scale;
+
+	Driver driver;
+	String[] emails;
+	long[][] shows;         //sid, mvid, tid, cid
+	String[][] showTimes;   //sdate, sttime, movie title, cinema name
+	String[] cinemaNames;
+
+	@Setup(Level.Trial)
+	public void connect() throws Exception {
+		String user = System.getProperty("ticketmaster.bench.user", System.getenv("USER"));
+		String db = System.getProperty("ticketmaster.bench.db", user + "_db") + "_sf" + scale.replace('.', '_');
+		String port = System.getProperty("ticketmaster.bench.port", System.getenv("PGPORT"));
+		driver = Driver.connect(db, port, user, "");
+
+		List<List<String>> rows = driver.query("SELECT email FROM Users ORDER BY email LIMIT " + SAMPLE);
+		emails = new String[rows.size()];
+		for (int i = 0; i < emails.length; ++i) {
+			emails[i] = rows.get(i).get(0);
+		}
+
+		rows = driver.query("SELECT S.sid, S.mvid, P.tid, T.cid, S.sdate, S.sttime, M.title, C.cname"
+			+ " FROM Shows S JOIN Plays P ON P.sid = S.sid JOIN Theaters T ON T.tid = P.tid"
+			+ " JOIN Cinemas C ON C.cid = T.cid JOIN Movies M ON M.mvid = S.mvid ORDER BY S.sid LIMIT " + SAMPLE);
+		shows = new long[rows.size()][];
+		showTimes = new String[rows.size()][];
+		for (int i = 0; i < shows.length; ++i) {
+			List<String> row = rows.get(i);
+			shows[i] = new long[]{Long.parseLong(row.get(0)), Long.parseLong(row.get(1)), Long.parseLong(row.get(2)),
+				Long.parseLong(row.get(3))};
+			showTimes[i] = new String[]{row.get(4), row.get(5), row.get(6), row.get(7)};
+		}
+		if (emails.length == 0 || shows.length == 0) {
+			throw new IllegalStateException("Database " + db + " has no users or shows, run bench.sh to seed it");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void disconnect() {
+		driver.close();
+	}
+}
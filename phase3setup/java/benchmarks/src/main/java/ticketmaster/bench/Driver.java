@@ -0,0 +1,86 @@
+package ticketmaster.bench;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * The operations of the Ticketmaster client as seen by the benchmarks.
+ *
+ * The client classes live in the default package, which JMH benchmarks
+ * cannot be in and named packages cannot import, so BenchmarkDriver (in the
+ * default package) implements this interface on top of TicketOperations and
+ * the benchmarks only ever see the interface.
+ */
+public interface Driver extends AutoCloseable {
+
+	/**
+	 * Connects to the given database through the client's connection pool.
+	 */
+	static Driver connect(String dbname, String port, String user, String passwd) throws Exception {
+		Driver driver = (Driver) Class.forName("BenchmarkDriver").getDeclaredConstructor().newInstance();
+		driver.open(dbname, port, user, passwd);
+		return driver;
+	}
+
+	void open(String dbname, String port, String user, String passwd) throws SQLException;
+
+	List<List<String>> query(String sql, Object... params) throws SQLException;
+
+	int update(String sql, Object... params) throws SQLException;
+
+	//the ways Ticketmaster returns query results, each reading every column of
+	//every row as a number and returning their sum
+	long readAsStrings(String sql, Object... params) throws SQLException;
+
+	long readAsTable(String sql, Object... params) throws SQLException;
+
+	long readByMapper(String sql, Object... params) throws SQLException;
+
+	long readByVisitor(String sql, Object... params) throws SQLException;
+
+	/**
+	 * Drops the client's in-memory caches, after the benchmark changed rows
+	 * behind its back.
+	 */
+	void resetCaches();
+
+	long newBookingId() throws SQLException;
+
+	void addUser(String email, String lname, String fname, BigDecimal phone, String pwd) throws SQLException;
+
+	void addBooking(long bid, String status, long sid, String email, long[] ssids) throws SQLException;
+
+	long[] addMovieShowing(String title, String releaseDate, String country, String description, int duration,
+			String lang, String genre, String sdate, String sttime, String edtime, int tid) throws SQLException;
+
+	int cancelPendingBookings() throws SQLException;
+
+	void changeSeat(long bid, long oldSsid, long newSsid) throws SQLException;
+
+	boolean isPaidBooking(long bid) throws SQLException;
+
+	void removePayment(long bid) throws SQLException;
+
+	int clearCancelledBookings() throws SQLException;
+
+	//returns the number of shows removed
+	int removeShowsOnDate(String cinemaName, String showDate) throws SQLException;
+
+	//the listings write their rows to a discarding writer and return the row count
+	int listTheatersPlayingShow(long cid, long sid) throws SQLException;
+
+	int listShowsStartingOnTimeAndDate(String sdate, String sttime) throws SQLException;
+
+	int listMovieTitlesContainingLoveReleasedAfter2010() throws SQLException;
+
+	int listUsersWithPendingBooking() throws SQLException;
+
+	int listMovieAndShowInfoAtCinemaInDateRange(String movieTitle, String cinemaName, String date1, String date2)
+			throws SQLException;
+
+	int listBookingInfoForUser(String email) throws SQLException;
+
+	@Override
+	void close();
+}
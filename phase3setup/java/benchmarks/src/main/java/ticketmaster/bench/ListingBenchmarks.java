@@ -0,0 +1,67 @@
+package ticketmaster.bench;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The read-only listings, menu options 9 to 14.  Each call picks the next
+ * show or user of the sample, so the database caches see a realistic mix
+ * rather than one hot row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ListingBenchmarks {
+	private int next;
+
+	private int pick(int size) {
+		next = (next + 1) % size;
+		return next;
+	}
+
+	@Benchmark
+	public int theatersPlayingShow(Database db) throws SQLException {//9
+		long[] show = db.shows[pick(db.shows.length)];
+		return db.driver.listTheatersPlayingShow(show[3], show[0]);
+	}
+
+	@Benchmark
+	public int showsStartingOnTimeAndDate(Database db) throws SQLException {//10
+		String[] show = db.showTimes[pick(db.showTimes.length)];
+		return db.driver.listShowsStartingOnTimeAndDate(show[0], show[1]);
+	}
+
+	@Benchmark
+	public int movieTitlesContainingLove(Database db) throws SQLException {//11
+		return db.driver.listMovieTitlesContainingLoveReleasedAfter2010();
+	}
+
+	@Benchmark
+	public int usersWithPendingBooking(Database db) throws SQLException {//12
+		return db.driver.listUsersWithPendingBooking();
+	}
+
+	@Benchmark
+	public int movieAndShowInfoAtCinema(Database db) throws SQLException {//13
+		String[] show = db.showTimes[pick(db.showTimes.length)];
+		return db.driver.listMovieAndShowInfoAtCinemaInDateRange(show[2], show[3], "2019-01-01", "2020-12-31");
+	}
+
+	@Benchmark
+	public int bookingInfoForUser(Database db) throws SQLException {//14
+		return db.driver.listBookingInfoForUser(db.emails[pick(db.emails.length)]);
+	}
+}
@@ -0,0 +1,56 @@
+package ticketmaster.bench;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The same ShowSeats rows read through each result shape of the client:
+ * List<List<String>> parsed back by the caller, the columnar ResultTable, a
+ * RowMapper and a RowVisitor.  Compare gc.alloc.rate.norm (bytes per call,
+ * from the GC profiler bench.sh runs with) divided by the row count to see
+ * the allocation per row of each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ResultBenchmarks {
+	//four BIGINT columns, one of them nullable, and a REAL
+	static final String SEATS = "SELECT ssid, sid, csid, bid, price FROM ShowSeats ORDER BY ssid LIMIT ?";
+
+	@Param({"100", "10000"})
+	public int rows;
+
+	@Benchmark
+	public long strings(Database db) throws SQLException {
+		return db.driver.readAsStrings(SEATS, rows);
+	}
+
+	@Benchmark
+	public long table(Database db) throws SQLException {
+		return db.driver.readAsTable(SEATS, rows);
+	}
+
+	@Benchmark
+	public long mapper(Database db) throws SQLException {
+		return db.driver.readByMapper(SEATS, rows);
+	}
+
+	@Benchmark
+	public long visitor(Database db) throws SQLException {
+		return db.driver.readByVisitor(SEATS, rows);
+	}
+}
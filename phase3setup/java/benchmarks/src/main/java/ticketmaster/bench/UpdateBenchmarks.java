@@ -0,0 +1,298 @@
+package ticketmaster.bench;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The operations that change data, menu options 1 to 8.  Each one has its
+ * own state that creates the rows it works on and removes them again, so a
+ * run leaves the seeded data as it found it, except that options 4 and 7
+ * also cancel and clear the seeded pending and cancelled bookings the first
+ * time they run.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UpdateBenchmarks {
+	static final String PWD = "0000000000000000000000000000000000000000000000000000000000000000";
+	//a date no seeded show is on, for the shows option 8 removes
+	static final String SCRATCH_DATE = "2099-12-31";
+	//bookings created in one go for options 4 and 7
+	static final int BATCH = 100;
+
+	static final String FREE_SEATS = "SELECT sid, ssid FROM ShowSeats WHERE bid IS NULL ORDER BY sid, ssid LIMIT ?";
+	static final String INSERT_BOOKINGS = "INSERT INTO Bookings SELECT b, ?, now(), 0, ?, ? FROM unnest(?) b";
+	static final String DELETE_BOOKINGS = "DELETE FROM Bookings WHERE bid = ANY(?)";
+	static final String RELEASE_SEATS = "UPDATE ShowSeats SET bid = NULL WHERE bid = ANY(?)";
+
+	private static long[] newBookingIds(Database db, int n) throws SQLException {
+		long[] bids = new long[n];
+		for (int i = 0; i < n; ++i) {
+			bids[i] = db.driver.newBookingId();
+		}
+		return bids;
+	}
+
+	@State(Scope.Thread)
+	public static class NewUsers {
+		final String prefix = "bench" + Long.toString(System.nanoTime(), 36) + "-";
+		int next;
+
+		@TearDown(Level.Trial)
+		public void delete(Database db) throws SQLException {
+			db.driver.update("DELETE FROM Users WHERE email LIKE ?", prefix + "%");
+		}
+	}
+
+	@Benchmark
+	public void addUser(Database db, NewUsers users) throws SQLException {//1
+		db.driver.addUser(users.prefix + users.next++ + "@example.com", "Bench", "Mark", new BigDecimal(5550100000L), PWD);
+	}
+
+	/**
+	 * Free seats, booked one per call and given back after every iteration.
+	 */
+	@State(Scope.Thread)
+	public static class FreeSeats {
+		long[] sids;
+		long[] ssids;
+		long[] bids;
+		int next;
+
+		@Setup(Level.Trial)
+		public void load(Database db) throws SQLException {
+			List<List<String>> rows = db.driver.query(FREE_SEATS, 200000);
+			sids = new long[rows.size()];
+			ssids = new long[rows.size()];
+			bids = new long[rows.size()];
+			for (int i = 0; i < sids.length; ++i) {
+				sids[i] = Long.parseLong(rows.get(i).get(0));
+				ssids[i] = Long.parseLong(rows.get(i).get(1));
+			}
+		}
+
+		@TearDown(Level.Iteration)
+		public void release(Database db) throws SQLException {
+			long[] booked = Arrays.copyOf(bids, next);
+			db.driver.update(RELEASE_SEATS, booked);
+			db.driver.update(DELETE_BOOKINGS, booked);
+			db.driver.resetCaches();
+			next = 0;
+		}
+	}
+
+	@Benchmark
+	public void addBooking(Database db, FreeSeats seats) throws SQLException {//2
+		int i = seats.next;
+		if (i == seats.sids.length) {
+			throw new IllegalStateException("Ran out of free seats, use a larger scale or shorter iterations");
+		}
+		long bid = db.driver.newBookingId();
+		db.driver.addBooking(bid, "Paid", seats.sids[i], db.emails[i % db.emails.length], new long[]{seats.ssids[i]});
+		seats.bids[i] = bid;
+		seats.next++;
+	}
+
+	@State(Scope.Thread)
+	public static class NewShowings {
+		long[] mvids = new long[1024];
+		long[] sids = new long[1024];
+		int count;
+
+		void add(long[] ids) {
+			if (count == mvids.length) {
+				mvids = Arrays.copyOf(mvids, count * 2);
+				sids = Arrays.copyOf(sids, count * 2);
+			}
+			mvids[count] = ids[0];
+			sids[count++] = ids[1];
+		}
+
+		@TearDown(Level.Trial)
+		public void delete(Database db) throws SQLException {
+			long[] shows = Arrays.copyOf(sids, count);
+			db.driver.update("DELETE FROM Plays WHERE sid = ANY(?)", shows);
+			db.driver.update("DELETE FROM Shows WHERE sid = ANY(?)", shows);
+			db.driver.update("DELETE FROM Movies WHERE mvid = ANY(?)", Arrays.copyOf(mvids, count));
+		}
+	}
+
+	@Benchmark
+	public void addMovieShowing(Database db, NewShowings showings) throws SQLException {//3
+		int tid = (int) db.shows[showings.count % db.shows.length][2];
+		showings.add(db.driver.addMovieShowing("Benchmark", "2020-01-01", "United States", "Benchmark movie", 5400, "en",
+			"Drama", "2020-06-01", "18:00", "19:30", tid));
+	}
+
+	/**
+	 * Bookings with no seats whose status is reset before every call.
+	 */
+	@State(Scope.Thread)
+	public static class StatusBookings {
+		long[] bids;
+
+		@Setup(Level.Trial)
+		public void create(Database db) throws SQLException {
+			bids = newBookingIds(db, BATCH);
+		}
+
+		void reset(Database db, String status) throws SQLException {
+			db.driver.update(DELETE_BOOKINGS, bids);
+			db.driver.update(INSERT_BOOKINGS, status, db.shows[0][0], db.emails[0], bids);
+		}
+
+		@TearDown(Level.Trial)
+		public void delete(Database db) throws SQLException {
+			db.driver.update(DELETE_BOOKINGS, bids);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class PendingBookings extends StatusBookings {
+		@Setup(Level.Invocation)
+		public void pending(Database db) throws SQLException {
+			reset(db, "Pending");
+		}
+	}
+
+	@Benchmark
+	public int cancelPendingBookings(Database db, PendingBookings bookings) throws SQLException {//4
+		return db.driver.cancelPendingBookings();
+	}
+
+	/**
+	 * A booking holding one of two free seats of the same show and price; the
+	 * calls move it back and forth between them.
+	 */
+	@State(Scope.Thread)
+	public static class SeatPair {
+		long bid;
+		long[] ssids = new long[2];
+		int held;
+
+		@Setup(Level.Trial)
+		public void book(Database db) throws SQLException {
+			List<List<String>> rows = db.driver.query("SELECT sid, MIN(ssid), MAX(ssid) FROM ShowSeats WHERE bid IS NULL"
+				+ " GROUP BY sid, price HAVING COUNT(*) >= 2 ORDER BY sid LIMIT 1");
+			long sid = Long.parseLong(rows.get(0).get(0));
+			ssids[0] = Long.parseLong(rows.get(0).get(1));
+			ssids[1] = Long.parseLong(rows.get(0).get(2));
+			bid = db.driver.newBookingId();
+			db.driver.addBooking(bid, "Paid", sid, db.emails[0], new long[]{ssids[0]});
+		}
+
+		@TearDown(Level.Trial)
+		public void release(Database db) throws SQLException {
+			db.driver.update(RELEASE_SEATS, new long[]{bid});
+			db.driver.update(DELETE_BOOKINGS, new long[]{bid});
+			db.driver.resetCaches();
+		}
+	}
+
+	@Benchmark
+	public void changeSeat(Database db, SeatPair pair) throws SQLException {//5
+		db.driver.changeSeat(pair.bid, pair.ssids[pair.held], pair.ssids[1 - pair.held]);
+		pair.held = 1 - pair.held;
+	}
+
+	/**
+	 * A fresh paid booking of one seat before every call.  Removing the
+	 * payment releases the seat again, so the same seat is used throughout.
+	 */
+	@State(Scope.Thread)
+	public static class PaidBooking {
+		long sid;
+		long ssid;
+		long bid;
+		long[] bids = new long[1024];
+		int count;
+
+		@Setup(Level.Trial)
+		public void pickSeat(Database db) throws SQLException {
+			List<String> row = db.driver.query(FREE_SEATS, 1).get(0);
+			sid = Long.parseLong(row.get(0));
+			ssid = Long.parseLong(row.get(1));
+		}
+
+		@Setup(Level.Invocation)
+		public void book(Database db) throws SQLException {
+			bid = db.driver.newBookingId();
+			db.driver.addBooking(bid, "Paid", sid, db.emails[0], new long[]{ssid});
+			db.driver.update("INSERT INTO Payments VALUES (?, ?, 'Credit Card', now(), 10, NULL)", bid, bid);
+			if (count == bids.length) {
+				bids = Arrays.copyOf(bids, count * 2);
+			}
+			bids[count++] = bid;
+		}
+
+		@TearDown(Level.Trial)
+		public void delete(Database db) throws SQLException {
+			long[] created = Arrays.copyOf(bids, count);
+			db.driver.update(RELEASE_SEATS, created);
+			db.driver.update(DELETE_BOOKINGS, created);
+			db.driver.resetCaches();
+		}
+	}
+
+	@Benchmark
+	public boolean removePayment(Database db, PaidBooking booking) throws SQLException {//6
+		if (!db.driver.isPaidBooking(booking.bid)) {
+			return false;
+		}
+		db.driver.removePayment(booking.bid);
+		return true;
+	}
+
+	@State(Scope.Thread)
+	public static class CancelledBookings extends StatusBookings {
+		@Setup(Level.Invocation)
+		public void cancelled(Database db) throws SQLException {
+			reset(db, "Cancelled");
+		}
+	}
+
+	@Benchmark
+	public int clearCancelledBookings(Database db, CancelledBookings bookings) throws SQLException {//7
+		return db.driver.clearCancelledBookings();
+	}
+
+	/**
+	 * A new showing on SCRATCH_DATE before every call, in a theater of one of
+	 * the sampled cinemas.
+	 */
+	@State(Scope.Thread)
+	public static class ScratchShow extends NewShowings {
+		String cinemaName;
+
+		@Setup(Level.Invocation)
+		public void create(Database db) throws SQLException {
+			int i = count % db.shows.length;
+			cinemaName = db.showTimes[i][3];
+			add(db.driver.addMovieShowing("Benchmark", "2020-01-01", "United States", "Benchmark movie", 5400, "en",
+				"Drama", SCRATCH_DATE, "18:00", "19:30", (int) db.shows[i][2]));
+		}
+	}
+
+	@Benchmark
+	public int removeShowsOnDate(Database db, ScratchShow show) throws SQLException {//8
+		return db.driver.removeShowsOnDate(show.cinemaName, SCRATCH_DATE);
+	}
+}
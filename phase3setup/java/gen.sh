@@ -0,0 +1,9 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+
+cd $root/java
+
+# Example: ./gen.sh /tmp/big --scale 100 --seed 7
+#          ./gen.sh /tmp/big --scale 10 --show-skew 1.2 --user-skew 0 --threads 8
+java -cp bin/ DataGenerator "$@"
@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Example: ./load.sh            (loads ../data/*.csv)
+#          ./load.sh /tmp/big   (loads the CSV files of another directory)
+java -cp lib/*:bin/ BulkLoader $dbname $PGPORT $(logname) ${1:-$root/data}
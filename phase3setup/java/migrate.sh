@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=${DBNAME:-$(logname)_db}
+
+cd $root/java
+
+# Example: ./migrate.sh                 (applies ../sql/migrations not applied yet)
+#          DBNAME=other_db ./migrate.sh (migrates another database)
+java -cp lib/*:bin/ SchemaMigrator $dbname $PGPORT $(logname) $root/sql/migrations
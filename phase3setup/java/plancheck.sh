@@ -0,0 +1,11 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=${DBNAME:-$(logname)_db}
+
+cd $root/java
+
+# Example: ./plancheck.sh                          (default budgets)
+#          ./plancheck.sh --max-ms 20 --min-rows 1000
+# Exits with the number of statements over budget.
+java -cp lib/*:bin/ PlanCheck $dbname $PGPORT $(logname) "$@"
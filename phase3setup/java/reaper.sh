@@ -0,0 +1,12 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Example: ./reaper.sh          (expires and purges bookings every minute until killed)
+#          ./reaper.sh --once   (one pass, e.g. from cron)
+# Tune with JAVA_OPTS="-Dticketmaster.reaper.pendingAge=900000 -Dticketmaster.reaper.rate=2000
+#          -Dticketmaster.reaper.chunk=500 -Dticketmaster.reaper.interval=60000"
+java $JAVA_OPTS -cp lib/*:bin/ BookingReaper $dbname $PGPORT $(logname) $1
@@ -0,0 +1,12 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Example: ./serve.sh          (serves the booking API on port 8080)
+#          ./serve.sh 9090
+# Load test a running server:
+#          java -cp bin/ LoadGenerator http://localhost:8080 --rps 1000 --duration 30 --p99 50
+java $JAVA_OPTS -cp lib/*:bin/ BookingServer $dbname $PGPORT $(logname) ${1:-8080}
@@ -0,0 +1,367 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class runs Ticketmaster operations from a stream of commands instead
+ * of the interactive menu.  Each input line is one JSON object naming the
+ * operation in "op" and its arguments by name, for example
+ *
+ *   {"op": "addUser", "email": "jane@example.com", "lname": "Doe", "fname": "Jane", "phone": 5550100, "pwd": "..."}
+ *   {"op": "addBooking", "sid": 12, "email": "jane@example.com", "seats": [101, 102], "status": "Pending"}
+ *   {"op": "addMovieShowing", "title": "...", "releaseDate": "2020-01-01", "country": "...", "description": "...",
+ *    "duration": 5400, "lang": "en", "genre": "Drama", "date": "2020-06-01", "start": "18:00", "end": "19:30", "tid": 7}
+ *   {"op": "cancelPendingBookings"}
+ *   {"op": "cancelBooking", "bid": 42}
+ *   {"op": "changeSeat", "bid": 42, "oldSeat": 101, "newSeat": 103}
+ *   {"op": "removePayment", "bid": 42}
+ *   {"op": "clearCancelledBookings"}
+ *   {"op": "removeShowsOnDate", "cinema": "Regal Cinemas", "date": "2019-01-01"}
+ *   {"op": "listTheatersPlayingShow", "cid": 1, "sid": 1}
+ *   {"op": "listShowsStartingOnTimeAndDate", "date": "2019-01-01", "time": "8:25"}
+ *   {"op": "listMovieTitlesContainingLove"}
+ *   {"op": "listMoviesMatching", "text": "love", "in": "title,description", "after": "2010-01-01", "genre": "Drama",
+ *    "columns": "title,rdate"}
+ *   {"op": "listUsersWithPendingBooking"}
+ *   {"op": "listMovieAndShowInfoAtCinema", "title": "...", "cinema": "...", "from": "2019-01-01", "to": "2019-12-31"}
+ *   {"op": "listBookingInfoForUser", "email": "jane@example.com"}
+ *
+ * Blank lines and lines starting with # are skipped.  The operations are
+ * the ones behind the menu, in TicketOperations, without any prompts.
+ *
+ * Updating commands are grouped into transactions of
+ * ticketmaster.batch.size commands (100 by default).  When a command fails
+ * its group is rolled back and run again one command per transaction, so
+ * only the failing command is lost and it is reported with its line number.
+ * Listings commit the open group first and write their rows to standard out
+ * in the format named by ticketmaster.format.  cancelPendingBookings and
+ * clearCancelledBookings also commit the open group first and then run
+ * outside any transaction, so the reaper commits chunk by chunk instead of
+ * holding every row lock until one group commits.  A throughput summary goes to
+ * standard error at the end.
+ *
+ */
+
+public class BatchRunner{
+	/**
+	 * One parsed input line.
+	 */
+	static class Command{
+		final int line;
+		final String op;
+		final Map<String, Object> args;
+
+		Command(int line, String op, Map<String, Object> args){
+			this.line = line;
+			this.op = op;
+			this.args = args;
+		}
+
+		boolean isListing(){
+			return op.startsWith("list");
+		}
+
+		/**
+		 * @return whether the command commits in chunks of its own
+		 */
+		boolean isChunked(){
+			return op.equals("cancelPendingBookings") || op.equals("clearCancelledBookings");
+		}
+
+		String string(String name){
+			Object value = args.get(name);
+			if (value == null){
+				throw new IllegalArgumentException("Missing argument " + name);
+			}//end if
+			return value.toString();
+		}
+
+		String string(String name, String defaultValue){
+			Object value = args.get(name);
+			return value == null ? defaultValue : value.toString();
+		}
+
+		long number(String name){
+			Object value = args.get(name);
+			if (value instanceof Long){
+				return (Long) value;
+			}//end if
+			long n = Ticketmaster.parseId(value == null ? null : value.toString());
+			if (n < 0){
+				throw new IllegalArgumentException("Argument " + name + " must be a positive integer");
+			}//end if
+			return n;
+		}
+
+		long[] numbers(String name){
+			Object value = args.get(name);
+			if (!(value instanceof List) || ((List<?>) value).isEmpty()){
+				throw new IllegalArgumentException("Argument " + name + " must be a non-empty array of IDs");
+			}//end if
+			List<?> list = (List<?>) value;
+			long[] numbers = new long[list.size()];
+			for (int i = 0; i < numbers.length; ++i){
+				if (!(list.get(i) instanceof Long)){
+					throw new IllegalArgumentException("Argument " + name + " must be a non-empty array of IDs");
+				}//end if
+				numbers[i] = (Long) list.get(i);
+			}//end for
+			return numbers;
+		}
+	}//end Command
+
+	private final Ticketmaster esql;
+	private final TicketOperations ops;
+	private final int batchSize;
+	private RowWriter out;
+
+	private final List<Command> group = new ArrayList<Command>();
+	private final Map<String, long[]> perOp = new TreeMap<String, long[]>();
+	private long commands, failed, transactions, retried, rows;
+
+	public BatchRunner(TicketOperations ops){
+		this(ops, Integer.getInteger("ticketmaster.batch.size", 100));
+	}
+
+	public BatchRunner(TicketOperations ops, int batchSize){
+		this.esql = ops.getTicketmaster();
+		this.ops = ops;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Runs every command of the input.
+	 *
+	 * @return the number of commands that failed
+	 * @throws java.io.IOException when reading the input fails
+	 */
+	public long run(BufferedReader input) throws IOException {
+		long start = System.nanoTime();
+		out = RowWriter.console();
+		String text;
+		int line = 0;
+		while ((text = input.readLine()) != null){
+			++line;
+			text = text.trim();
+			if (text.isEmpty() || text.startsWith("#")){
+				continue;
+			}//end if
+			++commands;
+			Command command;
+			try{
+				command = parse(line, text);
+			}catch (IllegalArgumentException e){
+				fail(line, "?", e);
+				continue;
+			}//end try
+			if (command.isListing() || command.isChunked()){
+				flush();
+				runAlone(command);
+			}else{
+				group.add(command);
+				if (group.size() >= batchSize){
+					flush();
+				}//end if
+			}//end if
+		}//end while
+		flush();
+		summary(System.nanoTime() - start);
+		return failed;
+	}
+
+	private static Command parse(int line, String text){
+		Object value = Json.parse(text);
+		if (!(value instanceof Map)){
+			throw new IllegalArgumentException("Command must be a JSON object");
+		}//end if
+		@SuppressWarnings("unchecked")
+		Map<String, Object> args = (Map<String, Object>) value;
+		Object op = args.get("op");
+		if (!(op instanceof String)){
+			throw new IllegalArgumentException("Command has no \"op\"");
+		}//end if
+		return new Command(line, (String) op, args);
+	}
+
+	/**
+	 * Commits the open group as one transaction, or replays it one command at
+	 * a time when a command of it fails.
+	 */
+	private void flush(){
+		if (group.isEmpty()){
+			return;
+		}//end if
+		long start = System.nanoTime();
+		try{
+			esql.inTransaction(() -> {
+				for (Command command : group){
+					execute(command);
+				}//end for
+				return null;
+			});
+			++transactions;
+			long each = (System.nanoTime() - start) / group.size();
+			for (Command command : group){
+				count(command.op, each);
+			}//end for
+		}catch (SQLException | RuntimeException e){
+			//nothing to undo in memory: the seat index and the caches are only changed
+			//through Ticketmaster.afterCommit(), and seat claims undone by afterRollback()
+			++retried;
+			for (Command command : group){
+				runAlone(command);
+			}//end for
+		}//end try
+		group.clear();
+	}
+
+	private void runAlone(Command command){
+		long start = System.nanoTime();
+		try{
+			if (command.isChunked()){
+				execute(command);
+			}else{
+				esql.inTransaction(() -> {
+					execute(command);
+					return null;
+				});
+			}//end if
+			++transactions;
+			count(command.op, System.nanoTime() - start);
+		}catch (SQLException | RuntimeException e){
+			fail(command.line, command.op, e);
+		}//end try
+	}
+
+	private void execute(Command c) throws SQLException {
+		switch (c.op){
+			case "addUser":
+				ops.addUser(c.string("email"), c.string("lname"), c.string("fname"), new BigDecimal(c.string("phone")),
+					c.string("pwd"));
+				break;
+			case "addBooking":
+				ops.addBooking(ops.newBookingId(), c.string("status", "Pending"), c.number("sid"), c.string("email"),
+					c.numbers("seats"));
+				break;
+			case "addMovieShowing":
+				ops.addMovieShowing(c.string("title"), c.string("releaseDate"), c.string("country"),
+					c.string("description", null), (int) c.number("duration"), c.string("lang", null), c.string("genre", null),
+					c.string("date"), c.string("start"), c.string("end"), (int) c.number("tid"));
+				break;
+			case "cancelPendingBookings":
+				ops.cancelPendingBookings();
+				break;
+			case "cancelBooking":
+				if (!ops.cancelPendingBooking(c.number("bid"))){
+					throw new IllegalArgumentException("No pending booking " + c.number("bid"));
+				}//end if
+				break;
+			case "changeSeat":
+				ops.changeSeat(c.number("bid"), c.number("oldSeat"), c.number("newSeat"));
+				break;
+			case "removePayment":
+				if (!ops.isPaidBooking(c.number("bid"))){
+					throw new IllegalArgumentException("No paid booking " + c.number("bid"));
+				}//end if
+				ops.removePayment(c.number("bid"));
+				break;
+			case "clearCancelledBookings":
+				ops.clearCancelledBookings();
+				break;
+			case "removeShowsOnDate":
+				ops.removeShowsOnDate(c.string("cinema"), c.string("date"));
+				break;
+			case "listTheatersPlayingShow":
+				rows += ops.listTheatersPlayingShow(c.number("cid"), c.number("sid"), out);
+				break;
+			case "listShowsStartingOnTimeAndDate":
+				rows += ops.listShowsStartingOnTimeAndDate(c.string("date"), c.string("time"), out);
+				break;
+			case "listMovieTitlesContainingLove":
+				rows += ops.listMovieTitlesContainingLoveReleasedAfter2010(out);
+				break;
+			case "listMoviesMatching":
+				rows += ops.listMoviesMatching(c.string("text"), MovieSearchIndex.fields(c.string("in", null)),
+					c.string("after", null), c.string("genre", null), MovieSearchIndex.columns(c.string("columns", null)), out);
+				break;
+			case "listUsersWithPendingBooking":
+				rows += ops.listUsersWithPendingBooking(out);
+				break;
+			case "listMovieAndShowInfoAtCinema":
+				rows += ops.listMovieAndShowInfoAtCinemaInDateRange(c.string("title"), c.string("cinema"), c.string("from"),
+					c.string("to"), out);
+				break;
+			case "listBookingInfoForUser":
+				rows += ops.listBookingInfoForUser(c.string("email"), out);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown op " + c.op);
+		}//end switch
+	}
+
+	private void count(String op, long nanos){
+		long[] stats = perOp.get(op);
+		if (stats == null){
+			stats = new long[2];
+			perOp.put(op, stats);
+		}//end if
+		stats[0]++;
+		stats[1] += nanos;
+	}
+
+	private void fail(int line, String op, Exception e){
+		++failed;
+		System.err.println("line " + line + ": " + op + ": " + e.getMessage());
+	}
+
+	private void summary(long nanos){
+		double seconds = nanos / 1e9;
+		System.err.println(String.format("%d commands in %.2f s, %.0f commands/s: %d ok, %d failed, %d transactions,"
+			+ " %d groups retried, %d rows listed", commands, seconds, commands / Math.max(seconds, 1e-9),
+			commands - failed, failed, transactions, retried, rows));
+		for (Map.Entry<String, long[]> e : perOp.entrySet()){
+			long[] stats = e.getValue();
+			System.err.println(String.format("  %-32s %8d ok, %10.3f ms avg", e.getKey(), stats[0], stats[1] / 1e6 / stats[0]));
+		}//end for
+	}
+
+	/**
+	 * The batch entry point.
+	 *
+	 * @param args <dbname> <port> <user> [command file, - or none for standard in]
+	 */
+	public static void main(String[] args){
+		if (args.length < 3 || args.length > 4){
+			System.err.println("Usage: java [-classpath <classpath>] " + BatchRunner.class.getName()
+				+ " <dbname> <port> <user> [command file]");
+			return;
+		}//end if
+
+		Ticketmaster esql = null;
+		long failed = 0;
+		try{
+			esql = new Ticketmaster(args[0], args[1], args[2], "");
+			InputStream input = args.length == 4 && !"-".equals(args[3]) ? new FileInputStream(args[3]) : System.in;
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 1 << 16)){
+				failed = new BatchRunner(new TicketOperations(esql)).run(reader);
+			}//end try
+		}catch (Exception e){
+			System.err.println(e.getMessage());
+			failed = 1;
+		}finally{
+			if (esql != null){
+				esql.cleanup();
+			}//end if
+		}//end try
+		System.exit(failed == 0 ? 0 : 1);
+	}
+}//end BatchRunner
@@ -0,0 +1,346 @@
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class expires pending bookings and purges cancelled ones in small
+ * chunks, so no statement holds row locks on more than one chunk of
+ * bookings at a time and live bookings are never blocked for long.
+ *
+ * Each chunk is one transaction that
+ *
+ *   1. locks the next ticketmaster.reaper.chunk bookings after the keyset
+ *      cursor, skipping bookings locked by someone else,
+ *   2. cancels (or deletes) them, and
+ *   3. releases their seats in ShowSeats, and in the SeatIndex once the
+ *      chunk is committed.
+ *
+ * Pending bookings are walked in (bdatetime, bid) order and cancelled bookings
+ * in bid order, both along the partial indexes of V1__hot_query_indexes.
+ * Skipped bookings are picked up by the next pass.
+ *
+ * In the background, a pass runs every ticketmaster.reaper.interval
+ * milliseconds: it expires bookings pending for longer than
+ * ticketmaster.reaper.pendingAge milliseconds, then purges cancelled ones,
+ * at most ticketmaster.reaper.rate rows per second.  The menu operations
+ * use the same chunks without the rate limit.
+ *
+ */
+
+public class BookingReaper{
+	static final String PENDING_CHUNK = "SELECT bid, bdatetime FROM Bookings WHERE status = 'Pending'"
+		+ " AND bdatetime < CAST(? AS TIMESTAMPTZ) AND (bdatetime, bid) > (CAST(? AS TIMESTAMPTZ), ?)"
+		+ " ORDER BY bdatetime, bid LIMIT ? FOR UPDATE SKIP LOCKED";
+	static final String CANCEL_CHUNK = "UPDATE Bookings SET status = 'Cancelled' WHERE bid = ANY(?) AND status = 'Pending'";
+	static final String CANCELLED_CHUNK = "SELECT bid FROM Bookings WHERE status = 'Cancelled' AND bid > ?"
+		+ " ORDER BY bid LIMIT ? FOR UPDATE SKIP LOCKED";
+	//payments go with their bookings (ON DELETE CASCADE)
+	static final String DELETE_CHUNK = "DELETE FROM Bookings WHERE bid = ANY(?) AND status = 'Cancelled'";
+	static final String RELEASE_CHUNK_SEATS = "UPDATE ShowSeats SET bid = NULL WHERE bid = ANY(?) RETURNING sid, ssid";
+
+	private final Ticketmaster esql;
+	private final SeatIndex seatIndex;
+	private final int chunkSize;
+	private final long pendingAge;
+	//rows per second in background passes, 0 for no limit
+	private final long rate;
+	private final long interval;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * The bookings of one chunk, as selected, and the seats they held.
+	 */
+	static class Chunk{
+		final ResultTable rows;
+		final long[] bids;
+		ResultTable seats;
+
+		Chunk(ResultTable rows){
+			this.rows = rows;
+			this.bids = rows.getLongs(0);
+		}
+	}//end Chunk
+
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong purged = new AtomicLong();
+	private final AtomicLong seatsReleased = new AtomicLong();
+	private final AtomicLong chunks = new AtomicLong();
+	private final AtomicLong passes = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong throttledMillis = new AtomicLong();
+	//what the reaper is doing now, and how far it got
+	private volatile String phase = "idle";
+	private volatile String cursor = "";
+	private volatile long lastPassMillis;
+	private volatile long lastPassRows;
+
+	public BookingReaper(Ticketmaster esql, SeatIndex seatIndex){
+		this(esql, seatIndex, Integer.getInteger("ticketmaster.reaper.chunk", 500),
+			Long.getLong("ticketmaster.reaper.pendingAge", 15 * 60 * 1000L),
+			Long.getLong("ticketmaster.reaper.rate", 2000L),
+			Long.getLong("ticketmaster.reaper.interval", 60000L));
+	}
+
+	public BookingReaper(Ticketmaster esql, SeatIndex seatIndex, int chunkSize, long pendingAge, long rate, long interval){
+		if (chunkSize < 1){
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		}//end if
+		this.esql = esql;
+		this.seatIndex = seatIndex;
+		this.chunkSize = chunkSize;
+		this.pendingAge = pendingAge;
+		this.rate = rate;
+		this.interval = interval;
+	}
+
+	/**
+	 * Cancels every pending booking made before the cutoff and releases its
+	 * seats, one chunk per transaction.
+	 *
+	 * @param cutoff a timestamptz literal, "infinity" for all pending bookings
+	 * @return the number of bookings cancelled
+	 */
+	public int expirePending(String cutoff) throws SQLException {
+		return expirePending(cutoff, false);
+	}
+
+	/**
+	 * Deletes every cancelled booking, with its payment, after releasing its
+	 * seats, one chunk per transaction.
+	 *
+	 * @return the number of bookings deleted
+	 */
+	public int purgeCancelled() throws SQLException {
+		return purgeCancelled(false);
+	}
+
+	private int expirePending(final String cutoff, boolean throttled) throws SQLException {
+		phase = "expiring";
+		int total = 0;
+		try{
+			String after = "-infinity";
+			long afterBid = -1;
+			while (true){
+				long start = System.nanoTime();
+				final String fromTime = after;
+				final long fromBid = afterBid;
+				Chunk chunk = esql.inTransaction(() -> {
+					Chunk c = new Chunk(esql.executeQueryAndReturnTable(PENDING_CHUNK, cutoff, fromTime, fromBid, chunkSize));
+					if (c.bids.length > 0){
+						esql.executeUpdate(CANCEL_CHUNK, c.bids);
+						c.seats = esql.executeQueryAndReturnTable(RELEASE_CHUNK_SEATS, c.bids);
+						esql.afterCommit(() -> released(c));
+					}//end if
+					return c;
+				});
+				if (chunk.bids.length == 0){
+					break;
+				}//end if
+				expired.addAndGet(chunk.bids.length);
+				total += chunk.bids.length;
+				int last = chunk.rows.size() - 1;
+				afterBid = chunk.rows.getLong(last, 0);
+				after = chunk.rows.getString(last, 1);
+				cursor = "pending after " + after + " #" + afterBid;
+				if (chunk.bids.length < chunkSize || (throttled && !throttle(chunk.bids.length, start))){
+					break;
+				}//end if
+			}//end while
+		}finally{
+			phase = "idle";
+		}//end try
+		return total;
+	}
+
+	private int purgeCancelled(boolean throttled) throws SQLException {
+		phase = "purging";
+		int total = 0;
+		try{
+			long afterBid = -1;
+			while (true){
+				long start = System.nanoTime();
+				final long fromBid = afterBid;
+				Chunk chunk = esql.inTransaction(() -> {
+					Chunk c = new Chunk(esql.executeQueryAndReturnTable(CANCELLED_CHUNK, fromBid, chunkSize));
+					if (c.bids.length > 0){
+						c.seats = esql.executeQueryAndReturnTable(RELEASE_CHUNK_SEATS, c.bids);
+						esql.executeUpdate(DELETE_CHUNK, c.bids);
+						esql.afterCommit(() -> released(c));
+					}//end if
+					return c;
+				});
+				if (chunk.bids.length == 0){
+					break;
+				}//end if
+				purged.addAndGet(chunk.bids.length);
+				total += chunk.bids.length;
+				afterBid = chunk.bids[chunk.bids.length - 1];
+				cursor = "cancelled after #" + afterBid;
+				if (chunk.bids.length < chunkSize || (throttled && !throttle(chunk.bids.length, start))){
+					break;
+				}//end if
+			}//end while
+		}finally{
+			phase = "idle";
+		}//end try
+		return total;
+	}
+
+	/**
+	 * Frees the seats of a committed chunk in the SeatIndex.
+	 */
+	private void released(Chunk chunk){
+		for (int i = 0; i < chunk.seats.size(); ++i){
+			seatIndex.release(chunk.seats.getLong(i, 0), chunk.seats.getLong(i, 1));
+		}//end for
+		seatsReleased.addAndGet(chunk.seats.size());
+		chunks.incrementAndGet();
+	}
+
+	/**
+	 * Sleeps until rows at the configured rate would have taken since start.
+	 *
+	 * @return false when the reaper was stopped
+	 */
+	private boolean throttle(int rows, long start){
+		if (rate <= 0){
+			return !Thread.currentThread().isInterrupted();
+		}//end if
+		long wait = rows * 1000L / rate - (System.nanoTime() - start) / 1000000L;
+		if (wait > 0){
+			throttledMillis.addAndGet(wait);
+			try{
+				Thread.sleep(wait);
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}//end try
+		}//end if
+		return !Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * One background pass: expires bookings older than the pending age, then
+	 * purges cancelled bookings, at the configured rate.
+	 */
+	public void runPass(){
+		long start = System.currentTimeMillis();
+		try{
+			String cutoff = Instant.ofEpochMilli(start - pendingAge).toString();
+			long rows = expirePending(cutoff, true);
+			if (!Thread.currentThread().isInterrupted()){
+				rows += purgeCancelled(true);
+			}//end if
+			lastPassRows = rows;
+		}catch (SQLException e){
+			failures.incrementAndGet();
+			System.err.println("Booking reaper: " + e.getMessage());
+		}finally{
+			lastPassMillis = System.currentTimeMillis() - start;
+			passes.incrementAndGet();
+		}//end try
+	}
+
+	/**
+	 * Starts background passes on a daemon thread, the first one right away.
+	 */
+	public synchronized void start(){
+		if (scheduler != null || interval <= 0){
+			return;
+		}//end if
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "booking-reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::runPass, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops background passes, interrupting the current one between chunks.
+	 */
+	public synchronized void stop(){
+		if (scheduler != null){
+			scheduler.shutdownNow();
+			scheduler = null;
+		}//end if
+	}
+
+	public long getExpired(){
+		return expired.get();
+	}
+
+	public long getPurged(){
+		return purged.get();
+	}
+
+	public long getSeatsReleased(){
+		return seatsReleased.get();
+	}
+
+	public long getChunks(){
+		return chunks.get();
+	}
+
+	public long getPasses(){
+		return passes.get();
+	}
+
+	public long getFailures(){
+		return failures.get();
+	}
+
+	public String getPhase(){
+		return phase;
+	}
+
+	public String getCursor(){
+		return cursor;
+	}
+
+	public String toString(){
+		return "Booking reaper: " + phase + (phase.equals("idle") ? "" : " (" + cursor + ")") + ", " + passes.get()
+			+ " passes, " + chunks.get() + " chunks, " + expired.get() + " expired, " + purged.get() + " purged, "
+			+ seatsReleased.get() + " seats released, " + failures.get() + " failures, " + throttledMillis.get()
+			+ " ms throttled, last pass " + lastPassRows + " rows in " + lastPassMillis + " ms";
+	}
+
+	/**
+	 * Runs the reaper on its own, once or every interval until killed.
+	 *
+	 * @param args <dbname> <port> <user> [--once]
+	 */
+	public static void main(String[] args){
+		if (args.length < 3 || args.length > 4 || (args.length == 4 && !args[3].equals("--once"))){
+			System.err.println("Usage: java [-classpath <classpath>] " + BookingReaper.class.getName()
+				+ " <dbname> <port> <user> [--once]");
+			return;
+		}//end if
+
+		Ticketmaster esql = null;
+		int status = 0;
+		try{
+			esql = new Ticketmaster(args[0], args[1], args[2], "");
+			BookingReaper reaper = new TicketOperations(esql).getReaper();
+			do{
+				reaper.runPass();
+				System.out.println(reaper);
+				if (args.length == 4){
+					status = reaper.getFailures() == 0 ? 0 : 1;
+					break;
+				}//end if
+				Thread.sleep(Math.max(1000L, reaper.interval));
+			}while (true);
+		}catch (Exception e){
+			System.err.println(e.getMessage());
+			status = 1;
+		}finally{
+			if (esql != null){
+				esql.cleanup();
+			}//end if
+		}//end try
+		System.exit(status);
+	}
+}//end BookingReaper
@@ -0,0 +1,597 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves the booking operations over HTTP with JSON bodies,
+ * using the JDK's built-in HttpServer:
+ *
+ *   POST   /bookings                    {"sid": 1, "email": "...", "seats": [1, 2], "status": "Pending"}
+ *   PUT    /bookings/{bid}/seats        {"oldSeat": 1, "newSeat": 3}
+ *   DELETE /bookings/{bid}/payment
+ *   POST   /holds                       {"sid": 1, "seats": [1, 2]}, holds seats for ticketmaster.holds.ttl ms
+ *   POST   /holds                       {"sid": 1, "count": 4, "stype": "Regular"}, holds the best adjacent seats
+ *   POST   /holds/{hold}/seats          {"seats": [3]}, 409 when a seat is taken
+ *   DELETE /holds/{hold}
+ *   POST   /holds/{hold}/booking        {"email": "...", "status": "Pending"}, books the held seats
+ *   GET    /cinemas/{cid}/shows/{sid}/theaters              option 9
+ *   GET    /shows?date=2019-01-01&time=8:25                  option 10
+ *   GET    /movies/love                                      option 11
+ *   GET    /movies?q=..&in=title,description&after=..&genre=..&columns=title,rdate
+ *   GET    /users/pending                                    option 12
+ *   GET    /showtimes?title=..&cinema=..&from=..&to=..       option 13
+ *   GET    /users/{email}/bookings                           option 14
+ *   GET    /stats
+ *   GET    /metrics                     per-operation latencies and round trips, Prometheus format
+ *
+ * Listings stream one JSON object per row (application/x-ndjson).  The
+ * status is sent with the first rows, so a listing that fails early still
+ * answers 400 or 500; one that fails after rows went out has its
+ * connection dropped rather than its body ended.  Business rule violations
+ * and values the database cannot read answer 400 with {"error": message}.
+ *
+ * Every request runs on its own virtual thread when the JDK has them (21
+ * and later), otherwise on a bounded platform thread pool.  Requests that
+ * touch the database first take one of ticketmaster.http.permits permits
+ * (the pool's maximum size by default); a request that cannot get one
+ * within ticketmaster.http.permitTimeout milliseconds is answered 503 with
+ * Retry-After instead of queueing on the connection pool.
+ *
+ * The server also runs the BookingReaper in the background, unless
+ * ticketmaster.reaper.interval is 0; GET /stats reports its progress.
+ *
+ */
+
+public class BookingServer{
+	/**
+	 * A request handler, given the path split into its segments.
+	 */
+	interface Route{
+		void handle(HttpExchange exchange, String[] path) throws Exception;
+	}
+
+	private final TicketOperations ops;
+	private final Semaphore permits;
+	private final int permitCount;
+	private final long permitTimeout;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	public BookingServer(TicketOperations ops){
+		this(ops, Integer.getInteger("ticketmaster.http.permits", ops.getTicketmaster().getPool().getMaxSize()),
+			Long.getLong("ticketmaster.http.permitTimeout", 100L));
+	}
+
+	public BookingServer(TicketOperations ops, int permits, long permitTimeout){
+		this.ops = ops;
+		this.permitCount = permits;
+		this.permits = new Semaphore(permits);
+		this.permitTimeout = permitTimeout;
+	}
+
+	/**
+	 * Starts serving on the given port.
+	 */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), Integer.getInteger("ticketmaster.http.backlog", 1024));
+		executor = newRequestExecutor();
+		server.setExecutor(executor);
+		server.createContext("/bookings", exchange -> serve(exchange, this::bookings));
+		server.createContext("/holds", exchange -> serve(exchange, this::holds));
+		server.createContext("/cinemas", exchange -> serve(exchange, this::cinemas));
+		server.createContext("/shows", exchange -> serve(exchange, this::shows));
+		server.createContext("/movies", exchange -> serve(exchange, this::movies));
+		server.createContext("/users", exchange -> serve(exchange, this::users));
+		server.createContext("/showtimes", exchange -> serve(exchange, this::showtimes));
+		server.createContext("/stats", exchange -> serve(exchange, this::stats));
+		server.createContext("/metrics", exchange -> serve(exchange, this::metrics));
+		server.start();
+		ops.getReaper().start();
+	}
+
+	public void stop(){
+		ops.getReaper().stop();
+		server.stop(1);
+		executor.shutdown();
+	}
+
+	/**
+	 * @return a virtual-thread-per-task executor when the running JDK has
+	 *         one, otherwise a pool of ticketmaster.http.threads platform
+	 *         threads
+	 */
+	static ExecutorService newRequestExecutor(){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch (ReflectiveOperationException e){
+			return Executors.newFixedThreadPool(Integer.getInteger("ticketmaster.http.threads", 200));
+		}//end try
+	}
+
+	private void serve(HttpExchange exchange, Route route) throws IOException {
+		requests.incrementAndGet();
+		boolean aborted = false;
+		try{
+			String[] path = exchange.getRequestURI().getRawPath().substring(1).split("/");
+			for (int i = 0; i < path.length; ++i){
+				path[i] = segment(path[i]);
+			}//end for
+			route.handle(exchange, path);
+		}catch (Exception e){
+			boolean invalid = e instanceof IllegalArgumentException || isDataException(e);
+			if (!invalid){
+				failures.incrementAndGet();
+			}//end if
+			if (exchange.getResponseCode() != -1){
+				//a 200 is already on the wire; the server drops the connection
+				//instead of ending the body as if the listing were complete
+				aborted = true;
+				throw new IOException("Response aborted: " + e.getMessage(), e);
+			}//end if
+			error(exchange, invalid ? 400 : 500, e.getMessage());
+		}finally{
+			if (!aborted){
+				exchange.close();
+			}//end if
+		}//end try
+	}
+
+	/**
+	 * @return whether the database rejected a value of the request, such as
+	 *         a date it could not read
+	 */
+	private static boolean isDataException(Exception e){
+		return e instanceof SQLException && ((SQLException) e).getSQLState() != null
+			&& ((SQLException) e).getSQLState().startsWith("22");
+	}
+
+	/**
+	 * Runs database work under a permit, or answers 503 when none frees up
+	 * in time.
+	 *
+	 * @return false when the request was rejected
+	 */
+	private boolean withPermit(HttpExchange exchange, Work work) throws Exception {
+		if (!permits.tryAcquire(permitTimeout, TimeUnit.MILLISECONDS)){
+			rejected.incrementAndGet();
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			error(exchange, 503, "Too many requests, try again");
+			return false;
+		}//end if
+		try{
+			work.run();
+			return true;
+		}finally{
+			permits.release();
+		}//end try
+	}
+
+	private void bookings(HttpExchange exchange, String[] path) throws Exception {
+		String method = exchange.getRequestMethod();
+		if (path.length == 1 && "POST".equals(method)){
+			Map<String, Object> body = body(exchange);
+			long sid = number(body, "sid");
+			String email = string(body, "email");
+			long[] seats = numbers(body, "seats");
+			String status = body.containsKey("status") ? string(body, "status") : "Pending";
+			withPermit(exchange, () -> {
+				long bid = ops.newBookingId();
+				Timestamp time = ops.addBooking(bid, status, sid, email, seats);
+				json(exchange, 201, "{\"bid\":" + bid + ",\"bdatetime\":" + Json.quote(time.toString()) + "}");
+			});
+			return;
+		}//end if
+		if (path.length == 3 && "seats".equals(path[2]) && "PUT".equals(method)){
+			long bid = id(path[1]);
+			Map<String, Object> body = body(exchange);
+			long oldSeat = number(body, "oldSeat");
+			long newSeat = number(body, "newSeat");
+			withPermit(exchange, () -> {
+				ops.changeSeat(bid, oldSeat, newSeat);
+				json(exchange, 200, "{\"bid\":" + bid + ",\"seat\":" + newSeat + "}");
+			});
+			return;
+		}//end if
+		if (path.length == 3 && "payment".equals(path[2]) && "DELETE".equals(method)){
+			long bid = id(path[1]);
+			withPermit(exchange, () -> {
+				if (!ops.isPaidBooking(bid)){
+					error(exchange, 404, "No paid booking " + bid);
+					return;
+				}//end if
+				ops.removePayment(bid);
+				json(exchange, 200, "{\"bid\":" + bid + ",\"status\":\"Cancelled\"}");
+			});
+			return;
+		}//end if
+		notFound(exchange);
+	}
+
+	private void holds(HttpExchange exchange, String[] path) throws Exception {
+		String method = exchange.getRequestMethod();
+		if (path.length == 1 && "POST".equals(method)){
+			Map<String, Object> body = body(exchange);
+			long sid = number(body, "sid");
+			if (body.containsKey("count")){
+				int count = count(body, "count");
+				String stype = body.containsKey("stype") ? string(body, "stype") : null;
+				withPermit(exchange, () -> {
+					long hold = ops.holdBestSeats(sid, count, stype);
+					json(exchange, 201, hold(hold));
+				});
+				return;
+			}//end if
+			long[] seats = numbers(body, "seats");
+			withPermit(exchange, () -> {
+				long hold = ops.holdSeats(sid, seats);
+				json(exchange, 201, hold(hold));
+			});
+			return;
+		}//end if
+		if (path.length == 3 && "seats".equals(path[2]) && "POST".equals(method)){
+			long hold = id(path[1]);
+			long[] seats = numbers(body(exchange), "seats");
+			withPermit(exchange, () -> {
+				if (!ops.addToHold(hold, seats)){
+					error(exchange, 409, "Show seats not available");
+					return;
+				}//end if
+				json(exchange, 200, hold(hold));
+			});
+			return;
+		}//end if
+		if (path.length == 2 && "DELETE".equals(method)){
+			long hold = id(path[1]);
+			ops.releaseHold(hold);
+			json(exchange, 200, "{\"hold\":" + hold + ",\"status\":\"Released\"}");
+			return;
+		}//end if
+		if (path.length == 3 && "booking".equals(path[2]) && "POST".equals(method)){
+			long hold = id(path[1]);
+			Map<String, Object> body = body(exchange);
+			String email = string(body, "email");
+			String status = body.containsKey("status") ? string(body, "status") : "Pending";
+			withPermit(exchange, () -> {
+				long bid = ops.newBookingId();
+				Timestamp time = ops.confirmHold(hold, bid, status, email);
+				json(exchange, 201, "{\"bid\":" + bid + ",\"bdatetime\":" + Json.quote(time.toString()) + "}");
+			});
+			return;
+		}//end if
+		notFound(exchange);
+	}
+
+	private String hold(long hold){
+		long[] seats = ops.getHolds().seats(hold);
+		StringBuilder sb = new StringBuilder("{\"hold\":").append(hold).append(",\"sid\":").append(seats[0]);
+		sb.append(",\"seats\":[");
+		for (int i = 1; i < seats.length; ++i){
+			sb.append(i > 1 ? "," : "").append(seats[i]);
+		}//end for
+		return sb.append("],\"expiresIn\":").append(ops.getHolds().remaining(hold)).append('}').toString();
+	}
+
+	private void cinemas(HttpExchange exchange, String[] path) throws Exception {//9
+		if (path.length == 5 && "shows".equals(path[2]) && "theaters".equals(path[4]) && isGet(exchange)){
+			long cid = id(path[1]), sid = id(path[3]);
+			list(exchange, out -> ops.listTheatersPlayingShow(cid, sid, out));
+			return;
+		}//end if
+		notFound(exchange);
+	}
+
+	private void shows(HttpExchange exchange, String[] path) throws Exception {//10
+		if (path.length == 1 && isGet(exchange)){
+			Map<String, String> query = query(exchange);
+			String date = param(query, "date"), time = param(query, "time");
+			list(exchange, out -> ops.listShowsStartingOnTimeAndDate(date, time, out));
+			return;
+		}//end if
+		notFound(exchange);
+	}
+
+	private void movies(HttpExchange exchange, String[] path) throws Exception {//11
+		if (path.length == 2 && "love".equals(path[1]) && isGet(exchange)){
+			list(exchange, out -> ops.listMovieTitlesContainingLoveReleasedAfter2010(out));
+			return;
+		}//end if
+		if (path.length == 1 && isGet(exchange)){
+			Map<String, String> query = query(exchange);
+			String text = query.getOrDefault("q", "");
+			int fields = MovieSearchIndex.fields(query.get("in"));
+			String[] columns = MovieSearchIndex.columns(query.get("columns"));
+			list(exchange, out -> ops.listMoviesMatching(text, fields, query.get("after"), query.get("genre"), columns, out));
+			return;
+		}//end if
+		notFound(exchange);
+	}
+
+	private void users(HttpExchange exchange, String[] path) throws Exception {
+		if (path.length == 2 && "pending".equals(path[1]) && isGet(exchange)){//12
+			list(exchange, out -> ops.listUsersWithPendingBooking(out));
+			return;
+		}//end if
+		if (path.length == 3 && "bookings".equals(path[2]) && isGet(exchange)){//14
+			String email = path[1];
+			list(exchange, out -> ops.listBookingInfoForUser(email, out));
+			return;
+		}//end if
+		notFound(exchange);
+	}
+
+	private void showtimes(HttpExchange exchange, String[] path) throws Exception {//13
+		if (path.length == 1 && isGet(exchange)){
+			Map<String, String> query = query(exchange);
+			String title = param(query, "title"), cinema = param(query, "cinema");
+			String from = param(query, "from"), to = param(query, "to");
+			list(exchange, out -> ops.listMovieAndShowInfoAtCinemaInDateRange(title, cinema, from, to, out));
+			return;
+		}//end if
+		notFound(exchange);
+	}
+
+	private void stats(HttpExchange exchange, String[] path) throws Exception {
+		StringBuilder sb = new StringBuilder("{");
+		sb.append("\"requests\":").append(requests.get());
+		sb.append(",\"rejected\":").append(rejected.get());
+		sb.append(",\"failures\":").append(failures.get());
+		sb.append(",\"permitsInUse\":").append(permitCount - permits.availablePermits());
+		sb.append(",\"pool\":").append(Json.quote(ops.getTicketmaster().getPool().toString()));
+		if (ops.getTicketmaster().getReadPool() != ops.getTicketmaster().getPool()){
+			sb.append(",\"readPool\":").append(Json.quote(ops.getTicketmaster().getReadPool().toString()));
+		}//end if
+		sb.append(",\"seatIndex\":").append(Json.quote(ops.getSeatIndex().toString()));
+		sb.append(",\"holds\":").append(Json.quote(ops.getHolds().toString()));
+		sb.append(",\"seatFinder\":").append(Json.quote(ops.getSeatFinder().toString()));
+		BookingReaper reaper = ops.getReaper();
+		sb.append(",\"reaper\":{\"phase\":").append(Json.quote(reaper.getPhase()));
+		sb.append(",\"cursor\":").append(Json.quote(reaper.getCursor()));
+		sb.append(",\"passes\":").append(reaper.getPasses());
+		sb.append(",\"chunks\":").append(reaper.getChunks());
+		sb.append(",\"expired\":").append(reaper.getExpired());
+		sb.append(",\"purged\":").append(reaper.getPurged());
+		sb.append(",\"seatsReleased\":").append(reaper.getSeatsReleased());
+		sb.append(",\"failures\":").append(reaper.getFailures()).append('}');
+		SlowQueryLog slowLog = ops.getTicketmaster().getSlowQueryLog();
+		sb.append(",\"slowQueries\":{\"logged\":").append(slowLog.getLogged());
+		sb.append(",\"dropped\":").append(slowLog.getDropped());
+		sb.append(",\"running\":").append(slowLog.getRunningSlow()).append('}');
+		json(exchange, 200, sb.append('}').toString());
+	}
+
+	private void metrics(HttpExchange exchange, String[] path) throws Exception {
+		byte[] body = ops.getTicketmaster().getMetrics().toPrometheus().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()){
+			out.write(body);
+		}//end try
+	}
+
+	/**
+	 * Database work run under a permit.
+	 */
+	interface Work{
+		void run() throws Exception;
+	}
+
+	/**
+	 * A listing writing its rows to the given writer.
+	 */
+	interface Listing{
+		int run(RowWriter out) throws SQLException;
+	}
+
+	/**
+	 * The body of a listing.  The 200 goes out with the first bytes the row
+	 * writer's buffer lets through, so a listing that fails before then
+	 * still gets its 400 or 500.
+	 */
+	static class ListingBody extends OutputStream{
+		private final HttpExchange exchange;
+		private OutputStream body;
+
+		ListingBody(HttpExchange exchange){
+			this.exchange = exchange;
+		}
+
+		/**
+		 * Sends the status and headers, if that has not happened yet.
+		 */
+		OutputStream commit() throws IOException {
+			if (body == null){
+				exchange.sendResponseHeaders(200, 0);
+				body = exchange.getResponseBody();
+			}//end if
+			return body;
+		}
+
+		public void write(int b) throws IOException {
+			commit().write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len > 0){
+				commit().write(b, off, len);
+			}//end if
+		}
+
+		public void flush() throws IOException {
+			if (body != null){
+				body.flush();
+			}//end if
+		}
+	}//end ListingBody
+
+	private void list(HttpExchange exchange, Listing listing) throws Exception {
+		withPermit(exchange, () -> {
+			exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+			ListingBody body = new ListingBody(exchange);
+			RowWriter out = RowWriter.create("jsonl", body);
+			listing.run(out);
+			out.flush();
+			//an empty listing has written nothing yet
+			body.commit();
+		});
+	}
+
+	private static boolean isGet(HttpExchange exchange){
+		return "GET".equals(exchange.getRequestMethod());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> body(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		Object value = Json.parse(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		if (!(value instanceof Map)){
+			throw new IllegalArgumentException("Request body must be a JSON object");
+		}//end if
+		return (Map<String, Object>) value;
+	}
+
+	private static Map<String, String> query(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		String raw = exchange.getRequestURI().getRawQuery();
+		if (raw == null){
+			return params;
+		}//end if
+		for (String pair : raw.split("&")){
+			int eq = pair.indexOf('=');
+			if (eq > 0){
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}//end if
+		}//end for
+		return params;
+	}
+
+	private static String param(Map<String, String> query, String name){
+		String value = query.get(name);
+		if (value == null || value.isEmpty()){
+			throw new IllegalArgumentException("Missing query parameter " + name);
+		}//end if
+		return value;
+	}
+
+	/**
+	 * Percent-decodes a path segment.  Unlike a query string, a path keeps
+	 * '+' as it is, so an email such as a+b@example.com names its own user.
+	 */
+	private static String segment(String raw) throws IOException {
+		return URLDecoder.decode(raw.replace("+", "%2B"), "UTF-8");
+	}
+
+	private static long id(String segment){
+		long id = Ticketmaster.parseId(segment);
+		if (id < 0){
+			throw new IllegalArgumentException("Invalid ID " + segment);
+		}//end if
+		return id;
+	}
+
+	private static String string(Map<String, Object> body, String name){
+		Object value = body.get(name);
+		if (!(value instanceof String)){
+			throw new IllegalArgumentException("Missing string " + name);
+		}//end if
+		return (String) value;
+	}
+
+	private static long number(Map<String, Object> body, String name){
+		Object value = body.get(name);
+		if (!(value instanceof Long) || (Long) value < 0){
+			throw new IllegalArgumentException("Missing ID " + name);
+		}//end if
+		return (Long) value;
+	}
+
+	private static int count(Map<String, Object> body, String name){
+		Object value = body.get(name);
+		if (!(value instanceof Long) || (Long) value < 1 || (Long) value > Integer.MAX_VALUE){
+			throw new IllegalArgumentException("Missing positive count " + name);
+		}//end if
+		return ((Long) value).intValue();
+	}
+
+	private static long[] numbers(Map<String, Object> body, String name){
+		Object value = body.get(name);
+		if (!(value instanceof List) || ((List<?>) value).isEmpty()){
+			throw new IllegalArgumentException("Missing array of IDs " + name);
+		}//end if
+		List<?> list = (List<?>) value;
+		long[] numbers = new long[list.size()];
+		for (int i = 0; i < numbers.length; ++i){
+			if (!(list.get(i) instanceof Long)){
+				throw new IllegalArgumentException("Missing array of IDs " + name);
+			}//end if
+			numbers[i] = (Long) list.get(i);
+		}//end for
+		return numbers;
+	}
+
+	private static void json(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	private static void error(HttpExchange exchange, int status, String message){
+		try{
+			json(exchange, status, "{\"error\":" + Json.quote(message) + "}");
+		}catch (IOException e){
+			// the client went away, or the response was already started.
+		}//end try
+	}
+
+	private static void notFound(HttpExchange exchange){
+		error(exchange, 404, "No such resource " + exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+	}
+
+	/**
+	 * The server entry point.
+	 *
+	 * @param args <dbname> <port> <user> [http port, 8080 by default]
+	 */
+	public static void main(String[] args){
+		if (args.length < 3 || args.length > 4){
+			System.err.println("Usage: java [-classpath <classpath>] " + BookingServer.class.getName()
+				+ " <dbname> <port> <user> [http port]");
+			return;
+		}//end if
+
+		try{
+			final Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+			final BookingServer server = new BookingServer(new TicketOperations(esql));
+			int httpPort = args.length == 4 ? Integer.parseInt(args[3]) : 8080;
+			server.start(httpPort);
+			System.out.println("Serving on port " + httpPort + " with " + server.permitCount + " database permits");
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				server.stop();
+				esql.cleanup();
+			}));
+		}catch (Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}//end try
+	}
+}//end BookingServer
@@ -0,0 +1,503 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class lets many concurrent buyers go after the same shows through
+ * TicketOperations against the database, and then checks that no seat was
+ * sold twice.
+ *
+ * Every buyer loops until the run ends: it thinks for an exponentially
+ * distributed time, then books 1 to --seats seats of a show (half of the
+ * time the best available ones, through a hold, otherwise a block of seats
+ * of its own choosing), changes a seat of one of its bookings or cancels
+ * one.  Shows are picked with Zipf-distributed popularity, so a few shows
+ * are fought over.  A booking that loses a race is retried with a fresh
+ * choice up to --retries times.  Buyers are spread over --sessions
+ * TicketOperations, each with its own in-memory seat index like separate
+ * servers, so races between sessions are decided by the "bid IS NULL"
+ * updates and the UNIQUE(sid, csid) constraint in Postgres.
+ *
+ * The run reports throughput, latency percentiles and abort and retry
+ * rates.  The check then looks for things the schema does not prevent:
+ * seats still held by a cancelled booking, bookings whose Bookings.seats
+ * differs from the number of ShowSeats rows assigned to them and seats
+ * booked for another show, and it compares the seats every successful call
+ * was told it got with who holds them in the database.  With --check-only
+ * only the database checks run, over all bookings, and the seat counts are
+ * not compared: the seed data has bookings with seats but no ShowSeats.
+ *
+ */
+
+public class BookingStress{
+	static final String SHOWS = "SELECT S.sid FROM Shows S WHERE EXISTS (SELECT 1 FROM ShowSeats T WHERE T.sid = S.sid)"
+		+ " ORDER BY S.sid LIMIT ?";
+	static final String EMAILS = "SELECT email FROM Users ORDER BY email LIMIT 1000";
+	//the checks, each returning the offending rows
+	static final String CANCELLED_SEATS = "SELECT S.ssid, B.bid FROM ShowSeats S, Bookings B"
+		+ " WHERE S.bid = B.bid AND B.bid >= ? AND B.status = 'Cancelled'";
+	static final String SEAT_COUNTS = "SELECT B.bid, B.seats, COUNT(S.ssid) FROM Bookings B LEFT JOIN ShowSeats S ON S.bid = B.bid"
+		+ " WHERE B.bid >= ? AND B.status <> 'Cancelled' GROUP BY B.bid, B.seats HAVING COUNT(S.ssid) <> B.seats";
+	static final String FOREIGN_SEATS = "SELECT S.ssid, S.sid, B.bid, B.sid FROM ShowSeats S, Bookings B"
+		+ " WHERE S.bid = B.bid AND B.bid >= ? AND S.sid <> B.sid";
+	static final String BOOKED_SEATS = "SELECT ssid, bid FROM ShowSeats WHERE bid >= ?";
+
+	/**
+	 * A booking a buyer made, with the seats it was told it got.  Only its
+	 * buyer changes it.
+	 */
+	static class Booking{
+		final long bid;
+		final long sid;
+		volatile long[] ssids;
+
+		Booking(long bid, long sid, long[] ssids){
+			this.bid = bid;
+			this.sid = sid;
+			this.ssids = ssids;
+		}
+	}//end Booking
+
+	/**
+	 * One try of an operation; throws when it lost a race or was refused.
+	 */
+	interface Attempt{
+		void run() throws SQLException;
+	}
+
+	private final Ticketmaster esql;
+	private final TicketOperations[] sessions;
+	private final int buyers;
+	private final int seconds;
+	private final int thinkMillis;
+	private final int maxSeats;
+	private final int retries;
+	private final double bestShare;
+	private final double changeShare;
+	private final double cancelShare;
+
+	private long[] shows;
+	private long[][] showSeats;
+	//cumulative popularity of shows[i], ending at 1
+	private double[] popularity;
+	private String[] emails;
+
+	//the live bookings of this run, by bid
+	private final ConcurrentHashMap<Long, Booking> ledger = new ConcurrentHashMap<Long, Booking>();
+	private final AtomicLong firstBid = new AtomicLong(Long.MAX_VALUE);
+
+	private final LatencyHistogram bookLatency = new LatencyHistogram();
+	private final LatencyHistogram changeLatency = new LatencyHistogram();
+	private final LatencyHistogram cancelLatency = new LatencyHistogram();
+	private final AtomicLong booked = new AtomicLong();
+	private final AtomicLong seatsBooked = new AtomicLong();
+	private final AtomicLong changed = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+	private final AtomicLong attempts = new AtomicLong();
+	private final AtomicLong aborts = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong gaveUp = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicInteger errorsPrinted = new AtomicInteger();
+
+	public BookingStress(Ticketmaster esql, int sessions, int buyers, int seconds, int thinkMillis, int maxSeats, int retries,
+			double bestShare, double changeShare, double cancelShare){
+		this.esql = esql;
+		this.sessions = new TicketOperations[Math.max(1, sessions)];
+		for (int i = 0; i < this.sessions.length; ++i){
+			this.sessions[i] = new TicketOperations(esql);
+		}//end for
+		this.buyers = buyers;
+		this.seconds = seconds;
+		this.thinkMillis = thinkMillis;
+		this.maxSeats = Math.max(1, maxSeats);
+		this.retries = retries;
+		this.bestShare = bestShare;
+		this.changeShare = changeShare;
+		this.cancelShare = cancelShare;
+	}
+
+	/**
+	 * Loads the shows buyers choose from, the n-th most popular with weight
+	 * 1 / n^skew, and the users they book as.
+	 */
+	public void prepare(int showCount, double skew) throws SQLException {
+		shows = esql.executeQueryAndReturnTable(SHOWS, showCount).getLongs(0);
+		if (shows.length == 0){
+			throw new IllegalStateException("No shows with seats to book");
+		}//end if
+		showSeats = new long[shows.length][];
+		popularity = new double[shows.length];
+		double total = 0;
+		for (int i = 0; i < shows.length; ++i){
+			showSeats[i] = esql.executeQueryAndReturnTable(SeatIndex.SHOW_SEATS, shows[i]).getLongs(0);
+			total += 1 / Math.pow(i + 1, skew);
+			popularity[i] = total;
+		}//end for
+		for (int i = 0; i < shows.length; ++i){
+			popularity[i] /= total;
+		}//end for
+		ResultTable users = esql.executeQueryAndReturnTable(EMAILS);
+		if (users.isEmpty()){
+			throw new IllegalStateException("No users to book as");
+		}//end if
+		emails = new String[users.size()];
+		for (int i = 0; i < emails.length; ++i){
+			emails[i] = users.getString(i, 0);
+		}//end for
+	}
+
+	/**
+	 * Runs all buyers for the given number of seconds and waits for them.
+	 *
+	 * @return the elapsed time in nanoseconds
+	 */
+	public long run() throws InterruptedException {
+		ExecutorService executor = buyerThreads();
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		for (int b = 0; b < buyers; ++b){
+			TicketOperations ops = sessions[b % sessions.length];
+			executor.execute(() -> buy(ops, end));
+		}//end for
+		executor.shutdown();
+		if (!executor.awaitTermination(seconds + 120L, TimeUnit.SECONDS)){
+			System.err.println("Buyers still running after " + (seconds + 120) + " s");
+		}//end if
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return a thread per buyer: virtual threads where the JDK has them
+	 *         (Java 21 and later), otherwise one platform thread each
+	 */
+	private ExecutorService buyerThreads(){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch (ReflectiveOperationException e){
+			return Executors.newFixedThreadPool(Math.max(1, buyers));
+		}//end try
+	}
+
+	/**
+	 * One buyer: thinks, then books, changes or cancels, until the end.
+	 */
+	private void buy(TicketOperations ops, long end){
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		List<Booking> own = new ArrayList<Booking>();
+		try{
+			while (System.nanoTime() < end){
+				Thread.sleep((long) (-thinkMillis * Math.log(1 - random.nextDouble())));
+				double r = random.nextDouble();
+				if (!own.isEmpty() && r < cancelShare){
+					Booking booking = own.get(random.nextInt(own.size()));
+					if (attempt(cancelLatency, () -> cancel(ops, booking))){
+						own.remove(booking);
+						cancelled.incrementAndGet();
+					}//end if
+				}else if (!own.isEmpty() && r < cancelShare + changeShare){
+					Booking booking = own.get(random.nextInt(own.size()));
+					if (attempt(changeLatency, () -> change(ops, booking, random))){
+						changed.incrementAndGet();
+					}//end if
+				}else{
+					Booking[] made = new Booking[1];
+					if (attempt(bookLatency, () -> made[0] = book(ops, random))){
+						own.add(made[0]);
+						booked.incrementAndGet();
+						seatsBooked.addAndGet(made[0].ssids.length);
+					}//end if
+				}//end if
+			}//end while
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}//end try
+	}
+
+	private Booking book(TicketOperations ops, ThreadLocalRandom random) throws SQLException {
+		int show = pickShow(random);
+		long sid = shows[show];
+		long[] seats = showSeats[show];
+		int count = 1 + random.nextInt(maxSeats);
+		String email = emails[random.nextInt(emails.length)];
+		long bid = ops.newBookingId();
+		firstBid.accumulateAndGet(bid, Math::min);
+		long[] ssids;
+		if (random.nextDouble() < bestShare){
+			long hold = ops.holdBestSeats(sid, count, null);
+			try{
+				long[] held = ops.getHolds().seats(hold);
+				ssids = Arrays.copyOfRange(held, 1, held.length);
+				ops.confirmHold(hold, bid, "Pending", email);
+			}finally{
+				ops.releaseHold(hold);
+			}//end try
+		}else{
+			int from = random.nextInt(Math.max(1, seats.length - count + 1));
+			ssids = Arrays.copyOfRange(seats, from, Math.min(seats.length, from + count));
+			ops.addBooking(bid, "Pending", sid, email, ssids);
+		}//end if
+		Booking booking = new Booking(bid, sid, ssids);
+		ledger.put(bid, booking);
+		return booking;
+	}
+
+	private void change(TicketOperations ops, Booking booking, ThreadLocalRandom random) throws SQLException {
+		long[] seats = showSeats[Arrays.binarySearch(shows, booking.sid)];
+		long[] ssids = booking.ssids;
+		int k = random.nextInt(ssids.length);
+		long newSsid = seats[random.nextInt(seats.length)];
+		ops.changeSeat(booking.bid, ssids[k], newSsid);
+		long[] moved = ssids.clone();
+		moved[k] = newSsid;
+		booking.ssids = moved;
+	}
+
+	private void cancel(TicketOperations ops, Booking booking) throws SQLException {
+		if (!ops.cancelPendingBooking(booking.bid)){
+			throw new IllegalArgumentException("Booking " + booking.bid + " is not pending");
+		}//end if
+		ledger.remove(booking.bid);
+	}
+
+	private int pickShow(ThreadLocalRandom random){
+		int i = Arrays.binarySearch(popularity, random.nextDouble());
+		return Math.min(shows.length - 1, i < 0 ? -i - 1 : i);
+	}
+
+	/**
+	 * Runs an operation, retrying it after a lost race.
+	 *
+	 * @return true when it succeeded
+	 */
+	private boolean attempt(LatencyHistogram latency, Attempt op) throws InterruptedException {
+		long start = System.nanoTime();
+		try{
+			for (int n = 0; ; ++n){
+				attempts.incrementAndGet();
+				try{
+					op.run();
+					return true;
+				}catch (IllegalArgumentException e){
+					if (!lostRace(e.getMessage())){
+						//sold out, not pending, another price: the answer, not a failure
+						rejected.incrementAndGet();
+						return false;
+					}//end if
+				}catch (SQLException e){
+					if (!retryable(e)){
+						error(e);
+						return false;
+					}//end if
+				}catch (RuntimeException e){
+					error(e);
+					return false;
+				}//end try
+				aborts.incrementAndGet();
+				if (n == retries){
+					gaveUp.incrementAndGet();
+					return false;
+				}//end if
+				retried.incrementAndGet();
+				Thread.sleep(ThreadLocalRandom.current().nextLong(1, 10L << Math.min(n, 6)));
+			}//end for
+		}finally{
+			latency.record(System.nanoTime() - start);
+		}//end try
+	}
+
+	private void error(Exception e){
+		errors.incrementAndGet();
+		if (errorsPrinted.getAndIncrement() < 5){
+			System.err.println("Error: " + e.getMessage());
+		}//end if
+	}
+
+	private static boolean lostRace(String message){
+		return message != null && (message.contains("not available") || message.contains("already taken"));
+	}
+
+	/**
+	 * @return true for serialization failures, deadlocks and unique
+	 *         violations, which a retry may get past
+	 */
+	private static boolean retryable(SQLException e){
+		String state = e.getSQLState();
+		return "40001".equals(state) || "40P01".equals(state) || "23505".equals(state);
+	}
+
+	/**
+	 * Prints throughput, abort rates and latencies of the run.
+	 */
+	public void report(long nanos){
+		double elapsed = nanos / 1e9;
+		long tries = attempts.get();
+		System.out.println(String.format("%d buyers in %d sessions for %d s over %d shows, think %d ms",
+			buyers, sessions.length, seconds, shows.length, thinkMillis));
+		System.out.println(String.format("committed %.1f ops/s: %d bookings (%d seats, %.1f seats/s), %d seat changes, %d cancellations",
+			(booked.get() + changed.get() + cancelled.get()) / elapsed, booked.get(), seatsBooked.get(), seatsBooked.get() / elapsed,
+			changed.get(), cancelled.get()));
+		System.out.println(String.format("attempts %d, aborts %d (%.1f%%), retries %d, gave up %d, rejected %d, errors %d",
+			tries, aborts.get(), tries == 0 ? 0 : 100.0 * aborts.get() / tries, retried.get(), gaveUp.get(), rejected.get(),
+			errors.get()));
+		latency("book", bookLatency);
+		latency("change", changeLatency);
+		latency("cancel", cancelLatency);
+	}
+
+	private static void latency(String name, LatencyHistogram histogram){
+		System.out.println(String.format("%-6s latency ms p50 %.2f p90 %.2f p99 %.2f max %.2f, %d operations", name,
+			histogram.getPercentile(0.5) / 1e6, histogram.getPercentile(0.9) / 1e6, histogram.getPercentile(0.99) / 1e6,
+			histogram.getMax() / 1e6, histogram.getCount()));
+	}
+
+	/**
+	 * Checks the bookings of this run, or all bookings when nothing was
+	 * booked by this instance, for double sales.  Seat counts are only
+	 * compared for the bookings of this run.
+	 *
+	 * @return the problems found, empty when there are none
+	 */
+	public List<String> check() throws SQLException {
+		boolean booked = firstBid.get() != Long.MAX_VALUE;
+		long from = booked ? firstBid.get() : Long.MIN_VALUE;
+		List<String> problems = new ArrayList<String>();
+		ResultTable rows = esql.executeQueryAndReturnTable(CANCELLED_SEATS, from);
+		for (int i = 0; i < rows.size(); ++i){
+			//the cancel did not release it, so nobody can buy it again
+			problems.add("show seat " + rows.getLong(i, 0) + " is still held by cancelled booking " + rows.getLong(i, 1));
+		}//end for
+		if (booked){
+			rows = esql.executeQueryAndReturnTable(SEAT_COUNTS, from);
+			for (int i = 0; i < rows.size(); ++i){
+				problems.add("booking " + rows.getLong(i, 0) + " has " + rows.getLong(i, 1) + " seats but "
+					+ rows.getLong(i, 2) + " show seats");
+			}//end for
+		}//end if
+		rows = esql.executeQueryAndReturnTable(FOREIGN_SEATS, from);
+		for (int i = 0; i < rows.size(); ++i){
+			problems.add("show seat " + rows.getLong(i, 0) + " of show " + rows.getLong(i, 1) + " is booked by booking "
+				+ rows.getLong(i, 2) + " of show " + rows.getLong(i, 3));
+		}//end for
+		if (!ledger.isEmpty()){
+			checkLedger(from, problems);
+		}//end if
+		return problems;
+	}
+
+	/**
+	 * Compares the seats each live booking of this run was sold with the
+	 * bookings that hold them in the database.
+	 */
+	private void checkLedger(long from, List<String> problems) throws SQLException {
+		Map<Long, Long> sold = new HashMap<Long, Long>();
+		for (Booking booking : ledger.values()){
+			for (long ssid : booking.ssids){
+				Long other = sold.put(ssid, booking.bid);
+				if (other != null){
+					problems.add("show seat " + ssid + " was sold to bookings " + other + " and " + booking.bid);
+				}//end if
+			}//end for
+		}//end for
+		ResultTable rows = esql.executeQueryAndReturnTable(BOOKED_SEATS, from);
+		Map<Long, Long> held = new HashMap<Long, Long>();
+		for (int i = 0; i < rows.size(); ++i){
+			held.put(rows.getLong(i, 0), rows.getLong(i, 1));
+			Long bid = sold.get(rows.getLong(i, 0));
+			if (bid == null || bid != rows.getLong(i, 1)){
+				problems.add("show seat " + rows.getLong(i, 0) + " is held by booking " + rows.getLong(i, 1) + " but was sold to "
+					+ (bid == null ? "no live booking of this run" : "booking " + bid));
+			}//end if
+		}//end for
+		for (Map.Entry<Long, Long> seat : sold.entrySet()){
+			if (!held.containsKey(seat.getKey())){
+				problems.add("show seat " + seat.getKey() + " was sold to booking " + seat.getValue() + " but is not held by it");
+			}//end if
+		}//end for
+	}
+
+	/**
+	 * The stress test entry point.
+	 *
+	 * @param args <dbname> <port> <user> [--buyers N] [--duration seconds]
+	 *        [--think ms] [--shows N] [--skew s] [--seats N] [--sessions N]
+	 *        [--retries N] [--best share] [--change share] [--cancel share]
+	 *        [--check-only]
+	 */
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + BookingStress.class.getName()
+				+ " <dbname> <port> <user> [--buyers N] [--duration seconds] [--think ms] [--shows N] [--skew s] [--seats N]"
+				+ " [--sessions N] [--retries N] [--best share] [--change share] [--cancel share] [--check-only]");
+			return;
+		}//end if
+
+		int buyers = 100, seconds = 30, think = 200, showCount = 20, seats = 4, sessions = 2, retries = 3;
+		double skew = 1.0, best = 0.5, change = 0.1, cancel = 0.1;
+		boolean checkOnly = false;
+		for (int i = 3; i < args.length; i += 2){
+			if (args[i].equals("--check-only")){
+				checkOnly = true;
+				--i;
+				continue;
+			}//end if
+			if (i + 1 == args.length){
+				System.err.println("Missing value of " + args[i]);
+				System.exit(2);
+			}//end if
+			switch (args[i]){
+				case "--buyers": buyers = Integer.parseInt(args[i + 1]); break;
+				case "--duration": seconds = Integer.parseInt(args[i + 1]); break;
+				case "--think": think = Integer.parseInt(args[i + 1]); break;
+				case "--shows": showCount = Integer.parseInt(args[i + 1]); break;
+				case "--skew": skew = Double.parseDouble(args[i + 1]); break;
+				case "--seats": seats = Integer.parseInt(args[i + 1]); break;
+				case "--sessions": sessions = Integer.parseInt(args[i + 1]); break;
+				case "--retries": retries = Integer.parseInt(args[i + 1]); break;
+				case "--best": best = Double.parseDouble(args[i + 1]); break;
+				case "--change": change = Double.parseDouble(args[i + 1]); break;
+				case "--cancel": cancel = Double.parseDouble(args[i + 1]); break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(2);
+			}//end switch
+		}//end for
+
+		Ticketmaster esql = null;
+		int status = 0;
+		try{
+			esql = new Ticketmaster(args[0], args[1], args[2], "");
+			BookingStress stress = new BookingStress(esql, sessions, buyers, seconds, think, seats, retries, best, change, cancel);
+			if (!checkOnly){
+				stress.prepare(showCount, skew);
+				stress.report(stress.run());
+			}//end if
+			List<String> problems = stress.check();
+			for (int i = 0; i < Math.min(20, problems.size()); ++i){
+				System.out.println("  " + problems.get(i));
+			}//end for
+			System.out.println(problems.isEmpty() ? "PASS: no seat sold twice"
+				: "FAIL: " + problems.size() + " problems" + (problems.size() > 20 ? ", first 20 shown" : ""));
+			status = problems.isEmpty() ? 0 : 1;
+		}catch (Exception e){
+			System.err.println(e.getMessage());
+			status = 1;
+		}finally{
+			if (esql != null){
+				esql.cleanup();
+			}//end if
+		}//end try
+		System.exit(status);
+	}
+}//end BookingStress
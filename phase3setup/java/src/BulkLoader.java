@@ -0,0 +1,359 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class loads the Ticketmaster CSV files into an existing schema with
+ * the client-side COPY protocol, so the files do not have to be copied into
+ * the server's data directory first.
+ *
+ * The load runs in three phases:
+ *
+ *   1. truncate all tables and drop their indexes and constraints, after
+ *      saving the DDL needed to rebuild them to bulkload-constraints.sql
+ *   2. stream every table from its CSV file, each table on its own
+ *      connection, starting a table once the tables it references are done
+ *   3. rebuild primary keys, unique constraints and indexes per table in
+ *      parallel, then the foreign keys, then restart the key sequences and
+ *      analyze the tables
+ *
+ * Rows per second are reported per table.
+ *
+ */
+
+public class BulkLoader{
+
+	/**
+	 * One table: its COPY column list, its NULL marker and the tables its
+	 * foreign keys point to.
+	 */
+	static class Table{
+		final String name;
+		final String columns;
+		final boolean emptyIsNull;
+		final String[] dependsOn;
+
+		Table(String name, String columns, boolean emptyIsNull, String... dependsOn){
+			this.name = name;
+			this.columns = columns;
+			this.emptyIsNull = emptyIsNull;
+			this.dependsOn = dependsOn;
+		}
+
+		String copySql(){
+			return "COPY " + name + " (" + columns + ") FROM STDIN WITH DELIMITER ','" + (emptyIsNull ? " NULL AS ''" : "");
+		}
+	}//end Table
+
+	//in dependency order, the column lists match create.sql
+	static final Table[] TABLES = {
+		new Table("Cities", "city_id, city_name, city_state, zip_code", false),
+		new Table("Cinemas", "cid, city_id, cname, tnum", false, "Cities"),
+		new Table("Theaters", "tid, cid, tname, tseats", false, "Cinemas"),
+		new Table("CinemaSeats", "csid, tid, sno, stype", false, "Theaters"),
+		new Table("Movies", "mvid, title, rdate, country, description, duration, lang, genre", false),
+		new Table("Users", "email, lname, fname, phone, pwd", false),
+		new Table("Shows", "sid, mvid, sdate, sttime, edtime", false, "Movies"),
+		new Table("Plays", "sid, tid", false, "Shows", "Theaters"),
+		new Table("Bookings", "bid, status, bdatetime, seats, sid, email", false, "Shows", "Users"),
+		new Table("Payments", "pid, bid, pmethod, pdatetime, amount, trid", false, "Bookings"),
+		new Table("ShowSeats", "ssid, sid, csid, bid, price", true, "Shows", "CinemaSeats", "Bookings"),
+	};
+
+	static final String[] SEQUENCES = {
+		"SELECT setval('bookings_bid_seq', (SELECT COALESCE(MAX(bid), 0) + 1 FROM Bookings), false)",
+		"SELECT setval('movies_mvid_seq', (SELECT COALESCE(MAX(mvid), 0) + 1 FROM Movies), false)",
+		"SELECT setval('shows_sid_seq', (SELECT COALESCE(MAX(sid), 0) + 1 FROM Shows), false)",
+	};
+
+	private final ConnectionPool pool;
+	private final File dataDir;
+	private final ExecutorService workers;
+
+	//DDL to rebuild what phase 1 dropped, per table
+	private final Map<String, List<String>> keys = new LinkedHashMap<String, List<String>>();
+	private final Map<String, List<String>> indexes = new LinkedHashMap<String, List<String>>();
+	private final Map<String, List<String>> foreignKeys = new LinkedHashMap<String, List<String>>();
+
+	public BulkLoader(ConnectionPool pool, File dataDir, int threads){
+		this.pool = pool;
+		this.dataDir = dataDir;
+		this.workers = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Runs all three phases.
+	 *
+	 * @throws Exception when any table or constraint fails
+	 */
+	public void load() throws Exception {
+		try{
+			long start = System.nanoTime();
+			dropConstraints();
+			Map<String, Long> rows = copyTables();
+			long copied = System.nanoTime();
+			rebuildConstraints();
+			long rebuilt = System.nanoTime();
+
+			long total = 0;
+			for (long n : rows.values()){
+				total += n;
+			}//end for
+			System.out.println(String.format("%-12s %12d rows in %8.2f s", "load", total, (copied - start) / 1e9));
+			System.out.println(String.format("%-12s %12s      in %8.2f s", "constraints", "", (rebuilt - copied) / 1e9));
+		}finally{
+			workers.shutdown();
+		}//end try
+	}//end load
+
+	/**
+	 * Phase 1: empties the tables and drops their foreign keys, primary and
+	 * unique keys and other indexes.
+	 */
+	private void dropConstraints() throws SQLException, IOException {
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		try{
+			Statement stmt = pc.getConnection().createStatement();
+			StringBuilder names = new StringBuilder();
+			for (Table t : TABLES){
+				names.append(names.length() > 0 ? "," : "").append("'").append(t.name.toLowerCase()).append("'");
+				keys.put(t.name, new ArrayList<String>());
+				indexes.put(t.name, new ArrayList<String>());
+				foreignKeys.put(t.name, new ArrayList<String>());
+			}//end for
+
+			List<String> drops = new ArrayList<String>();
+			List<String> dropKeys = new ArrayList<String>();
+			ResultSet rs = stmt.executeQuery(
+				"SELECT c.relname, k.conname, k.contype, pg_get_constraintdef(k.oid) FROM pg_constraint k, pg_class c "
+				+ "WHERE k.conrelid = c.oid AND c.relkind = 'r' AND c.relname IN (" + names + ") "
+				+ "AND c.relnamespace = (SELECT oid FROM pg_namespace WHERE nspname = current_schema()) AND k.contype IN ('p', 'u', 'f')");
+			while (rs.next()){
+				String table = tableName(rs.getString(1));
+				String ddl = "ALTER TABLE " + table + " ADD CONSTRAINT " + rs.getString(2) + " " + rs.getString(4);
+				String drop = "ALTER TABLE " + table + " DROP CONSTRAINT " + rs.getString(2);
+				if ("f".equals(rs.getString(3))){
+					foreignKeys.get(table).add(ddl);
+					drops.add(drop);
+				}else{
+					keys.get(table).add(ddl);
+					dropKeys.add(drop);
+				}//end if
+			}//end while
+			rs.close();
+
+			rs = stmt.executeQuery(
+				"SELECT i.tablename, i.indexname, i.indexdef FROM pg_indexes i WHERE i.schemaname = current_schema() "
+				+ "AND i.tablename IN (" + names + ") AND NOT EXISTS "
+				+ "(SELECT 1 FROM pg_constraint k WHERE k.conname = i.indexname AND k.contype IN ('p', 'u'))");
+			while (rs.next()){
+				indexes.get(tableName(rs.getString(1))).add(rs.getString(3));
+				dropKeys.add("DROP INDEX " + rs.getString(2));
+			}//end while
+			rs.close();
+
+			File saved = new File("bulkload-constraints.sql");
+			if (drops.isEmpty() && dropKeys.isEmpty() && saved.length() > 0){
+				//a previous load stopped before phase 3, keeps its saved DDL
+				throw new SQLException("No constraints found; a previous load did not finish. "
+					+ "Restore them with: psql -f " + saved.getAbsolutePath());
+			}//end if
+			saveDdl(saved);
+
+			StringBuilder truncate = new StringBuilder("TRUNCATE ");
+			for (int i = 0; i < TABLES.length; ++i){
+				truncate.append(i > 0 ? ", " : "").append(TABLES[i].name);
+			}//end for
+			stmt.executeUpdate(truncate.toString());
+
+			//foreign keys go first, they depend on the keys they reference
+			drops.addAll(dropKeys);
+			for (String drop : drops){
+				stmt.executeUpdate(drop);
+			}//end for
+			stmt.close();
+			System.out.println("Dropped " + drops.size() + " constraints and indexes, saved to bulkload-constraints.sql");
+		}finally{
+			pool.release(pc);
+		}//end try
+	}//end dropConstraints
+
+	/**
+	 * Phase 2: streams every table, each once the tables it references are
+	 * loaded.
+	 *
+	 * @return rows loaded per table
+	 */
+	private Map<String, Long> copyTables() throws Exception {
+		Map<String, CompletableFuture<Long>> loads = new HashMap<String, CompletableFuture<Long>>();
+		Map<String, Long> rows = new LinkedHashMap<String, Long>();
+		for (Table t : TABLES){
+			CompletableFuture<?>[] deps = new CompletableFuture<?>[t.dependsOn.length];
+			for (int i = 0; i < deps.length; ++i){
+				deps[i] = loads.get(t.dependsOn[i]);
+			}//end for
+			final Table table = t;
+			loads.put(t.name, CompletableFuture.allOf(deps).thenApplyAsync(ignored -> copy(table), workers));
+		}//end for
+
+		try{
+			for (Table t : TABLES){
+				rows.put(t.name, loads.get(t.name).join());
+			}//end for
+		}catch (CompletionException e){
+			throw (Exception) e.getCause();
+		}//end try
+		return rows;
+	}//end copyTables
+
+	private long copy(Table t){
+		File file = new File(dataDir, t.name + ".csv");
+		ConnectionPool.PooledConnection pc = null;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 20)){
+			pc = pool.borrow();
+			CopyManager copy = pc.getConnection().unwrap(PGConnection.class).getCopyAPI();
+			long start = System.nanoTime();
+			long rows = copy.copyIn(t.copySql(), in, 1 << 16);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("%-12s %12d rows in %8.2f s %12.0f rows/s", t.name, rows, seconds, rows / Math.max(seconds, 1e-9)));
+			return rows;
+		}catch (SQLException | IOException e){
+			throw new CompletionException(new SQLException("Loading " + file + " failed: " + e.getMessage(), e));
+		}finally{
+			if (pc != null){
+				pool.release(pc);
+			}//end if
+		}//end try
+	}//end copy
+
+	/**
+	 * Phase 3: rebuilds keys and indexes per table in parallel, then the
+	 * foreign keys, then restarts the sequences and refreshes statistics.
+	 */
+	private void rebuildConstraints() throws Exception {
+		runPerTable(keys, indexes);
+		runPerTable(foreignKeys, null);
+
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		try{
+			Statement stmt = pc.getConnection().createStatement();
+			for (String sql : SEQUENCES){
+				stmt.execute(sql);
+			}//end for
+			stmt.execute("ANALYZE");
+			stmt.close();
+		}finally{
+			pool.release(pc);
+		}//end try
+	}
+
+	private void runPerTable(Map<String, List<String>> first, Map<String, List<String>> then) throws Exception {
+		List<CompletableFuture<Void>> jobs = new ArrayList<CompletableFuture<Void>>();
+		for (Table t : TABLES){
+			final List<String> ddl = new ArrayList<String>(first.get(t.name));
+			if (then != null){
+				ddl.addAll(then.get(t.name));
+			}//end if
+			if (ddl.isEmpty()){
+				continue;
+			}//end if
+			jobs.add(CompletableFuture.runAsync(() -> execute(ddl), workers));
+		}//end for
+		try{
+			CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0])).join();
+		}catch (CompletionException e){
+			throw (Exception) e.getCause();
+		}//end try
+	}
+
+	private void execute(List<String> ddl){
+		ConnectionPool.PooledConnection pc = null;
+		try{
+			pc = pool.borrow();
+			Statement stmt = pc.getConnection().createStatement();
+			for (String sql : ddl){
+				stmt.executeUpdate(sql);
+			}//end for
+			stmt.close();
+		}catch (SQLException e){
+			throw new CompletionException(e);
+		}finally{
+			if (pc != null){
+				pool.release(pc);
+			}//end if
+		}//end try
+	}
+
+	private void saveDdl(File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(file, "UTF-8")){
+			List<Map<String, List<String>>> phases = new ArrayList<Map<String, List<String>>>();
+			phases.add(keys);
+			phases.add(indexes);
+			phases.add(foreignKeys);
+			for (Map<String, List<String>> ddl : phases){
+				for (List<String> statements : ddl.values()){
+					for (String sql : statements){
+						out.println(sql + ";");
+					}//end for
+				}//end for
+			}//end for
+		}//end try
+	}
+
+	private static String tableName(String relname){
+		for (Table t : TABLES){
+			if (t.name.equalsIgnoreCase(relname)){
+				return t.name;
+			}//end if
+		}//end for
+		return relname;
+	}
+
+	/**
+	 * The bulk load entry point.
+	 *
+	 * @param args <dbname> <port> <user> [data directory]
+	 */
+	public static void main(String[] args){
+		if (args.length < 3 || args.length > 4){
+			System.err.println("Usage: java [-classpath <classpath>] " + BulkLoader.class.getName()
+				+ " <dbname> <port> <user> [data directory]");
+			return;
+		}//end if
+
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		File dataDir = new File(args.length == 4 ? args[3] : "../data");
+		int threads = Integer.getInteger("ticketmaster.load.threads", Runtime.getRuntime().availableProcessors());
+
+		ConnectionPool pool = null;
+		try{
+			pool = new ConnectionPool(url, args[2], "", 0, threads + 1, 60000L, 0L);
+			new BulkLoader(pool, dataDir, threads).load();
+		}catch (Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			if (pool != null){
+				pool.close();
+			}//end if
+		}//end try
+	}
+}//end BulkLoader
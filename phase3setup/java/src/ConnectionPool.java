@@ -0,0 +1,351 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines a pool of physical PostgreSQL connections shared by all
+ * sessions of one process.  The pool keeps between a minimum and a maximum
+ * number of connections, validates connections that sat idle before handing
+ * them out, closes connections that stay idle too long and reports
+ * connections that are held longer than the leak threshold.
+ *
+ * All settings can be overridden with -Dticketmaster.pool.* system properties.
+ *
+ * A read-only pool opens its connections with setReadOnly(true) and
+ * repeatable read isolation, so each transaction on them reads one
+ * snapshot and cannot write; it may point at a replica.
+ *
+ */
+
+public class ConnectionPool{
+
+	/**
+	 * A physical connection together with its statement cache and the
+	 * bookkeeping the pool needs for eviction and leak detection.
+	 */
+	public static class PooledConnection{
+		final Connection connection;
+		final StatementCache statements;
+		volatile long lastUsed;
+		volatile long borrowedAt;
+		volatile Throwable borrowSite;
+		volatile boolean leakReported;
+
+		PooledConnection(Connection connection){
+			this.connection = connection;
+			this.statements = new StatementCache(connection);
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		public Connection getConnection(){
+			return connection;
+		}
+
+		public StatementCache getStatements(){
+			return statements;
+		}
+	}//end PooledConnection
+
+	private final String url;
+	private final String user;
+	private final String passwd;
+
+	private final int minSize;
+	private final int maxSize;
+	private final long idleTimeout;
+	private final long validateAfter;
+	private final long leakThreshold;
+	private final long borrowTimeout;
+	private final boolean readOnly;
+
+	//idle connections, most recently used first
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+	private final Set<PooledConnection> active = ConcurrentHashMap.newKeySet();
+	//one permit per connection that may still be handed out
+	private final Semaphore permits;
+	private final AtomicInteger size = new AtomicInteger();
+	private final ScheduledExecutorService housekeeper;
+
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+	private final AtomicLong invalid = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+	private volatile boolean closed = false;
+
+	public ConnectionPool(String url, String user, String passwd) throws SQLException {
+		this(url, user, passwd,
+			Integer.getInteger("ticketmaster.pool.min", 1),
+			Integer.getInteger("ticketmaster.pool.max", 2 * Runtime.getRuntime().availableProcessors()),
+			Long.getLong("ticketmaster.pool.idleTimeout", 300000L),
+			Long.getLong("ticketmaster.pool.leakThreshold", 60000L));
+	}
+
+	/**
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param minSize connections kept open even when idle
+	 * @param maxSize upper bound on open connections
+	 * @param idleTimeout milliseconds after which an idle connection above
+	 *        minSize is closed
+	 * @param leakThreshold milliseconds a connection may stay borrowed before
+	 *        it is reported as leaked
+	 * @throws java.sql.SQLException when the initial connections fail
+	 */
+	public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+			long idleTimeout, long leakThreshold) throws SQLException {
+		this(url, user, passwd, minSize, maxSize, idleTimeout, leakThreshold, false);
+	}
+
+	/**
+	 * @param readOnly true to open read-only, repeatable read connections
+	 * @see #ConnectionPool(String, String, String, int, int, long, long)
+	 */
+	public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+			long idleTimeout, long leakThreshold, boolean readOnly) throws SQLException {
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize){
+			throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+		}//end if
+		this.url = url;
+		this.user = user;
+		this.passwd = passwd;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.idleTimeout = idleTimeout;
+		this.leakThreshold = leakThreshold;
+		this.readOnly = readOnly;
+		this.validateAfter = Long.getLong("ticketmaster.pool.validateAfter", 1000L);
+		this.borrowTimeout = Long.getLong("ticketmaster.pool.borrowTimeout", 30000L);
+		this.permits = new Semaphore(maxSize, true);
+
+		for (int i = 0; i < minSize; ++i){
+			size.incrementAndGet();
+			idle.addLast(open());
+		}//end for
+
+		this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, readOnly ? "ticketmaster-read-pool-housekeeper" : "ticketmaster-pool-housekeeper");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000L, Math.min(idleTimeout, leakThreshold) / 4);
+		this.housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrows a connection, waiting up to the borrow timeout when all
+	 * connections are in use.  The connection must be given back with
+	 * release().
+	 *
+	 * @return a validated connection in autocommit mode
+	 * @throws java.sql.SQLException when the pool is exhausted or closed
+	 */
+	public PooledConnection borrow() throws SQLException {
+		if (closed){
+			throw new SQLException("Connection pool is closed");
+		}//end if
+		try{
+			if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)){
+				throw new SQLException("Timed out after " + borrowTimeout + " ms waiting for a connection (" + maxSize + " in use)");
+			}//end if
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection");
+		}//end try
+
+		try{
+			PooledConnection pc;
+			while ((pc = idle.pollFirst()) != null){
+				if (System.currentTimeMillis() - pc.lastUsed < validateAfter || pc.connection.isValid(5)){
+					break;
+				}//end if
+				invalid.incrementAndGet();
+				discard(pc);
+			}//end while
+			if (pc == null){
+				size.incrementAndGet();
+				try{
+					pc = open();
+				}catch (SQLException e){
+					size.decrementAndGet();
+					throw e;
+				}//end try
+			}//end if
+
+			pc.borrowedAt = System.currentTimeMillis();
+			pc.borrowSite = leakThreshold > 0 ? new Throwable("Connection borrowed here") : null;
+			pc.leakReported = false;
+			active.add(pc);
+			borrows.incrementAndGet();
+			return pc;
+		}catch (SQLException | RuntimeException e){
+			permits.release();
+			throw e;
+		}//end try
+	}//end borrow
+
+	/**
+	 * Gives a borrowed connection back to the pool.  Connections left in a
+	 * transaction are rolled back; broken connections are closed.
+	 *
+	 * @param pc the connection returned by borrow()
+	 */
+	public void release(PooledConnection pc){
+		if (!active.remove(pc)){
+			return;
+		}//end if
+		pc.borrowSite = null;
+		pc.lastUsed = System.currentTimeMillis();
+		try{
+			if (!pc.connection.getAutoCommit()){
+				pc.connection.rollback();
+				pc.connection.setAutoCommit(true);
+			}//end if
+			if (closed){
+				discard(pc);
+			}else{
+				idle.addFirst(pc);
+			}//end if
+		}catch (SQLException e){
+			discard(pc);
+		}finally{
+			permits.release();
+		}//end try
+	}//end release
+
+	/**
+	 * Closes all idle connections and stops the housekeeper.  Borrowed
+	 * connections are closed when they are released.
+	 */
+	public void close(){
+		closed = true;
+		housekeeper.shutdownNow();
+		PooledConnection pc;
+		while ((pc = idle.pollFirst()) != null){
+			discard(pc);
+		}//end while
+	}//end close
+
+	/**
+	 * Closes idle connections above the minimum size, refills the pool up to
+	 * the minimum size and reports connections held past the leak threshold.
+	 */
+	private void housekeep(){
+		long now = System.currentTimeMillis();
+
+		//evicts from the least recently used end
+		Iterator<PooledConnection> it = idle.descendingIterator();
+		while (it.hasNext() && size.get() > minSize){
+			PooledConnection pc = it.next();
+			if (now - pc.lastUsed > idleTimeout && idle.remove(pc)){
+				evicted.incrementAndGet();
+				discard(pc);
+			}//end if
+		}//end while
+
+		while (!closed && size.get() < minSize){
+			size.incrementAndGet();
+			try{
+				idle.addLast(open());
+			}catch (SQLException e){
+				size.decrementAndGet();
+				System.err.println("Connection pool: unable to refill: " + e.getMessage());
+				break;
+			}//end try
+		}//end while
+
+		if (leakThreshold > 0){
+			for (PooledConnection pc : active){
+				Throwable site = pc.borrowSite;
+				if (!pc.leakReported && site != null && now - pc.borrowedAt > leakThreshold){
+					pc.leakReported = true;
+					leaks.incrementAndGet();
+					System.err.println("Connection pool: connection held for " + (now - pc.borrowedAt) + " ms, possible leak");
+					site.printStackTrace();
+				}//end if
+			}//end for
+		}//end if
+	}//end housekeep
+
+	private PooledConnection open() throws SQLException {
+		created.incrementAndGet();
+		Connection connection = DriverManager.getConnection(url, user, passwd);
+		if (readOnly){
+			try{
+				connection.setReadOnly(true);
+				connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			}catch (SQLException e){
+				connection.close();
+				throw e;
+			}//end try
+		}//end if
+		return new PooledConnection(connection);
+	}
+
+	private void discard(PooledConnection pc){
+		size.decrementAndGet();
+		pc.statements.close();
+		try{
+			pc.connection.close();
+		}catch (SQLException e){
+			// ignored.
+		}//end try
+	}
+
+	public int getSize(){
+		return size.get();
+	}
+
+	public boolean isReadOnly(){
+		return readOnly;
+	}
+
+	public int getMaxSize(){
+		return maxSize;
+	}
+
+	public int getActive(){
+		return active.size();
+	}
+
+	public int getIdle(){
+		return idle.size();
+	}
+
+	public long getLeaks(){
+		return leaks.get();
+	}
+
+	/**
+	 * @return pool counters plus the statement cache counters summed over the
+	 *         open connections
+	 */
+	public String toString(){
+		long hits = 0, misses = 0, evictions = 0;
+		for (PooledConnection pc : idle){
+			hits += pc.statements.getHits();
+			misses += pc.statements.getMisses();
+			evictions += pc.statements.getEvictions();
+		}//end for
+		for (PooledConnection pc : active){
+			hits += pc.statements.getHits();
+			misses += pc.statements.getMisses();
+			evictions += pc.statements.getEvictions();
+		}//end for
+		return (readOnly ? "Read pool: " : "Connection pool: ") + size.get() + " open (" + active.size() + " active, " + idle.size() + " idle, max "
+			+ maxSize + "), " + borrows.get() + " borrows, " + created.get() + " created, " + evicted.get() + " evicted, "
+			+ invalid.get() + " invalid, " + leaks.get() + " leaks\n"
+			+ "Statement cache: " + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+	}
+}//end ConnectionPool
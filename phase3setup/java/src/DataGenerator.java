@@ -0,0 +1,451 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class writes a synthetic Ticketmaster data set in the CSV layout of
+ * create.sql (and of phase3setup/data), with valid foreign keys between all
+ * tables, ready for createdb.sh or BulkLoader.
+ *
+ * Size grows linearly with the scale factor: scale 1 gives 2,000 shows and
+ * roughly 300,000 show seats, scale 100 roughly 30 million.  Show popularity
+ * and the users making bookings follow Zipf distributions whose exponents
+ * set the skew (0 is uniform).  Every row is derived from the seed and its
+ * own ID, so the output is the same for any number of threads.
+ *
+ * Rows are generated in chunks on a thread pool and written in order by a
+ * single writer, with a bounded number of chunks in flight, so memory use
+ * stays flat for any scale.
+ *
+ */
+
+public class DataGenerator{
+	static final String[] STATES = {"CA", "NY", "TX", "FL", "IL", "WA", "OR", "NJ", "MA", "AZ", "CO", "GA"};
+	static final String[] CITIES = {"Springfield", "Riverside", "Franklin", "Greenville", "Bristol", "Clinton",
+		"Fairview", "Salem", "Madison", "Georgetown", "Arlington", "Ashland", "Dover", "Oxford", "Jackson", "Burlington"};
+	static final String[] CHAINS = {"Regal Cinemas", "AMC Theatres", "Cinemark", "Studio Movie Grill", "Harkins Theaters",
+		"Marcus Theatres", "IMAX Corporation", "General Cinemas", "Landmark Theatres", "Alamo Drafthouse"};
+	static final String[] ADJECTIVES = {"Endless", "Silent", "Crimson", "Last", "Hidden", "Golden", "Broken", "Wild",
+		"Lost", "Eternal", "Midnight", "Frozen", "Little", "Dark", "Brave", "Secret"};
+	static final String[] NOUNS = {"Love", "Summer", "Kingdom", "River", "Empire", "Garden", "Storm", "Journey",
+		"Heart", "Mountain", "City", "Dream", "Shadow", "Legacy", "Horizon", "Promise"};
+	static final String[] COUNTRIES = {"United States", "United Kingdom", "France", "Germany", "Japan", "India", "Canada"};
+	static final String[] LANGS = {"en", "en", "en", "de", "fr", "es", "ja", "hi"};
+	static final String[] GENRES = {"Action", "Drama", "Comedy", "Horror", "Romance", "Animation", "Thriller", "Documentary"};
+	static final String[] FIRST = {"Armand", "Alberto", "Wyatt", "Jenee", "Davina", "Maria", "Kenji", "Priya", "Lucas",
+		"Amara", "Noah", "Elena", "Omar", "Grace", "Ivan", "Sofia"};
+	static final String[] LAST = {"Enderle", "Scarlett", "Ruoff", "Gales", "Trevathan", "Nguyen", "Garcia", "Smith",
+		"Kowalski", "Okafor", "Tanaka", "Rossi", "Meyer", "Silva", "Cohen", "Patel"};
+	static final String[] PMETHODS = {"Credit Card", "Cash", "Debit Card", "PayPal"};
+	static final LocalDate FIRST_SHOW_DATE = LocalDate.of(2019, 1, 1);
+	static final int SHOW_DAYS = 730;
+
+	//rows per chunk handed to one thread
+	static final int CHUNK = 2000;
+
+	private final File dir;
+	private final long seed;
+	private final int threads;
+
+	final int cities, cinemas, theatersPerCinema, theaters, movies, users, shows;
+	final double fill;
+
+	//seats per theater, the theater of every show, and the ID bases derived from them
+	final int[] theaterSeats;
+	final long[] csidBase;
+	final int[] showTheater;
+	final long[] ssidBase;
+	final int[] showBookings;
+	final long[] bidBase;
+	final double[] showFill;
+	final Zipf movieZipf;
+	final Zipf userZipf;
+
+	public DataGenerator(File dir, double scale, long seed, int threads, double showSkew, double userSkew, double fill){
+		this.dir = dir;
+		this.seed = seed;
+		this.threads = threads;
+		this.fill = fill;
+
+		double root = Math.sqrt(scale);
+		cities = (int) Math.ceil(300 * root);
+		cinemas = (int) Math.ceil(1000 * root);
+		theatersPerCinema = 4;
+		theaters = cinemas * theatersPerCinema;
+		movies = (int) Math.ceil(100 * root);
+		users = (int) Math.ceil(1000 * scale);
+		shows = (int) Math.ceil(2000 * scale);
+
+		movieZipf = new Zipf(movies, showSkew);
+		userZipf = new Zipf(users, userSkew);
+
+		theaterSeats = new int[theaters + 1];
+		csidBase = new long[theaters + 2];
+		for (int tid = 1; tid <= theaters; ++tid){
+			theaterSeats[tid] = 50 + random(5, tid).nextInt(251);
+			csidBase[tid + 1] = csidBase[tid] + theaterSeats[tid];
+		}//end for
+
+		//popularity rank of a show is a fixed permutation of its ID
+		showFill = new double[shows + 1];
+		double mean = 0;
+		for (int r = 1; r <= shows; ++r){
+			mean += Math.pow(r, -showSkew);
+		}//end for
+		mean /= shows;
+		long step = coprimeStep(shows);
+		for (int sid = 1; sid <= shows; ++sid){
+			long rank = (sid * step) % shows + 1;
+			showFill[sid] = Math.min(1.0, fill * Math.pow(rank, -showSkew) / mean);
+		}//end for
+
+		showTheater = new int[shows + 1];
+		ssidBase = new long[shows + 2];
+		showBookings = new int[shows + 1];
+		bidBase = new long[shows + 2];
+		for (int sid = 1; sid <= shows; ++sid){
+			showTheater[sid] = 1 + random(7, sid).nextInt(theaters);
+			ssidBase[sid + 1] = ssidBase[sid] + theaterSeats[showTheater[sid]];
+			showBookings[sid] = bookingSizes(sid).length;
+			bidBase[sid + 1] = bidBase[sid] + showBookings[sid];
+		}//end for
+	}
+
+	/**
+	 * Writes all eleven CSV files.
+	 */
+	public void generate() throws Exception {
+		dir.mkdirs();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try{
+			table(pool, cities, new String[]{"Cities"}, this::cities);
+			table(pool, cinemas, new String[]{"Cinemas"}, this::cinemas);
+			table(pool, theaters, new String[]{"Theaters"}, this::theaters);
+			table(pool, theaters, new String[]{"CinemaSeats"}, this::cinemaSeats);
+			table(pool, movies, new String[]{"Movies"}, this::movies);
+			table(pool, users, new String[]{"Users"}, this::users);
+			table(pool, shows, new String[]{"Shows", "Plays"}, this::shows);
+			table(pool, shows, new String[]{"Bookings", "Payments", "ShowSeats"}, this::showSales);
+		}finally{
+			pool.shutdown();
+		}//end try
+	}
+
+	/**
+	 * Generates the rows for IDs lo..hi-1 into one buffer per output file.
+	 */
+	interface ChunkWriter{
+		void write(int lo, int hi, StringBuilder[] out);
+	}
+
+	private void table(ExecutorService pool, int count, String[] names, ChunkWriter writer) throws Exception {
+		long start = System.nanoTime();
+		OutputStream[] files = new OutputStream[names.length];
+		long[] bytes = new long[names.length];
+		for (int i = 0; i < names.length; ++i){
+			files[i] = new BufferedOutputStream(new FileOutputStream(new File(dir, names[i] + ".csv")), 1 << 20);
+		}//end for
+		try{
+			ArrayDeque<Future<byte[][]>> inFlight = new ArrayDeque<Future<byte[][]>>();
+			for (int lo = 1; lo <= count || !inFlight.isEmpty(); ){
+				while (lo <= count && inFlight.size() < 2 * threads){
+					final int from = lo, to = Math.min(count + 1, lo + CHUNK);
+					inFlight.add(pool.submit(() -> {
+						StringBuilder[] out = new StringBuilder[names.length];
+						for (int i = 0; i < out.length; ++i){
+							out[i] = new StringBuilder(64 * (to - from));
+						}//end for
+						writer.write(from, to, out);
+						byte[][] parts = new byte[out.length][];
+						for (int i = 0; i < out.length; ++i){
+							parts[i] = out[i].toString().getBytes(StandardCharsets.UTF_8);
+						}//end for
+						return parts;
+					}));
+					lo = to;
+				}//end while
+				byte[][] parts = inFlight.poll().get();
+				for (int i = 0; i < parts.length; ++i){
+					files[i].write(parts[i]);
+					bytes[i] += parts[i].length;
+				}//end for
+			}//end for
+		}finally{
+			for (OutputStream f : files){
+				f.close();
+			}//end for
+		}//end try
+		double seconds = (System.nanoTime() - start) / 1e9;
+		for (int i = 0; i < names.length; ++i){
+			System.out.println(String.format("%-12s %10.1f MB in %7.2f s", names[i], bytes[i] / 1e6, seconds));
+		}//end for
+	}
+
+	private void cities(int lo, int hi, StringBuilder[] out){
+		for (int id = lo; id < hi; ++id){
+			SplittableRandom r = random(1, id);
+			out[0].append(id).append(',').append(pick(r, CITIES)).append(',').append(pick(r, STATES)).append(',')
+				.append(10000 + r.nextInt(90000)).append('\n');
+		}//end for
+	}
+
+	private void cinemas(int lo, int hi, StringBuilder[] out){
+		for (int id = lo; id < hi; ++id){
+			SplittableRandom r = random(2, id);
+			out[0].append(id).append(',').append(1 + r.nextInt(cities)).append(',').append(CHAINS[id % CHAINS.length])
+				.append(',').append(theatersPerCinema).append('\n');
+		}//end for
+	}
+
+	private void theaters(int lo, int hi, StringBuilder[] out){
+		for (int tid = lo; tid < hi; ++tid){
+			int cid = (tid - 1) / theatersPerCinema + 1;
+			out[0].append(tid).append(',').append(cid).append(',').append(CHAINS[cid % CHAINS.length]).append(" Theaters ")
+				.append((tid - 1) % theatersPerCinema + 1).append(',').append(theaterSeats[tid]).append('\n');
+		}//end for
+	}
+
+	private void cinemaSeats(int lo, int hi, StringBuilder[] out){
+		for (int tid = lo; tid < hi; ++tid){
+			int seats = theaterSeats[tid];
+			int handicap = Math.max(1, seats / 20);
+			for (int sno = 1; sno <= seats; ++sno){
+				out[0].append(csidBase[tid] + sno).append(',').append(tid).append(',').append(sno).append(',')
+					.append(sno <= handicap ? "Handicap" : "Regular").append('\n');
+			}//end for
+		}//end for
+	}
+
+	private void movies(int lo, int hi, StringBuilder[] out){
+		for (int id = lo; id < hi; ++id){
+			SplittableRandom r = random(3, id);
+			LocalDate rdate = LocalDate.of(1990, 1, 1).plusDays(r.nextInt(365 * 34));
+			out[0].append(id).append(',').append(pick(r, ADJECTIVES)).append(' ').append(pick(r, NOUNS)).append(',');
+			date(out[0], rdate).append(',').append(pick(r, COUNTRIES)).append(',').append(pick(r, GENRES))
+				.append(" about ").append(pick(r, NOUNS).toLowerCase()).append(',').append(movieDuration(id)).append(',')
+				.append(pick(r, LANGS)).append(',').append(pick(r, GENRES)).append('\n');
+		}//end for
+	}
+
+	private void users(int lo, int hi, StringBuilder[] out){
+		for (int id = lo; id < hi; ++id){
+			SplittableRandom r = random(4, id);
+			String fname = pick(r, FIRST), lname = pick(r, LAST);
+			out[0].append(email(id)).append(',').append(lname).append(',').append(fname).append(',')
+				.append(2000000000L + r.nextLong(7999999999L)).append(',');
+			for (int i = 0; i < 4; ++i){
+				String hex = Long.toHexString(r.nextLong());
+				for (int k = hex.length(); k < 16; ++k){
+					out[0].append('0');
+				}//end for
+				out[0].append(hex);
+			}//end for
+			out[0].append('\n');
+		}//end for
+	}
+
+	private void shows(int lo, int hi, StringBuilder[] out){
+		for (int sid = lo; sid < hi; ++sid){
+			SplittableRandom r = random(6, sid);
+			int mvid = movieZipf.sample(r) + 1;
+			int start = 10 * 60 + 15 * r.nextInt(48);
+			int end = Math.min(23 * 60 + 59, start + movieDuration(mvid) / 60 + 15);
+			out[0].append(sid).append(',').append(mvid).append(',');
+			date(out[0], showDate(sid)).append(',');
+			time(out[0], start).append(',');
+			time(out[0], end).append('\n');
+			out[1].append(sid).append(',').append(showTheater[sid]).append('\n');
+		}//end for
+	}
+
+	/**
+	 * Bookings, payments and show seats of a range of shows.  Each booking
+	 * takes a run of adjacent seats; cancelled bookings have given their
+	 * seats back.
+	 */
+	private void showSales(int lo, int hi, StringBuilder[] out){
+		for (int sid = lo; sid < hi; ++sid){
+			int tid = showTheater[sid];
+			int seats = theaterSeats[tid];
+			int[] sizes = bookingSizes(sid);
+			SplittableRandom r = random(9, sid);
+			int price = 6 + r.nextInt(7);
+			int first = r.nextInt(seats);
+			LocalDate sdate = showDate(sid);
+
+			long[] seatBid = new long[seats + 1];
+			int next = first;
+			for (int b = 0; b < sizes.length; ++b){
+				long bid = bidBase[sid] + b + 1;
+				int roll = r.nextInt(100);
+				String status = roll < 70 ? "Paid" : roll < 90 ? "Pending" : "Cancelled";
+				LocalDate bdate = sdate.minusDays(1 + r.nextInt(60));
+				int minute = r.nextInt(24 * 60);
+				String email = email(userZipf.sample(r) + 1);
+
+				out[0].append(bid).append(',').append(status).append(',');
+				date(out[0], bdate).append(' ');
+				time(out[0], minute).append(',').append(sizes[b]).append(',').append(sid).append(',').append(email).append('\n');
+
+				if ("Paid".equals(status)){
+					out[1].append(bid).append(',').append(bid).append(',').append(pick(r, PMETHODS)).append(',');
+					date(out[1], bdate).append(' ');
+					time(out[1], minute).append(',').append(price * sizes[b]).append(',')
+						.append(10000000 + r.nextInt(90000000)).append('\n');
+				}//end if
+				for (int k = 0; k < sizes[b]; ++k){
+					if (!"Cancelled".equals(status)){
+						seatBid[next % seats + 1] = bid;
+					}//end if
+					next++;
+				}//end for
+			}//end for
+
+			for (int sno = 1; sno <= seats; ++sno){
+				out[2].append(ssidBase[sid] + sno).append(',').append(sid).append(',').append(csidBase[tid] + sno).append(',');
+				if (seatBid[sno] != 0){
+					out[2].append(seatBid[sno]);
+				}//end if
+				out[2].append(',').append(price).append('\n');
+			}//end for
+		}//end for
+	}
+
+	/**
+	 * @return the seat count of every booking of a show; the same for both
+	 *         passes since it only depends on the seed and the show
+	 */
+	private int[] bookingSizes(int sid){
+		SplittableRandom r = random(8, sid);
+		int sold = (int) Math.round(showFill[sid] * theaterSeats[showTheater[sid]] * (0.5 + r.nextDouble()));
+		sold = Math.min(sold, theaterSeats[showTheater[sid]]);
+		int[] sizes = new int[Math.max(1, sold)];
+		int n = 0;
+		while (sold > 0){
+			int size = Math.min(sold, 1 + r.nextInt(6));
+			sizes[n++] = size;
+			sold -= size;
+		}//end while
+		return Arrays.copyOf(sizes, n);
+	}
+
+	private LocalDate showDate(int sid){
+		return FIRST_SHOW_DATE.plusDays(random(10, sid).nextInt(SHOW_DAYS));
+	}
+
+	private int movieDuration(int mvid){
+		return 5400 + random(11, mvid).nextInt(3600);
+	}
+
+	private static String email(int id){
+		return "user" + id + "@example.com";
+	}
+
+	private SplittableRandom random(int table, long id){
+		//splitmix64 finalizer, so neighbouring IDs get unrelated streams
+		long z = seed + table * 0x9E3779B97F4A7C15L + id * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return new SplittableRandom(z ^ (z >>> 31));
+	}
+
+	private static String pick(SplittableRandom r, String[] values){
+		return values[r.nextInt(values.length)];
+	}
+
+	private static StringBuilder date(StringBuilder out, LocalDate d){
+		return out.append(d.getMonthValue()).append('/').append(d.getDayOfMonth()).append('/').append(d.getYear());
+	}
+
+	private static StringBuilder time(StringBuilder out, int minutes){
+		out.append(minutes / 60).append(':');
+		if (minutes % 60 < 10){
+			out.append('0');
+		}//end if
+		return out.append(minutes % 60);
+	}
+
+	private static long coprimeStep(int n){
+		long step = 1000003;
+		while (gcd(step, n) != 1){
+			step += 2;
+		}//end while
+		return step;
+	}
+
+	private static long gcd(long a, long b){
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	/**
+	 * Samples 0..n-1 with probability proportional to 1/(i+1)^s.
+	 */
+	static class Zipf{
+		private final double[] cumulative;
+
+		Zipf(int n, double s){
+			cumulative = new double[n];
+			double sum = 0;
+			for (int i = 0; i < n; ++i){
+				sum += Math.pow(i + 1, -s);
+				cumulative[i] = sum;
+			}//end for
+		}
+
+		int sample(SplittableRandom r){
+			double u = r.nextDouble() * cumulative[cumulative.length - 1];
+			int i = Arrays.binarySearch(cumulative, u);
+			return i >= 0 ? i : Math.min(-i - 1, cumulative.length - 1);
+		}
+	}//end Zipf
+
+	/**
+	 * The generator entry point.
+	 *
+	 * @param args <output directory> [--scale N] [--seed N] [--threads N]
+	 *        [--show-skew S] [--user-skew S] [--fill F]
+	 */
+	public static void main(String[] args){
+		if (args.length < 1 || args.length % 2 != 1){
+			System.err.println("Usage: java [-classpath <classpath>] " + DataGenerator.class.getName()
+				+ " <output directory> [--scale N] [--seed N] [--threads N] [--show-skew S] [--user-skew S] [--fill F]");
+			return;
+		}//end if
+
+		double scale = 1, showSkew = 1.0, userSkew = 0.8, fill = 0.3;
+		long seed = 42;
+		int threads = Runtime.getRuntime().availableProcessors();
+		try{
+			for (int i = 1; i < args.length; i += 2){
+				switch (args[i]){
+					case "--scale": scale = Double.parseDouble(args[i + 1]); break;
+					case "--seed": seed = Long.parseLong(args[i + 1]); break;
+					case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+					case "--show-skew": showSkew = Double.parseDouble(args[i + 1]); break;
+					case "--user-skew": userSkew = Double.parseDouble(args[i + 1]); break;
+					case "--fill": fill = Double.parseDouble(args[i + 1]); break;
+					default: throw new IllegalArgumentException("Unknown option " + args[i]);
+				}//end switch
+			}//end for
+
+			long start = System.nanoTime();
+			DataGenerator generator = new DataGenerator(new File(args[0]), scale, seed, threads, showSkew, userSkew, fill);
+			generator.generate();
+			System.out.println(String.format("%d shows, %d show seats, %d bookings in %.2f s", generator.shows,
+				generator.ssidBase[generator.shows + 1], generator.bidBase[generator.shows + 1], (System.nanoTime() - start) / 1e9));
+		}catch (Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}//end try
+	}
+}//end DataGenerator
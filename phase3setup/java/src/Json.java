@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds the small amount of JSON support the tools need, without
+ * pulling in a JSON library: quoting for the jsonl output format, and a
+ * parser for the commands of the batch mode.
+ *
+ */
+
+public class Json{
+	private Json(){
+	}
+
+	/**
+	 * Writes a string as a quoted JSON string literal, or null.
+	 *
+	 * @param out where the literal is written
+	 * @param value the string to quote, may be null
+	 * @throws java.io.IOException when writing fails
+	 */
+	public static void quote(Appendable out, String value) throws IOException {
+		if (value == null){
+			out.append("null");
+			return;
+		}//end if
+		out.append('"');
+		for (int i = 0; i < value.length(); ++i){
+			char c = value.charAt(i);
+			switch (c){
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				default:
+					if (c < 0x20){
+						out.append(String.format("\\u%04x", (int) c));
+					}else{
+						out.append(c);
+					}//end if
+			}//end switch
+		}//end for
+		out.append('"');
+	}//end quote
+
+	/**
+	 * @return the string as a quoted JSON string literal
+	 */
+	public static String quote(String value){
+		StringBuilder sb = new StringBuilder(value == null ? 4 : value.length() + 2);
+		try{
+			quote(sb, value);
+		}catch (IOException e){
+			// StringBuilder does not throw.
+		}//end try
+		return sb.toString();
+	}
+
+	/**
+	 * Parses one JSON value.  Objects become a LinkedHashMap, arrays a List,
+	 * integral numbers a Long, other numbers a Double.
+	 *
+	 * @param text the JSON text, nothing but whitespace may follow the value
+	 * @return the parsed value, null for a JSON null
+	 * @throws IllegalArgumentException when the text is not valid JSON
+	 */
+	public static Object parse(String text){
+		Parser parser = new Parser(text);
+		Object value = parser.value();
+		parser.skipSpace();
+		if (parser.pos < text.length()){
+			throw parser.error("end of input");
+		}//end if
+		return value;
+	}
+
+	static class Parser{
+		private final String text;
+		private int pos;
+
+		Parser(String text){
+			this.text = text;
+		}
+
+		Object value(){
+			skipSpace();
+			if (pos >= text.length()){
+				throw error("a value");
+			}//end if
+			char c = text.charAt(pos);
+			switch (c){
+				case '{': return object();
+				case '[': return array();
+				case '"': return string();
+				case 't': return literal("true", Boolean.TRUE);
+				case 'f': return literal("false", Boolean.FALSE);
+				case 'n': return literal("null", null);
+				default:
+					if (c == '-' || (c >= '0' && c <= '9')){
+						return number();
+					}//end if
+					throw error("a value");
+			}//end switch
+		}
+
+		private Map<String, Object> object(){
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			++pos;
+			skipSpace();
+			if (peek('}')){
+				return map;
+			}//end if
+			do{
+				skipSpace();
+				if (pos >= text.length() || text.charAt(pos) != '"'){
+					throw error("a member name");
+				}//end if
+				String name = string();
+				skipSpace();
+				expect(':');
+				map.put(name, value());
+				skipSpace();
+			}while (peek(','));
+			expect('}');
+			return map;
+		}
+
+		private List<Object> array(){
+			List<Object> list = new ArrayList<Object>();
+			++pos;
+			skipSpace();
+			if (peek(']')){
+				return list;
+			}//end if
+			do{
+				list.add(value());
+				skipSpace();
+			}while (peek(','));
+			expect(']');
+			return list;
+		}
+
+		private String string(){
+			StringBuilder sb = new StringBuilder();
+			++pos;
+			while (pos < text.length()){
+				char c = text.charAt(pos++);
+				if (c == '"'){
+					return sb.toString();
+				}//end if
+				if (c != '\\'){
+					sb.append(c);
+					continue;
+				}//end if
+				if (pos >= text.length()){
+					break;
+				}//end if
+				char e = text.charAt(pos++);
+				switch (e){
+					case 'b': sb.append('\b'); break;
+					case 'f': sb.append('\f'); break;
+					case 'n': sb.append('\n'); break;
+					case 'r': sb.append('\r'); break;
+					case 't': sb.append('\t'); break;
+					case 'u':
+						if (pos + 4 > text.length()){
+							throw error("four hex digits");
+						}//end if
+						try{
+							sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+						}catch (NumberFormatException ex){
+							throw error("four hex digits");
+						}//end try
+						pos += 4;
+						break;
+					default: sb.append(e);
+				}//end switch
+			}//end while
+			throw error("a closing quote");
+		}
+
+		private Object number(){
+			int start = pos;
+			boolean integral = true;
+			if (text.charAt(pos) == '-') ++pos;
+			while (pos < text.length()){
+				char c = text.charAt(pos);
+				if (c == '.' || c == 'e' || c == 'E' || c == '+' || (c == '-' && pos > start)){
+					integral = false;
+				}else if (c < '0' || c > '9'){
+					break;
+				}//end if
+				++pos;
+			}//end while
+			String n = text.substring(start, pos);
+			try{
+				return integral ? (Object) Long.valueOf(n) : (Object) Double.valueOf(n);
+			}catch (NumberFormatException e){
+				pos = start;
+				throw error("a number");
+			}//end try
+		}
+
+		private Object literal(String word, Object value){
+			if (!text.startsWith(word, pos)){
+				throw error(word);
+			}//end if
+			pos += word.length();
+			return value;
+		}
+
+		private boolean peek(char c){
+			if (pos < text.length() && text.charAt(pos) == c){
+				++pos;
+				return true;
+			}//end if
+			return false;
+		}
+
+		private void expect(char c){
+			skipSpace();
+			if (!peek(c)){
+				throw error("'" + c + "'");
+			}//end if
+		}
+
+		void skipSpace(){
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos))){
+				++pos;
+			}//end while
+		}
+
+		IllegalArgumentException error(String expected){
+			return new IllegalArgumentException("Invalid JSON, expected " + expected + " at position " + pos);
+		}
+	}//end Parser
+}//end Json
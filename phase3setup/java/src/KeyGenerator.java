@@ -0,0 +1,47 @@
+import java.sql.SQLException;
+
+/**
+ * This class hands out primary keys backed by a PostgreSQL sequence.  Every
+ * nextval call reserves a whole block of keys (the sequence is created with
+ * INCREMENT BY BLOCK_SIZE), which is then handed out from memory.  Blocks
+ * never overlap, so keys are unique across threads and across processes, and
+ * only one round trip is paid per BLOCK_SIZE keys.
+ *
+ */
+
+public class KeyGenerator{
+	//number of keys reserved per round trip, must match INCREMENT BY in create.sql
+	public static final int BLOCK_SIZE = 50;
+
+	private final Ticketmaster esql;
+	private final String sequence;
+
+	//next key to hand out and the first key past the reserved block
+	private long next = 0;
+	private long limit = 0;
+
+	public KeyGenerator(Ticketmaster esql, String sequence){
+		this.esql = esql;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Returns the next unused key, reserving a new block from the sequence
+	 * when the current one is used up.
+	 *
+	 * @return a key no other caller has been given
+	 * @throws java.sql.SQLException when the sequence could not be advanced
+	 */
+	public synchronized long nextKey() throws SQLException {
+		if (next >= limit){
+			long start = esql.getNextSeqVal(sequence);
+			next = start;
+			limit = start + BLOCK_SIZE;
+		}//end if
+		return next++;
+	}//end nextKey
+
+	public String getSequence(){
+		return sequence;
+	}
+}//end KeyGenerator
@@ -0,0 +1,103 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts latencies in log-linear buckets: every power of two is
+ * split into 16 equal buckets, so any recorded value is reported within
+ * 1/16 (about 6%) of its true value, from nanoseconds to hours, in a fixed
+ * array of 1,024 counters.
+ *
+ * Recording is one array index computation and one atomic add; it never
+ * allocates or locks, so it can be called from any number of threads on
+ * every operation.  Reading percentiles walks the counters without
+ * stopping writers, so a snapshot taken under load is approximate.
+ *
+ */
+
+public class LatencyHistogram{
+	//16 sub-buckets per power of two
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = 1024;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private volatile long max;
+
+	/**
+	 * Records one latency, in nanoseconds; negative values count as 0.
+	 */
+	public void record(long nanos){
+		if (nanos < 0){
+			nanos = 0;
+		}//end if
+		counts.incrementAndGet(bucket(nanos));
+		total.increment();
+		sum.add(nanos);
+		if (nanos > max){
+			//a lost race only loses a maximum that another thread just beat
+			max = nanos;
+		}//end if
+	}
+
+	static int bucket(long value){
+		if (value < SUB_COUNT){
+			return (int) value;
+		}//end if
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BITS;
+		int index = (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+		return Math.min(index, BUCKETS - 1);
+	}
+
+	/**
+	 * @return the largest value that falls in the bucket
+	 */
+	static long highestValue(int bucket){
+		if (bucket < SUB_COUNT){
+			return bucket;
+		}//end if
+		int shift = bucket / SUB_COUNT - 1;
+		long low = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+		return low + (1L << shift) - 1;
+	}
+
+	public long getCount(){
+		return total.sum();
+	}
+
+	public long getSum(){
+		return sum.sum();
+	}
+
+	public long getMax(){
+		return max;
+	}
+
+	/**
+	 * @param quantile between 0 and 1, such as 0.99
+	 * @return the latency in nanoseconds that this share of the recorded
+	 *         values does not exceed, 0 when nothing was recorded
+	 */
+	public long getPercentile(double quantile){
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; ++i){
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}//end for
+		if (count == 0){
+			return 0;
+		}//end if
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i){
+			seen += snapshot[i];
+			if (seen >= rank){
+				return Math.min(highestValue(i), max);
+			}//end if
+		}//end for
+		return max;
+	}
+}//end LatencyHistogram
@@ -0,0 +1,203 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class drives a BookingServer at a fixed request rate and checks the
+ * result against a throughput target.
+ *
+ * Requests are sent open loop: the n-th request is due n/rps seconds after
+ * the start whether or not earlier ones have been answered, so a slow server
+ * shows up as latency and missed throughput rather than as a slower client.
+ * At most --max-inflight requests are outstanding; requests due while that
+ * many are in flight are counted as dropped.
+ *
+ * The request mix is a list of GET paths, cycled through, by default the
+ * listings of the bundled data set.  The run passes when the server answered
+ * at least 95% of the target rate with 2xx, and the 99th percentile latency
+ * is within --p99 milliseconds when that is given.
+ *
+ */
+
+public class LoadGenerator{
+	static final String[] DEFAULT_PATHS = {
+		"/cinemas/1/shows/1/theaters",
+		"/shows?date=2019-01-01&time=8:25",
+		"/movies/love",
+		"/users/pending",
+		"/showtimes?title=Avengers:%20Endgame&cinema=Regal%20Cinemas&from=2019-01-01&to=2019-12-31",
+		"/users/armandenderle@gmail.com/bookings"
+	};
+
+	private final HttpClient client;
+	private final String baseUrl;
+	private final String[] paths;
+	private final int rps;
+	private final int seconds;
+	private final int maxInFlight;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong ok = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final ConcurrentHashMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<Integer, AtomicLong>();
+	private final AtomicLongArray latencies;
+	private final AtomicInteger latencyCount = new AtomicInteger();
+
+	public LoadGenerator(String baseUrl, String[] paths, int rps, int seconds, int maxInFlight){
+		ExecutorService executor = BookingServer.newRequestExecutor();
+		this.client = HttpClient.newBuilder().executor(executor).connectTimeout(Duration.ofSeconds(5)).build();
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+		this.paths = paths;
+		this.rps = rps;
+		this.seconds = seconds;
+		this.maxInFlight = maxInFlight;
+		this.latencies = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, (long) rps * seconds));
+	}
+
+	/**
+	 * Sends rps * seconds requests and waits for the answers.
+	 *
+	 * @return the elapsed time in nanoseconds, from the first request to the
+	 *         last answer
+	 */
+	public long run() throws InterruptedException {
+		long total = (long) rps * seconds;
+		if (total == 0){
+			return 0;
+		}//end if
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		CountDownLatch done = new CountDownLatch(1);
+		AtomicLong pending = new AtomicLong(total);
+		long start = System.nanoTime();
+		long interval = 1_000_000_000L / rps;
+
+		for (long n = 0; n < total; ++n){
+			long due = start + n * interval;
+			long wait = due - System.nanoTime();
+			if (wait > 0){
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}//end if
+			if (!inFlight.tryAcquire()){
+				dropped.incrementAndGet();
+				if (pending.decrementAndGet() == 0){
+					done.countDown();
+				}//end if
+				continue;
+			}//end if
+			sent.incrementAndGet();
+			HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + paths[(int) (n % paths.length)]))
+				.timeout(Duration.ofSeconds(30)).GET().build();
+			long sentAt = System.nanoTime();
+			client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, failure) -> {
+				long latency = System.nanoTime() - sentAt;
+				if (failure != null){
+					errors.incrementAndGet();
+				}else{
+					statuses.computeIfAbsent(response.statusCode(), k -> new AtomicLong()).incrementAndGet();
+					if (response.statusCode() / 100 == 2){
+						ok.incrementAndGet();
+						int i = latencyCount.getAndIncrement();
+						if (i < latencies.length()){
+							latencies.set(i, latency);
+						}//end if
+					}//end if
+				}//end if
+				inFlight.release();
+				if (pending.decrementAndGet() == 0){
+					done.countDown();
+				}//end if
+			});
+		}//end for
+		done.await();
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Prints the results.
+	 *
+	 * @param p99Limit the 99th percentile latency limit in milliseconds, 0
+	 *        for none
+	 * @return true when the throughput target (and latency limit) was met
+	 */
+	public boolean report(long nanos, double p99Limit){
+		int n = Math.min(latencyCount.get(), latencies.length());
+		long[] sorted = new long[n];
+		for (int i = 0; i < n; ++i){
+			sorted[i] = latencies.get(i);
+		}//end for
+		Arrays.sort(sorted);
+		double achieved = ok.get() / (nanos / 1e9);
+		double p99 = percentile(sorted, 0.99);
+
+		System.out.println(String.format("target %d req/s for %d s: sent %d, dropped %d, errors %d, status %s",
+			rps, seconds, sent.get(), dropped.get(), errors.get(), statuses));
+		System.out.println(String.format("achieved %.1f ok/s, latency ms p50 %.2f p90 %.2f p99 %.2f max %.2f",
+			achieved, percentile(sorted, 0.5), percentile(sorted, 0.9), p99, n == 0 ? 0 : sorted[n - 1] / 1e6));
+
+		List<String> missed = new ArrayList<String>();
+		if (achieved < rps * 0.95){
+			missed.add(String.format("throughput %.1f < %d req/s", achieved, rps));
+		}//end if
+		if (p99Limit > 0 && p99 > p99Limit){
+			missed.add(String.format("p99 %.2f > %.2f ms", p99, p99Limit));
+		}//end if
+		System.out.println(missed.isEmpty() ? "PASS" : "FAIL: " + String.join(", ", missed));
+		return missed.isEmpty();
+	}
+
+	private static double percentile(long[] sorted, double p){
+		if (sorted.length == 0){
+			return 0;
+		}//end if
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+	}
+
+	/**
+	 * The load generator entry point.
+	 *
+	 * @param args <base url> [--rps N] [--duration seconds] [--max-inflight N]
+	 *        [--p99 ms] [--path /path ...]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length % 2 != 1){
+			System.err.println("Usage: java [-classpath <classpath>] " + LoadGenerator.class.getName()
+				+ " <base url> [--rps N] [--duration seconds] [--max-inflight N] [--p99 ms] [--path /path ...]");
+			return;
+		}//end if
+
+		int rps = 500, seconds = 30, maxInFlight = 256;
+		double p99 = 0;
+		List<String> paths = new ArrayList<String>();
+		for (int i = 1; i < args.length; i += 2){
+			switch (args[i]){
+				case "--rps": rps = Integer.parseInt(args[i + 1]); break;
+				case "--duration": seconds = Integer.parseInt(args[i + 1]); break;
+				case "--max-inflight": maxInFlight = Integer.parseInt(args[i + 1]); break;
+				case "--p99": p99 = Double.parseDouble(args[i + 1]); break;
+				case "--path": paths.add(args[i + 1]); break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(2);
+			}//end switch
+		}//end for
+
+		LoadGenerator generator = new LoadGenerator(args[0], paths.isEmpty() ? DEFAULT_PATHS : paths.toArray(new String[0]),
+			rps, seconds, maxInFlight);
+		long nanos = generator.run();
+		System.exit(generator.report(nanos, p99) ? 0 : 1);
+	}
+}//end LoadGenerator
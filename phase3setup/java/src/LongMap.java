@@ -0,0 +1,195 @@
+import java.util.Arrays;
+
+/**
+ * This class maps primitive long keys to values without boxing, in one open
+ * addressing table with linear probing.  The map holds at most maxSize
+ * entries; adding to a full map evicts an entry chosen by the CLOCK
+ * algorithm, which gives recently read entries a second chance, so it
+ * approximates least-recently-used eviction without any per-read writes
+ * other than one flag.
+ *
+ * The map is not synchronized.
+ *
+ */
+
+public class LongMap<V>{
+	private final int maxSize;
+	private long[] keys;
+	private Object[] values;
+	//CLOCK reference bits, set on every read
+	private boolean[] referenced;
+	private int mask;
+	private int size = 0;
+	private int hand = 0;
+	private long evictions = 0;
+
+	public LongMap(int maxSize){
+		if (maxSize < 1){
+			throw new IllegalArgumentException("Invalid maximum size: " + maxSize);
+		}//end if
+		this.maxSize = maxSize;
+		allocate(Math.min(16, tableSize(maxSize)));
+	}
+
+	/**
+	 * @return the value of the key, or null when it is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key){
+		for (int i = slot(key); values[i] != null; i = (i + 1) & mask){
+			if (keys[i] == key){
+				referenced[i] = true;
+				return (V) values[i];
+			}//end if
+		}//end for
+		return null;
+	}
+
+	/**
+	 * Adds or replaces the value of a key, evicting another entry when the
+	 * map is full.
+	 */
+	public void put(long key, V value){
+		if (value == null){
+			throw new NullPointerException("value");
+		}//end if
+		int i = slot(key);
+		for (; values[i] != null; i = (i + 1) & mask){
+			if (keys[i] == key){
+				values[i] = value;
+				referenced[i] = true;
+				return;
+			}//end if
+		}//end for
+		if (size >= maxSize){
+			evict();
+		}else if ((size + 1) * 2 > values.length){
+			allocate(values.length * 2);
+		}else{
+			insertAt(i, key, value);
+			return;
+		}//end if
+		//the table changed, probe again
+		for (i = slot(key); values[i] != null; i = (i + 1) & mask);
+		insertAt(i, key, value);
+	}
+
+	private void insertAt(int i, long key, V value){
+		keys[i] = key;
+		values[i] = value;
+		referenced[i] = false;
+		size++;
+	}
+
+	/**
+	 * @return the removed value, or null when the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key){
+		for (int i = slot(key); values[i] != null; i = (i + 1) & mask){
+			if (keys[i] == key){
+				V value = (V) values[i];
+				removeAt(i);
+				return value;
+			}//end if
+		}//end for
+		return null;
+	}
+
+	public void clear(){
+		Arrays.fill(values, null);
+		Arrays.fill(referenced, false);
+		size = 0;
+		hand = 0;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public long getEvictions(){
+		return evictions;
+	}
+
+	/**
+	 * Moves the clock hand to the first entry not read since the hand last
+	 * passed it, clearing reference bits on the way, and removes that entry.
+	 */
+	private void evict(){
+		while (true){
+			int i = hand;
+			if (values[i] != null){
+				if (!referenced[i]){
+					//the slot may be refilled by the shift, so the hand stays
+					removeAt(i);
+					evictions++;
+					return;
+				}//end if
+				referenced[i] = false;
+			}//end if
+			hand = (hand + 1) & mask;
+		}//end while
+	}
+
+	/**
+	 * Empties a slot and shifts the entries of the probe run that follows it
+	 * back, so lookups never need tombstones.
+	 */
+	private void removeAt(int i){
+		int j = i;
+		while (true){
+			j = (j + 1) & mask;
+			if (values[j] == null){
+				break;
+			}//end if
+			int home = slot(keys[j]);
+			//the entry at j can fill the hole at i unless its home lies in (i, j]
+			boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+			if (!between){
+				keys[i] = keys[j];
+				values[i] = values[j];
+				referenced[i] = referenced[j];
+				i = j;
+			}//end if
+		}//end while
+		values[i] = null;
+		referenced[i] = false;
+		size--;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void allocate(int capacity){
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		boolean[] oldReferenced = referenced;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		referenced = new boolean[capacity];
+		mask = capacity - 1;
+		size = 0;
+		hand = 0;
+		if (oldValues == null){
+			return;
+		}//end if
+		for (int k = 0; k < oldValues.length; ++k){
+			if (oldValues[k] != null){
+				int i = slot(oldKeys[k]);
+				while (values[i] != null){
+					i = (i + 1) & mask;
+				}//end while
+				insertAt(i, oldKeys[k], (V) oldValues[k]);
+				referenced[i] = oldReferenced[k];
+			}//end if
+		}//end for
+	}
+
+	private int slot(long key){
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	//a power of two at least twice maxSize, so the table is never more than half full
+	private static int tableSize(int maxSize){
+		return Integer.highestOneBit(Math.max(1, maxSize) * 2 - 1) << 1;
+	}
+}//end LongMap
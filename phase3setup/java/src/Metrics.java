@@ -0,0 +1,347 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class records, per operation, a latency histogram and counters of
+ * calls, errors, database round trips and rows transferred.
+ *
+ * Operations are the TicketOperations methods and, below them, the JDBC
+ * statements of Ticketmaster (jdbc.query, jdbc.update, jdbc.commit and
+ * jdbc.rollback).  Each thread tracks the operations it is running, so the
+ * round trips and rows of a statement are counted both for the statement
+ * and for the operations that issued it.  Recording does not allocate once
+ * an operation has been seen.
+ *
+ * Every operation is registered as an MXBean named
+ * ticketmaster:type=Operation,name=<operation> (unless
+ * ticketmaster.metrics.jmx is false).  When ticketmaster.metrics.file is
+ * set, all operations are written to that file every
+ * ticketmaster.metrics.interval milliseconds, in the Prometheus text format
+ * or, with ticketmaster.metrics.format=text, as a table.
+ *
+ */
+
+public class Metrics{
+	public static final String JDBC_QUERY = "jdbc.query";
+	public static final String JDBC_UPDATE = "jdbc.update";
+	public static final String JDBC_COMMIT = "jdbc.commit";
+	public static final String JDBC_ROLLBACK = "jdbc.rollback";
+
+	/**
+	 * The JMX view of one operation; latencies are in microseconds.
+	 */
+	public interface OperationMXBean{
+		String getName();
+		long getCalls();
+		long getErrors();
+		long getRoundTrips();
+		long getRows();
+		double getMeanMicros();
+		double getP50Micros();
+		double getP99Micros();
+		double getP999Micros();
+		double getMaxMicros();
+	}
+
+	/**
+	 * The histogram and counters of one operation.
+	 */
+	public static class Operation implements OperationMXBean{
+		final String name;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder errors = new LongAdder();
+		final LongAdder roundTrips = new LongAdder();
+		final LongAdder rows = new LongAdder();
+
+		Operation(String name){
+			this.name = name;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		public long getCalls(){
+			return latency.getCount();
+		}
+
+		public long getErrors(){
+			return errors.sum();
+		}
+
+		public long getRoundTrips(){
+			return roundTrips.sum();
+		}
+
+		public long getRows(){
+			return rows.sum();
+		}
+
+		public double getMeanMicros(){
+			long calls = latency.getCount();
+			return calls == 0 ? 0 : latency.getSum() / 1e3 / calls;
+		}
+
+		public double getP50Micros(){
+			return latency.getPercentile(0.5) / 1e3;
+		}
+
+		public double getP99Micros(){
+			return latency.getPercentile(0.99) / 1e3;
+		}
+
+		public double getP999Micros(){
+			return latency.getPercentile(0.999) / 1e3;
+		}
+
+		public double getMaxMicros(){
+			return latency.getMax() / 1e3;
+		}
+	}//end Operation
+
+	/**
+	 * The operations a thread is inside of, innermost last.
+	 */
+	static class Frame{
+		Operation[] stack = new Operation[8];
+		int depth;
+	}//end Frame
+
+	private final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+	private final ThreadLocal<Frame> frames = ThreadLocal.withInitial(Frame::new);
+	private final boolean jmx;
+	private ScheduledExecutorService dumper;
+	private File dumpFile;
+	private boolean dumpText;
+
+	public Metrics(){
+		this(Boolean.parseBoolean(System.getProperty("ticketmaster.metrics.jmx", "true")));
+		String file = System.getProperty("ticketmaster.metrics.file");
+		if (file != null){
+			startDump(new File(file), Long.getLong("ticketmaster.metrics.interval", 10000L),
+				"text".equals(System.getProperty("ticketmaster.metrics.format")));
+		}//end if
+	}
+
+	public Metrics(boolean jmx){
+		this.jmx = jmx;
+	}
+
+	/**
+	 * @return the operation with this name, created on first use
+	 */
+	public Operation operation(String name){
+		Operation op = operations.get(name);
+		if (op == null){
+			op = operations.computeIfAbsent(name, Operation::new);
+			if (jmx){
+				register(op);
+			}//end if
+		}//end if
+		return op;
+	}
+
+	/**
+	 * Enters an operation on this thread.  Every begin() must be matched by
+	 * an end() in a finally block.
+	 *
+	 * @return the start time to pass to end()
+	 */
+	public long begin(String name){
+		Operation op = operation(name);
+		Frame frame = frames.get();
+		if (frame.depth == frame.stack.length){
+			frame.stack = Arrays.copyOf(frame.stack, frame.depth * 2);
+		}//end if
+		frame.stack[frame.depth++] = op;
+		return System.nanoTime();
+	}
+
+	/**
+	 * Counts a failure of the operation entered last; call before end().
+	 */
+	public void failed(String name){
+		operation(name).errors.increment();
+	}
+
+	/**
+	 * Leaves the operation entered last and records its latency.
+	 */
+	public void end(String name, long start){
+		long elapsed = System.nanoTime() - start;
+		Frame frame = frames.get();
+		if (frame.depth > 0){
+			frame.stack[--frame.depth] = null;
+		}//end if
+		operation(name).latency.record(elapsed);
+	}
+
+	/**
+	 * Runs work as an operation: enters it, counts a failure when the work
+	 * throws, and records its latency.
+	 *
+	 * @return what the work returned
+	 */
+	public <T> T timed(String name, Ticketmaster.Work<T> work) throws SQLException {
+		long start = begin(name);
+		try{
+			return work.run();
+		}catch (SQLException | RuntimeException e){
+			failed(name);
+			throw e;
+		}finally{
+			end(name, start);
+		}//end try
+	}
+
+	/**
+	 * Records one JDBC statement (or commit) of the given kind, and counts
+	 * its round trips and rows for every operation this thread is inside of.
+	 */
+	public void statement(String kind, long start, int roundTrips, long rows, boolean failed){
+		Operation op = operation(kind);
+		op.latency.record(System.nanoTime() - start);
+		op.roundTrips.add(roundTrips);
+		op.rows.add(rows);
+		if (failed){
+			op.errors.increment();
+		}//end if
+		Frame frame = frames.get();
+		for (int i = 0; i < frame.depth; ++i){
+			frame.stack[i].roundTrips.add(roundTrips);
+			frame.stack[i].rows.add(rows);
+		}//end for
+	}
+
+	/**
+	 * @return the operations seen so far, in name order
+	 */
+	public List<Operation> getOperations(){
+		List<Operation> list = new ArrayList<Operation>(operations.values());
+		list.sort((a, b) -> a.name.compareTo(b.name));
+		return list;
+	}
+
+	private void register(Operation op){
+		try{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("ticketmaster:type=Operation,name=" + ObjectName.quote(op.name));
+			synchronized (server){
+				//a second Metrics in the same JVM takes the name over
+				if (server.isRegistered(name)){
+					server.unregisterMBean(name);
+				}//end if
+				server.registerMBean(op, name);
+			}//end synchronized
+		}catch (JMException e){
+			System.err.println("Metrics: cannot register " + op.name + ": " + e.getMessage());
+		}//end try
+	}
+
+	/**
+	 * @return every operation in the Prometheus text exposition format
+	 */
+	public String toPrometheus(){
+		StringWriter text = new StringWriter();
+		PrintWriter out = new PrintWriter(text);
+		List<Operation> ops = getOperations();
+		out.println("# HELP ticketmaster_operation_latency_seconds Latency of Ticketmaster operations and JDBC statements.");
+		out.println("# TYPE ticketmaster_operation_latency_seconds summary");
+		for (Operation op : ops){
+			String label = "operation=\"" + op.name + "\"";
+			for (double q : new double[]{0.5, 0.99, 0.999}){
+				out.println("ticketmaster_operation_latency_seconds{" + label + ",quantile=\"" + q + "\"} "
+					+ op.latency.getPercentile(q) / 1e9);
+			}//end for
+			out.println("ticketmaster_operation_latency_seconds_sum{" + label + "} " + op.latency.getSum() / 1e9);
+			out.println("ticketmaster_operation_latency_seconds_count{" + label + "} " + op.latency.getCount());
+		}//end for
+		counter(out, ops, "errors", "Failed calls.", 0);
+		counter(out, ops, "round_trips", "Database round trips.", 1);
+		counter(out, ops, "rows", "Rows read or written.", 2);
+		out.flush();
+		return text.toString();
+	}
+
+	private static void counter(PrintWriter out, List<Operation> ops, String name, String help, int which){
+		out.println("# HELP ticketmaster_operation_" + name + "_total " + help);
+		out.println("# TYPE ticketmaster_operation_" + name + "_total counter");
+		for (Operation op : ops){
+			long value = which == 0 ? op.getErrors() : which == 1 ? op.getRoundTrips() : op.getRows();
+			out.println("ticketmaster_operation_" + name + "_total{operation=\"" + op.name + "\"} " + value);
+		}//end for
+	}
+
+	/**
+	 * @return every operation as a plain-text table, latencies in microseconds
+	 */
+	public String toString(){
+		StringBuilder sb = new StringBuilder(String.format("%-40s %9s %7s %10s %10s %10s %10s %10s %10s%n", "operation",
+			"calls", "errors", "trips", "rows", "p50 us", "p99 us", "p999 us", "max us"));
+		for (Operation op : getOperations()){
+			sb.append(String.format("%-40s %9d %7d %10d %10d %10.1f %10.1f %10.1f %10.1f%n", op.name, op.getCalls(),
+				op.getErrors(), op.getRoundTrips(), op.getRows(), op.getP50Micros(), op.getP99Micros(), op.getP999Micros(),
+				op.getMaxMicros()));
+		}//end for
+		return sb.toString();
+	}
+
+	/**
+	 * Writes all operations to the file now and then every interval
+	 * milliseconds, replacing it atomically so readers never see half a dump.
+	 */
+	public synchronized void startDump(final File file, long interval, final boolean text){
+		if (dumper != null){
+			return;
+		}//end if
+		dumpFile = file;
+		dumpText = text;
+		dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "metrics-dump");
+			thread.setDaemon(true);
+			return thread;
+		});
+		dumper.scheduleWithFixedDelay(() -> dump(file, text), 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public void dump(File file, boolean text){
+		try{
+			File dir = file.getAbsoluteFile().getParentFile();
+			File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			Files.write(tmp.toPath(), (text ? toString() : toPrometheus()).getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch (IOException e){
+			System.err.println("Metrics: cannot write " + file + ": " + e.getMessage());
+		}//end try
+	}
+
+	/**
+	 * Stops the periodic dump after writing it one last time.
+	 */
+	public synchronized void close(){
+		if (dumper != null){
+			dumper.shutdownNow();
+			dumper = null;
+			dump(dumpFile, dumpText);
+		}//end if
+	}
+}//end Metrics
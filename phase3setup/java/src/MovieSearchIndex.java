@@ -0,0 +1,511 @@
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class searches movie titles and descriptions for a substring, case
+ * insensitively, with a trigram inverted index held in memory.  Every
+ * three-character sequence of a lower-cased title (and, separately, of a
+ * description) has a posting list of the movies containing it; a query is
+ * answered by intersecting the lists of its trigrams and checking the few
+ * candidates left, instead of scanning Movies with a leading-wildcard LIKE.
+ *
+ * Movies are numbered densely in mvid order as they are indexed, so posting
+ * lists are ascending ints, stored delta-encoded as variable-length bytes
+ * (one byte per entry for most lists).
+ *
+ * The whole table is read on the first search.  Once the index is older
+ * than ticketmaster.movieSearch.ttl milliseconds it is rebuilt on a
+ * background thread while searches keep using the old one.  A built index
+ * is never changed: it is published together with the movies added through
+ * TicketOperations since, as one Snapshot in a volatile field, so searches
+ * take no lock.  Results are written from memory with only the columns
+ * asked for.
+ *
+ */
+
+public class MovieSearchIndex{
+	static final String ALL_MOVIES = "SELECT mvid, title, rdate, country, description, duration, lang, genre FROM Movies"
+		+ " ORDER BY mvid";
+
+	//the columns of Movies, in table order
+	public static final String[] COLUMNS = {"mvid", "title", "rdate", "country", "description", "duration", "lang", "genre"};
+	static final int[] TYPES = {Types.BIGINT, Types.VARCHAR, Types.DATE, Types.VARCHAR, Types.VARCHAR, Types.INTEGER,
+		Types.CHAR, Types.VARCHAR};
+
+	//where to look for the text
+	public static final int TITLE = 1;
+	public static final int DESCRIPTION = 2;
+
+	/**
+	 * The ascending doc numbers of one trigram, delta and varint encoded.
+	 */
+	static class Postings{
+		byte[] data = new byte[4];
+		int length;
+		int count;
+		int last = -1;
+
+		void add(int doc){
+			if (doc == last){
+				return;
+			}//end if
+			int delta = doc - last;
+			if (length + 5 > data.length){
+				data = Arrays.copyOf(data, data.length * 2);
+			}//end if
+			while (delta >= 0x80){
+				data[length++] = (byte) (delta | 0x80);
+				delta >>>= 7;
+			}//end while
+			data[length++] = (byte) delta;
+			last = doc;
+			count++;
+		}
+
+		int[] decode(){
+			int[] docs = new int[count];
+			int doc = -1;
+			for (int i = 0, k = 0; k < count; ++k){
+				int delta = 0;
+				for (int shift = 0; ; shift += 7){
+					byte b = data[i++];
+					delta |= (b & 0x7f) << shift;
+					if (b >= 0){
+						break;
+					}//end if
+				}//end for
+				doc += delta;
+				docs[k] = doc;
+			}//end for
+			return docs;
+		}
+	}//end Postings
+
+	/**
+	 * One generation of the index, filled by build() and not changed once
+	 * published; reads only set LongMap's CLOCK flags, which nothing here
+	 * evicts by.
+	 */
+	static class Index{
+		final List<ReferenceCache.Movie> movies = new ArrayList<ReferenceCache.Movie>();
+		final List<String> titles = new ArrayList<String>();
+		final List<String> descriptions = new ArrayList<String>();
+		//release dates as epoch days, Integer.MIN_VALUE when unknown
+		int[] releaseDays = new int[16];
+		final LongMap<Postings> titleGrams = new LongMap<Postings>(1 << 28);
+		final LongMap<Postings> descriptionGrams = new LongMap<Postings>(1 << 28);
+		final LongMap<Integer> docOfMvid = new LongMap<Integer>(1 << 28);
+		final long builtAt = System.currentTimeMillis();
+
+		void add(ReferenceCache.Movie movie){
+			if (docOfMvid.get(movie.mvid) != null){
+				return;
+			}//end if
+			int doc = movies.size();
+			movies.add(movie);
+			docOfMvid.put(movie.mvid, doc);
+			String title = lower(movie.title), description = lower(movie.description);
+			titles.add(title);
+			descriptions.add(description);
+			if (doc == releaseDays.length){
+				releaseDays = Arrays.copyOf(releaseDays, doc * 2);
+			}//end if
+			releaseDays[doc] = releaseDay(movie);
+			index(titleGrams, title, doc);
+			index(descriptionGrams, description, doc);
+		}
+
+		private static void index(LongMap<Postings> grams, String text, int doc){
+			for (int i = 0; i + 3 <= text.length(); ++i){
+				long gram = gram(text, i);
+				Postings postings = grams.get(gram);
+				if (postings == null){
+					postings = new Postings();
+					grams.put(gram, postings);
+				}//end if
+				postings.add(doc);
+			}//end for
+		}
+
+		/**
+		 * @return the docs whose text may contain the lower-cased query, all
+		 *         of them when the query is shorter than a trigram
+		 */
+		int[] candidates(LongMap<Postings> grams, String query){
+			if (query.length() < 3){
+				int[] all = new int[movies.size()];
+				for (int i = 0; i < all.length; ++i){
+					all[i] = i;
+				}//end for
+				return all;
+			}//end if
+			List<Postings> lists = new ArrayList<Postings>();
+			for (int i = 0; i + 3 <= query.length(); ++i){
+				Postings postings = grams.get(gram(query, i));
+				if (postings == null){
+					return new int[0];
+				}//end if
+				if (!lists.contains(postings)){
+					lists.add(postings);
+				}//end if
+			}//end for
+			//shortest list first, so the intersection shrinks fastest
+			lists.sort((a, b) -> Integer.compare(a.count, b.count));
+			int[] docs = lists.get(0).decode();
+			int size = docs.length;
+			for (int l = 1; l < lists.size() && size > 0; ++l){
+				int[] other = lists.get(l).decode();
+				int n = 0;
+				for (int i = 0, j = 0; i < size && j < other.length; ){
+					if (docs[i] < other[j]){
+						++i;
+					}else if (docs[i] > other[j]){
+						++j;
+					}else{
+						docs[n++] = docs[i];
+						++i;
+						++j;
+					}//end if
+				}//end for
+				size = n;
+			}//end for
+			return Arrays.copyOf(docs, size);
+		}
+	}//end Index
+
+	/**
+	 * What searches read: an index and the movies added after it was built,
+	 * in the order they were added.  Updates replace it.
+	 */
+	static class Snapshot{
+		final Index index;
+		final ReferenceCache.Movie[] added;
+
+		Snapshot(Index index, ReferenceCache.Movie[] added){
+			this.index = index;
+			this.added = added;
+		}
+
+		Snapshot with(ReferenceCache.Movie movie){
+			if (index.docOfMvid.get(movie.mvid) != null){
+				return this;
+			}//end if
+			for (ReferenceCache.Movie m : added){
+				if (m.mvid == movie.mvid){
+					return this;
+				}//end if
+			}//end for
+			ReferenceCache.Movie[] more = Arrays.copyOf(added, added.length + 1);
+			more[added.length] = movie;
+			return new Snapshot(index, more);
+		}
+	}//end Snapshot
+
+	private final Ticketmaster esql;
+	private final long ttl;
+	//null until the first build is done
+	private volatile Snapshot snapshot;
+	//movies added during a build, null when none is running
+	private List<ReferenceCache.Movie> pending;
+	//held by the one search that builds a cold index, so others wait for it
+	private final Object coldBuild = new Object();
+	private final AtomicLong searches = new AtomicLong();
+	private final AtomicLong candidates = new AtomicLong();
+	private final AtomicLong matches = new AtomicLong();
+	private final AtomicLong builds = new AtomicLong();
+
+	public MovieSearchIndex(Ticketmaster esql){
+		this(esql, Long.getLong("ticketmaster.movieSearch.ttl", 300000L));
+	}
+
+	public MovieSearchIndex(Ticketmaster esql, long ttl){
+		this.esql = esql;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Lists the movies whose title and/or description contains the text,
+	 * ignoring case, in mvid order.
+	 *
+	 * @param text the substring to look for; empty matches every movie
+	 * @param fields TITLE, DESCRIPTION or both or'ed together
+	 * @param releasedAfter only movies released after this date, or null
+	 * @param genre only movies of this genre, ignoring case, or null
+	 * @param columns the names of the COLUMNS to write, in order
+	 * @return the number of rows written
+	 */
+	public int search(String text, int fields, String releasedAfter, String genre, String[] columns, RowWriter out)
+			throws SQLException {
+		return search(text, fields, false, releasedAfter, genre, columns, out);
+	}
+
+	/**
+	 * @param matchCase when true, candidates must contain the text exactly as
+	 *        given, as LIKE does
+	 */
+	int search(String text, int fields, boolean matchCase, String releasedAfter, String genre, String[] columns,
+			RowWriter out) throws SQLException {
+		if ((fields & (TITLE | DESCRIPTION)) == 0){
+			throw new IllegalArgumentException("Sorry! Search the title, the description or both");
+		}//end if
+		int[] selected = new int[columns.length];
+		int[] types = new int[columns.length];
+		for (int i = 0; i < columns.length; ++i){
+			selected[i] = Arrays.asList(COLUMNS).indexOf(columns[i]);
+			if (selected[i] < 0){
+				throw new IllegalArgumentException("Sorry! No column " + columns[i]);
+			}//end if
+			types[i] = TYPES[selected[i]];
+		}//end for
+		int after = Integer.MIN_VALUE;
+		if (releasedAfter != null){
+			try{
+				after = (int) ShowtimeIndex.parseDate(releasedAfter).toEpochDay();
+			}catch (DateTimeParseException e){
+				throw new IllegalArgumentException("Sorry! Invalid date " + releasedAfter);
+			}//end try
+		}//end if
+		String query = lower(text);
+
+		Snapshot current = current();
+		Index index = current.index;
+		int[] docs;
+		if ((fields & TITLE) != 0 && (fields & DESCRIPTION) != 0){
+			docs = union(index.candidates(index.titleGrams, query), index.candidates(index.descriptionGrams, query));
+		}else{
+			docs = index.candidates((fields & TITLE) != 0 ? index.titleGrams : index.descriptionGrams, query);
+		}//end if
+		List<ReferenceCache.Movie> found = new ArrayList<ReferenceCache.Movie>();
+		for (int doc : docs){
+			ReferenceCache.Movie movie = index.movies.get(doc);
+			if (index.releaseDays[doc] > after && (genre == null || genre.equalsIgnoreCase(movie.genre))
+					&& hit(movie, index.titles.get(doc), index.descriptions.get(doc), text, query, fields, matchCase)){
+				found.add(movie);
+			}//end if
+		}//end for
+		//few, and only until the next build
+		for (ReferenceCache.Movie movie : current.added){
+			if (releaseDay(movie) > after && (genre == null || genre.equalsIgnoreCase(movie.genre))
+					&& hit(movie, lower(movie.title), lower(movie.description), text, query, fields, matchCase)){
+				found.add(movie);
+			}//end if
+		}//end for
+		searches.incrementAndGet();
+		candidates.addAndGet(docs.length + current.added.length);
+		matches.addAndGet(found.size());
+
+		out.columns(columns, types);
+		String[] row = new String[columns.length];
+		for (ReferenceCache.Movie movie : found){
+			for (int i = 0; i < selected.length; ++i){
+				row[i] = value(movie, selected[i]);
+			}//end for
+			out.row(row);
+		}//end for
+		out.flush();
+		return found.size();
+	}
+
+	private static boolean hit(ReferenceCache.Movie movie, String title, String description, String text, String query,
+			int fields, boolean matchCase){
+		if ((fields & TITLE) != 0 && (matchCase ? movie.title.contains(text) : title.contains(query))){
+			return true;
+		}//end if
+		return (fields & DESCRIPTION) != 0 && movie.description != null
+			&& (matchCase ? movie.description.contains(text) : description.contains(query));
+	}
+
+	/**
+	 * @return the release date as an epoch day, Integer.MIN_VALUE when
+	 *         unknown
+	 */
+	private static int releaseDay(ReferenceCache.Movie movie){
+		try{
+			return (int) ShowtimeIndex.parseDate(movie.releaseDate).toEpochDay();
+		}catch (DateTimeParseException e){
+			return Integer.MIN_VALUE;
+		}//end try
+	}
+
+	/**
+	 * Indexes a movie just inserted by this process.
+	 */
+	public synchronized void movieAdded(ReferenceCache.Movie movie){
+		if (snapshot != null){
+			snapshot = snapshot.with(movie);
+		}//end if
+		if (pending != null){
+			pending.add(movie);
+		}//end if
+	}
+
+	/**
+	 * Rebuilds the index in the background; searches use the old one until
+	 * the new one is ready.
+	 */
+	public synchronized void invalidate(){
+		if (pending == null && snapshot != null){
+			startBuild();
+		}//end if
+	}
+
+	/**
+	 * @return the snapshot to search, built first when there is none; a
+	 *         stale one is returned as it is and rebuilt in the background
+	 */
+	private Snapshot current() throws SQLException {
+		Snapshot current = snapshot;
+		if (current == null){
+			synchronized (coldBuild){
+				if (snapshot == null){
+					synchronized (this){
+						pending = new ArrayList<ReferenceCache.Movie>();
+					}//end synchronized
+					Index built = null;
+					try{
+						built = build();
+					}finally{
+						publish(built);
+					}//end try
+				}//end if
+				current = snapshot;
+			}//end synchronized
+		}else if (System.currentTimeMillis() - current.index.builtAt > ttl){
+			synchronized (this){
+				if (pending == null && snapshot.index == current.index){
+					startBuild();
+				}//end if
+			}//end synchronized
+		}//end if
+		return current;
+	}
+
+	private Index build() throws SQLException {
+		Index built = new Index();
+		for (List<String> row : esql.executeQueryAndReturnResult(ALL_MOVIES)){
+			built.add(new ReferenceCache.Movie(row));
+		}//end for
+		builds.incrementAndGet();
+		return built;
+	}
+
+	//called holding the lock
+	private void startBuild(){
+		pending = new ArrayList<ReferenceCache.Movie>();
+		Thread thread = new Thread(this::rebuild, "movie-search-index");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void rebuild(){
+		Index built = null;
+		try{
+			built = build();
+		}catch (Exception e){
+			System.err.println("Movie search index: " + e.getMessage());
+		}//end try
+		publish(built);
+	}
+
+	/**
+	 * Publishes a built index with the movies added while it was built;
+	 * null keeps the current one.
+	 */
+	private synchronized void publish(Index built){
+		if (built != null){
+			//movies added while the rows were read may or may not be in them; with() skips those that are
+			Snapshot next = new Snapshot(built, new ReferenceCache.Movie[0]);
+			for (ReferenceCache.Movie movie : pending){
+				next = next.with(movie);
+			}//end for
+			snapshot = next;
+		}//end if
+		pending = null;
+	}
+
+	/**
+	 * @return the fields named in a list like "title,description", both
+	 *         when the list is null
+	 */
+	public static int fields(String names){
+		if (names == null){
+			return TITLE | DESCRIPTION;
+		}//end if
+		int fields = 0;
+		for (String name : names.split(",")){
+			switch (name.trim()){
+				case "title": fields |= TITLE; break;
+				case "description": fields |= DESCRIPTION; break;
+				default: throw new IllegalArgumentException("Sorry! Cannot search " + name);
+			}//end switch
+		}//end for
+		return fields;
+	}
+
+	/**
+	 * @return the columns named in a list like "title,rdate", all of them
+	 *         when the list is null
+	 */
+	public static String[] columns(String names){
+		if (names == null){
+			return COLUMNS.clone();
+		}//end if
+		String[] columns = names.split(",");
+		for (int i = 0; i < columns.length; ++i){
+			columns[i] = columns[i].trim();
+		}//end for
+		return columns;
+	}
+
+	private static String value(ReferenceCache.Movie movie, int column){
+		switch (column){
+			case 0: return String.valueOf(movie.mvid);
+			case 1: return movie.title;
+			case 2: return movie.releaseDate;
+			case 3: return movie.country;
+			case 4: return movie.description;
+			case 5: return String.valueOf(movie.duration);
+			case 6: return movie.lang;
+			default: return movie.genre;
+		}//end switch
+	}
+
+	private static int[] union(int[] a, int[] b){
+		int[] docs = new int[a.length + b.length];
+		int n = 0, i = 0, j = 0;
+		while (i < a.length || j < b.length){
+			if (j == b.length || (i < a.length && a[i] < b[j])){
+				docs[n++] = a[i++];
+			}else if (i == a.length || b[j] < a[i]){
+				docs[n++] = b[j++];
+			}else{
+				docs[n++] = a[i++];
+				++j;
+			}//end if
+		}//end while
+		return Arrays.copyOf(docs, n);
+	}
+
+	private static String lower(String text){
+		return text == null ? "" : text.toLowerCase(Locale.ROOT);
+	}
+
+	//three UTF-16 units packed into one key
+	private static long gram(String text, int i){
+		return ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+	}
+
+	public String toString(){
+		Snapshot current = snapshot;
+		return "Movie search: " + (current == null ? "cold" : current.index.movies.size() + " movies, "
+			+ current.index.titleGrams.size() + " title and " + current.index.descriptionGrams.size()
+			+ " description trigrams, " + current.added.length + " added") + ", " + searches.get() + " searches, "
+			+ candidates.get() + " candidates, " + matches.get() + " matches, " + builds.get() + " builds";
+	}
+}//end MovieSearchIndex
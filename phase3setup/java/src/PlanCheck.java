@@ -0,0 +1,403 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class checks the query plans of the statements the application
+ * issues against a loaded database.  Every statement runs under
+ * EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON) with parameters taken from the
+ * data, inside a transaction that is rolled back, so updates and deletes
+ * leave no trace.
+ *
+ * A statement fails the check when its plan
+ *
+ *   - scans a table of more than --min-rows rows sequentially, unless the
+ *     statement is a sweep that is expected to read most of the table,
+ *   - has an estimated total cost above --max-cost, or
+ *   - takes longer than --max-ms milliseconds to execute.
+ *
+ * The exit status is the number of failed statements, so the check can gate
+ * a build or a release.  Run it after loading data at the scale you care
+ * about; small tables are scanned sequentially whatever the indexes.
+ * Statements that need a row the database does not have (a booking holding
+ * a seat, a show playing in a theater, a user) are listed as skipped.
+ *
+ */
+
+public class PlanCheck{
+	/**
+	 * One statement with the parameters it is explained with.
+	 */
+	static class Check{
+		final String name;
+		final String sql;
+		final Object[] params;
+		//sweeps over a large share of the table may scan it
+		boolean sweep;
+		//statements run first, with the same parameters, to satisfy foreign keys
+		String[] setup = new String[0];
+
+		Check(String name, String sql, Object... params){
+			this.name = name;
+			this.sql = sql;
+			this.params = params;
+		}
+
+		Check sweep(){
+			this.sweep = true;
+			return this;
+		}
+
+		Check after(String... setup){
+			this.setup = setup;
+			return this;
+		}
+	}//end Check
+
+	/**
+	 * The outcome of one check.
+	 */
+	static class Result{
+		final Check check;
+		double cost, planMs, executionMs;
+		long sharedHits, sharedReads;
+		final List<String> seqScans = new ArrayList<String>();
+		final List<String> failures = new ArrayList<String>();
+
+		Result(Check check){
+			this.check = check;
+		}
+	}//end Result
+
+	private final ConnectionPool pool;
+	private final double maxCost;
+	private final double maxMs;
+	private final long minRows;
+	private final Map<String, Long> tableRows = new HashMap<String, Long>();
+	//name and reason of the statements checks() found no parameters for
+	private final List<String[]> skipped = new ArrayList<String[]>();
+
+	public PlanCheck(ConnectionPool pool, double maxCost, double maxMs, long minRows){
+		this.pool = pool;
+		this.maxCost = maxCost;
+		this.maxMs = maxMs;
+		this.minRows = minRows;
+	}
+
+	/**
+	 * @return the statements of TicketOperations, SeatIndex, ReferenceCache,
+	 *         BookingReaper and Validation with parameters of existing rows;
+	 *         those no row can be found for are added to skipped instead
+	 */
+	List<Check> checks() throws SQLException {
+		skipped.clear();
+		List<Check> checks = new ArrayList<Check>();
+		checks.add(new Check("PENDING_CHUNK", BookingReaper.PENDING_CHUNK, "infinity", "-infinity", -1L, 500));
+		checks.add(new Check("CANCELLED_CHUNK", BookingReaper.CANCELLED_CHUNK, -1L, 500));
+		checks.add(new Check("ALL_MOVIES", MovieSearchIndex.ALL_MOVIES).sweep());
+		checks.add(new Check("USERS_WITH_PENDING", TicketOperations.USERS_WITH_PENDING));
+		checks.add(new Check("ALL_SHOWS", ShowtimeIndex.ALL_SHOWS).sweep());
+		checks.add(new Check("THEATER_COUNT", ReferenceCache.THEATER_COUNT).sweep());
+		//one key above those in use for the inserts, which are rolled back
+		long key = Long.parseLong(first("SELECT GREATEST((SELECT MAX(bid) FROM Bookings), (SELECT MAX(sid) FROM Shows),"
+			+ " (SELECT MAX(mvid) FROM Movies), 0) + 1").get(0));
+		checks.add(new Check("INSERT_USER", TicketOperations.INSERT_USER, "plancheck" + key + "@example.invalid", "Check",
+			"Plan", new BigDecimal("5550100000"), String.format("%064d", 0)));
+		checks.add(new Check("INSERT_MOVIE", TicketOperations.INSERT_MOVIE, key, "Plan check", "2020-01-01", "US",
+			"Plan check", 5400, "en", "Drama"));
+
+		List<String> booking = first("SELECT B.bid, B.email, B.sid, S.ssid FROM Bookings B JOIN ShowSeats S ON S.bid = B.bid"
+			+ " ORDER BY B.bid LIMIT 1");
+		if (booking == null){
+			skip("no booking holds a show seat", "BOOKING_EXISTS", "SEAT_OF_BOOKING", "SEAT_OF_SAME_SHOW", "SEAT_FREE",
+				"SEAT_SAME_PRICE", "CLAIM_SEATS", "MOVE_SEAT", "RELEASE_SEAT", "PAID_BOOKING", "DELETE_PAYMENT", "CANCEL_BOOKING",
+				"CANCEL_PENDING_BOOKING", "RELEASE_BOOKING_SEATS", "CANCEL_CHUNK", "RELEASE_CHUNK_SEATS", "DELETE_CHUNK",
+				"VALIDATE_SEAT_CHANGE");
+		}else{
+			long bid = Long.parseLong(booking.get(0));
+			long sid = Long.parseLong(booking.get(2));
+			long ssid = Long.parseLong(booking.get(3));
+			List<String> free = first("SELECT ssid FROM ShowSeats WHERE sid = " + sid + " AND bid IS NULL ORDER BY ssid LIMIT 1");
+			long freeSsid = free == null ? ssid : Long.parseLong(free.get(0));
+			checks.add(new Check("BOOKING_EXISTS", TicketOperations.BOOKING_EXISTS, bid));
+			checks.add(new Check("SEAT_OF_BOOKING", TicketOperations.SEAT_OF_BOOKING, ssid, bid));
+			checks.add(new Check("SEAT_OF_SAME_SHOW", TicketOperations.SEAT_OF_SAME_SHOW, freeSsid, ssid));
+			checks.add(new Check("SEAT_FREE", TicketOperations.SEAT_FREE, freeSsid));
+			checks.add(new Check("SEAT_SAME_PRICE", TicketOperations.SEAT_SAME_PRICE, freeSsid, ssid));
+			checks.add(new Check("CLAIM_SEATS", TicketOperations.CLAIM_SEATS, bid, sid, new long[]{freeSsid}));
+			checks.add(new Check("MOVE_SEAT", TicketOperations.MOVE_SEAT, bid, freeSsid));
+			checks.add(new Check("RELEASE_SEAT", TicketOperations.RELEASE_SEAT, ssid, bid));
+			checks.add(new Check("PAID_BOOKING", TicketOperations.PAID_BOOKING, bid));
+			checks.add(new Check("DELETE_PAYMENT", TicketOperations.DELETE_PAYMENT, bid));
+			checks.add(new Check("CANCEL_BOOKING", TicketOperations.CANCEL_BOOKING, bid));
+			checks.add(new Check("CANCEL_PENDING_BOOKING", TicketOperations.CANCEL_PENDING_BOOKING, bid));
+			checks.add(new Check("RELEASE_BOOKING_SEATS", TicketOperations.RELEASE_BOOKING_SEATS, bid));
+			checks.add(new Check("CANCEL_CHUNK", BookingReaper.CANCEL_CHUNK, new long[]{bid}));
+			checks.add(new Check("RELEASE_CHUNK_SEATS", BookingReaper.RELEASE_CHUNK_SEATS, new long[]{bid}));
+			checks.add(new Check("DELETE_CHUNK", BookingReaper.DELETE_CHUNK, new long[]{bid}));
+			Validation seatChange = TicketOperations.seatChangeChecks(null, bid, ssid, freeSsid);
+			checks.add(new Check("VALIDATE_SEAT_CHANGE", seatChange.getSql(), seatChange.getParams()));
+		}//end if
+
+		List<String> user = booking != null ? booking.subList(1, 2) : first("SELECT email FROM Users ORDER BY email LIMIT 1");
+		if (user == null){
+			skip("no user", "USER_EXISTS", "BOOKINGS_OF_USER");
+		}else{
+			checks.add(new Check("USER_EXISTS", TicketOperations.USER_EXISTS, user.get(0)));
+			checks.add(new Check("BOOKINGS_OF_USER", TicketOperations.BOOKINGS_OF_USER, user.get(0)));
+		}//end if
+
+		//the show of the booking, or any show when there is no booking
+		List<String> show = first("SELECT S.sid, S.mvid, S.sdate, S.sttime, M.title, C.cname, C.cid, P.tid, C.city_id FROM Shows S"
+			+ " JOIN Movies M ON M.mvid = S.mvid JOIN Plays P ON P.sid = S.sid JOIN Theaters T ON T.tid = P.tid"
+			+ " JOIN Cinemas C ON C.cid = T.cid" + (booking == null ? "" : " WHERE S.sid = " + booking.get(2))
+			+ " ORDER BY S.sid, P.tid LIMIT 1");
+		if (show == null){
+			skip("no show plays in a theater", "SHOW_OF_MOVIE", "LOCK_SHOWS_ON_DATE", "DELETE_SHOW_PAYMENTS",
+				"DELETE_SHOW_SEATS", "DELETE_SHOW_BOOKINGS", "DELETE_SHOW_PLAYS", "DELETE_SHOWS", "SHOWS_AT", "SHOWTIMES",
+				"SHOW_SEATS", "THEATER_LAYOUT", "CITY", "CINEMA", "THEATER", "MOVIE", "PLAYS", "CINEMAS_NAMED", "MOVIES_TITLED",
+				"INSERT_SHOW", "INSERT_PLAY", "INSERT_BOOKING", "VALIDATE_BOOKING");
+			return checks;
+		}//end if
+		long sid = Long.parseLong(show.get(0)), mvid = Long.parseLong(show.get(1));
+		String sdate = show.get(2), sttime = show.get(3), title = show.get(4), cname = show.get(5);
+		long cid = Long.parseLong(show.get(6)), tid = Long.parseLong(show.get(7));
+		long[] sids = new long[]{sid};
+		checks.add(new Check("SHOW_OF_MOVIE", TicketOperations.SHOW_OF_MOVIE, sid, mvid));
+		checks.add(new Check("LOCK_SHOWS_ON_DATE", TicketOperations.LOCK_SHOWS_ON_DATE, sdate, cname));
+		checks.add(new Check("DELETE_SHOW_PAYMENTS", TicketOperations.DELETE_SHOW_PAYMENTS, sids));
+		checks.add(new Check("DELETE_SHOW_SEATS", TicketOperations.DELETE_SHOW_SEATS, sids));
+		checks.add(new Check("DELETE_SHOW_BOOKINGS", TicketOperations.DELETE_SHOW_BOOKINGS, sids)
+			.after(TicketOperations.DELETE_SHOW_SEATS));
+		checks.add(new Check("DELETE_SHOW_PLAYS", TicketOperations.DELETE_SHOW_PLAYS, sids));
+		checks.add(new Check("DELETE_SHOWS", TicketOperations.DELETE_SHOWS, sids).after(TicketOperations.DELETE_SHOW_SEATS,
+			TicketOperations.DELETE_SHOW_BOOKINGS, TicketOperations.DELETE_SHOW_PLAYS));
+		checks.add(new Check("SHOWS_AT", TicketOperations.SHOWS_AT, sdate, sttime));
+		checks.add(new Check("SHOWTIMES", ShowtimeIndex.SHOWTIMES, title, sdate, sdate, cname));
+		checks.add(new Check("SHOW_SEATS", SeatIndex.SHOW_SEATS, sid));
+		checks.add(new Check("THEATER_LAYOUT", SeatFinder.THEATER_LAYOUT, tid));
+		checks.add(new Check("CITY", ReferenceCache.CITY, Long.parseLong(show.get(8))));
+		checks.add(new Check("CINEMA", ReferenceCache.CINEMA, cid));
+		checks.add(new Check("THEATER", ReferenceCache.THEATER, tid));
+		checks.add(new Check("MOVIE", ReferenceCache.MOVIE, mvid));
+		checks.add(new Check("PLAYS", ReferenceCache.PLAYS, sid));
+		checks.add(new Check("CINEMAS_NAMED", ReferenceCache.CINEMAS_NAMED, cname));
+		checks.add(new Check("MOVIES_TITLED", ReferenceCache.MOVIES_TITLED, title));
+		checks.add(new Check("INSERT_SHOW", TicketOperations.INSERT_SHOW, key, mvid, sdate, sttime, sttime));
+		List<String> other = first("SELECT tid FROM Theaters WHERE tid NOT IN (SELECT tid FROM Plays WHERE sid = " + sid + ")"
+			+ " ORDER BY tid LIMIT 1");
+		if (other == null){
+			skip("the show plays in every theater", "INSERT_PLAY");
+		}else{
+			checks.add(new Check("INSERT_PLAY", TicketOperations.INSERT_PLAY, sid, Long.parseLong(other.get(0))));
+		}//end if
+		if (user == null){
+			skip("no user", "INSERT_BOOKING", "VALIDATE_BOOKING");
+		}else{
+			checks.add(new Check("INSERT_BOOKING", TicketOperations.INSERT_BOOKING, key, "Pending",
+				new Timestamp(System.currentTimeMillis()), 1, sid, user.get(0)));
+			Validation booked = TicketOperations.bookingChecks(null, user.get(0), sid, mvid);
+			checks.add(new Check("VALIDATE_BOOKING", booked.getSql(), booked.getParams()));
+		}//end if
+		return checks;
+	}
+
+	/**
+	 * Records statements that cannot be checked for want of a sample row.
+	 */
+	private void skip(String reason, String... names){
+		for (String name : names){
+			skipped.add(new String[]{name, reason});
+		}//end for
+	}
+
+	/**
+	 * Runs all checks and prints one line per statement.
+	 *
+	 * @return the number of failed statements
+	 */
+	public int run() throws SQLException {
+		loadTableRows();
+		int failed = 0;
+		System.out.println(String.format("%-24s %-6s %10s %9s %9s %9s  %s", "statement", "result", "cost", "exec ms",
+			"hit", "read", "notes"));
+		for (Check check : checks()){
+			Result r;
+			try{
+				r = explain(check);
+			}catch (SQLException e){
+				r = new Result(check);
+				r.failures.add("error: " + e.getMessage().split("\n")[0]);
+			}//end try
+			if (!r.failures.isEmpty()){
+				++failed;
+			}//end if
+			List<String> notes = new ArrayList<String>(r.failures);
+			if (r.failures.isEmpty() && !r.seqScans.isEmpty()){
+				notes.add("seq scan " + String.join(", ", r.seqScans));
+			}//end if
+			System.out.println(String.format("%-24s %-6s %10.1f %9.3f %9d %9d  %s", check.name,
+				r.failures.isEmpty() ? "ok" : "FAIL", r.cost, r.executionMs, r.sharedHits, r.sharedReads, String.join("; ", notes)));
+		}//end for
+		for (String[] skip : skipped){
+			System.out.println(String.format("%-24s %-6s %10s %9s %9s %9s  %s", skip[0], "skip", "", "", "", "", skip[1]));
+		}//end for
+		System.out.println((failed == 0 ? "All plans within budget" : failed + " statements over budget")
+			+ (skipped.isEmpty() ? "" : ", " + skipped.size() + " not checked"));
+		return failed;
+	}
+
+	/**
+	 * Explains and runs one statement in a transaction that is rolled back.
+	 */
+	@SuppressWarnings("unchecked")
+	Result explain(Check check) throws SQLException {
+		Result r = new Result(check);
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		Connection conn = pc.getConnection();
+		try{
+			conn.setAutoCommit(false);
+			for (String sql : check.setup){
+				PreparedStatement setup = Ticketmaster.bind(conn, conn.prepareStatement(sql), check.params);
+				setup.executeUpdate();
+				setup.close();
+			}//end for
+			PreparedStatement stmt = Ticketmaster.bind(conn, conn.prepareStatement("EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON) "
+				+ check.sql), check.params);
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			Map<String, Object> explained = (Map<String, Object>) ((List<Object>) Json.parse(rs.getString(1))).get(0);
+			rs.close();
+			stmt.close();
+
+			Map<String, Object> plan = (Map<String, Object>) explained.get("Plan");
+			r.cost = number(plan.get("Total Cost"));
+			r.planMs = number(explained.get("Planning Time"));
+			r.executionMs = number(explained.get("Execution Time"));
+			walk(plan, r);
+		}finally{
+			try{
+				conn.rollback();
+			}finally{
+				pool.release(pc);
+			}//end try
+		}//end try
+
+		if (!check.sweep){
+			for (String table : r.seqScans){
+				Long rows = tableRows.get(table.toLowerCase());
+				if (rows != null && rows > minRows){
+					r.failures.add("seq scan on " + table + " (" + rows + " rows)");
+				}//end if
+			}//end for
+		}//end if
+		if (r.cost > maxCost){
+			r.failures.add(String.format("cost %.0f > %.0f", r.cost, maxCost));
+		}//end if
+		if (r.executionMs > maxMs){
+			r.failures.add(String.format("%.1f ms > %.1f ms", r.executionMs, maxMs));
+		}//end if
+		return r;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void walk(Map<String, Object> node, Result r){
+		if ("Seq Scan".equals(node.get("Node Type")) && node.get("Relation Name") != null){
+			r.seqScans.add((String) node.get("Relation Name"));
+		}//end if
+		r.sharedHits += (long) number(node.get("Shared Hit Blocks"));
+		r.sharedReads += (long) number(node.get("Shared Read Blocks"));
+		Object children = node.get("Plans");
+		if (children instanceof List){
+			for (Object child : (List<Object>) children){
+				walk((Map<String, Object>) child, r);
+			}//end for
+		}//end if
+	}
+
+	private static double number(Object value){
+		return value instanceof Number ? ((Number) value).doubleValue() : 0;
+	}
+
+	private void loadTableRows() throws SQLException {
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		try{
+			ResultSet rs = pc.getConnection().createStatement().executeQuery(
+				"SELECT relname, reltuples::bigint FROM pg_class WHERE relkind = 'r'");
+			while (rs.next()){
+				tableRows.put(rs.getString(1), rs.getLong(2));
+			}//end while
+			rs.close();
+		}finally{
+			pool.release(pc);
+		}//end try
+	}
+
+	private List<String> first(String sql) throws SQLException {
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		try{
+			ResultSet rs = pc.getConnection().createStatement().executeQuery(sql);
+			if (!rs.next()){
+				rs.close();
+				return null;
+			}//end if
+			List<String> row = new ArrayList<String>();
+			for (int i = 1; i <= rs.getMetaData().getColumnCount(); ++i){
+				row.add(rs.getString(i));
+			}//end for
+			rs.close();
+			return row;
+		}finally{
+			pool.release(pc);
+		}//end try
+	}
+
+	/**
+	 * The plan check entry point.
+	 *
+	 * @param args <dbname> <port> <user> [--max-cost N] [--max-ms N] [--min-rows N]
+	 */
+	public static void main(String[] args){
+		if (args.length < 3 || args.length % 2 != 1){
+			System.err.println("Usage: java [-classpath <classpath>] " + PlanCheck.class.getName()
+				+ " <dbname> <port> <user> [--max-cost N] [--max-ms N] [--min-rows N]");
+			return;
+		}//end if
+
+		double maxCost = 50000, maxMs = 50;
+		long minRows = 10000;
+		for (int i = 3; i < args.length; i += 2){
+			switch (args[i]){
+				case "--max-cost": maxCost = Double.parseDouble(args[i + 1]); break;
+				case "--max-ms": maxMs = Double.parseDouble(args[i + 1]); break;
+				case "--min-rows": minRows = Long.parseLong(args[i + 1]); break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(-1);
+			}//end switch
+		}//end for
+
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		ConnectionPool pool = null;
+		int failed;
+		try{
+			pool = new ConnectionPool(url, args[2], "", 0, 1, 60000L, 0L);
+			failed = new PlanCheck(pool, maxCost, maxMs, minRows).run();
+		}catch (Exception e){
+			System.err.println(e.getMessage());
+			failed = -1;
+		}finally{
+			if (pool != null){
+				pool.close();
+			}//end if
+		}//end try
+		System.exit(failed);
+	}
+}//end PlanCheck
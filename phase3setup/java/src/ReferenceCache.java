@@ -0,0 +1,407 @@
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class caches the slowly changing reference tables (Cities, Cinemas,
+ * Theaters, Movies and Plays) in process, read through: a lookup that misses
+ * loads the one row it needs and keeps it.
+ *
+ * Records are kept in LongMaps keyed by their primitive ID, each bounded to
+ * ticketmaster.cache.size entries with CLOCK eviction.  Secondary indexes by
+ * name (cinema name to cids, movie title to mvids) are small LRU maps.  The
+ * theaters of a show (Plays) are kept per sid, so tid to cid and sid to tids
+ * are answered without a query once loaded.
+ *
+ * Writers call showChanged() and movieChanged() after changing Plays, Shows
+ * or Movies.  For changes made by other processes everything is dropped
+ * once it is older than ticketmaster.cache.ttl milliseconds (see refresh()),
+ * and lookups that find nothing are never cached, so a row added elsewhere
+ * is seen by the next lookup.
+ *
+ */
+
+public class ReferenceCache{
+	//default bound on the entries of every table
+	public static final int DEFAULT_SIZE = 100000;
+	//default age in milliseconds after which everything is reloaded
+	public static final long DEFAULT_TTL = 300000L;
+
+	static final String CITY = "SELECT city_id, city_name, city_state, zip_code FROM Cities WHERE city_id = ?";
+	static final String CINEMA = "SELECT cid, city_id, cname, tnum FROM Cinemas WHERE cid = ?";
+	static final String THEATER = "SELECT tid, cid, tname, tseats FROM Theaters WHERE tid = ?";
+	static final String MOVIE = "SELECT mvid, title, rdate, country, description, duration, lang, genre FROM Movies WHERE mvid = ?";
+	static final String PLAYS = "SELECT tid FROM Plays WHERE sid = ? ORDER BY tid";
+	static final String CINEMAS_NAMED = "SELECT cid FROM Cinemas WHERE cname = ? ORDER BY cid";
+	static final String MOVIES_TITLED = "SELECT mvid FROM Movies WHERE title = ? ORDER BY mvid";
+	static final String THEATER_COUNT = "SELECT COUNT(*) FROM Theaters";
+
+	public static class City{
+		public final long cityId;
+		public final String name;
+		public final String state;
+		public final String zipCode;
+
+		City(List<String> row){
+			cityId = Long.parseLong(row.get(0));
+			name = row.get(1);
+			state = row.get(2);
+			zipCode = row.get(3);
+		}
+	}//end City
+
+	public static class Cinema{
+		public final long cid;
+		public final long cityId;
+		public final String name;
+		public final int theaters;
+
+		Cinema(List<String> row){
+			cid = Long.parseLong(row.get(0));
+			cityId = Long.parseLong(row.get(1));
+			name = row.get(2);
+			theaters = Integer.parseInt(row.get(3));
+		}
+	}//end Cinema
+
+	public static class Theater{
+		public final long tid;
+		public final long cid;
+		public final String name;
+		public final long seats;
+
+		Theater(List<String> row){
+			tid = Long.parseLong(row.get(0));
+			cid = Long.parseLong(row.get(1));
+			name = row.get(2);
+			seats = Long.parseLong(row.get(3));
+		}
+	}//end Theater
+
+	public static class Movie{
+		public final long mvid;
+		public final String title;
+		public final String releaseDate;
+		public final String country;
+		public final String description;
+		public final int duration;
+		public final String lang;
+		public final String genre;
+
+		Movie(List<String> row){
+			mvid = Long.parseLong(row.get(0));
+			title = row.get(1);
+			releaseDate = row.get(2);
+			country = row.get(3);
+			description = row.get(4);
+			duration = row.get(5) == null ? 0 : Integer.parseInt(row.get(5));
+			lang = row.get(6);
+			genre = row.get(7);
+		}
+	}//end Movie
+
+	/**
+	 * Turns the rows of a by-key query into the cached value, or null when
+	 * there is nothing to cache.
+	 */
+	interface Loader<V>{
+		V load(List<List<String>> rows);
+	}
+
+	/**
+	 * One cached table keyed by a long ID, with its counters.
+	 */
+	class Table<V>{
+		final String name;
+		final String sql;
+		final Loader<V> loader;
+		final LongMap<V> map;
+		long hits, misses;
+		//bumped by remove() and clear(), so a load that raced with one is not cached
+		long generation;
+
+		Table(String name, String sql, int size, Loader<V> loader){
+			this.name = name;
+			this.sql = sql;
+			this.loader = loader;
+			this.map = new LongMap<V>(size);
+		}
+
+		V get(long key) throws SQLException {
+			refresh(ttl);
+			long loading;
+			synchronized (this){
+				V value = map.get(key);
+				if (value != null){
+					hits++;
+					return value;
+				}//end if
+				misses++;
+				loading = generation;
+			}//end synchronized
+			//loads outside the lock; a concurrent miss on the same key loads it twice
+			V value = loader.load(esql.executeQueryAndReturnResult(sql, key));
+			if (value != null){
+				synchronized (this){
+					if (generation == loading){
+						map.put(key, value);
+					}//end if
+				}//end synchronized
+			}//end if
+			return value;
+		}
+
+		synchronized void remove(long key){
+			map.remove(key);
+			generation++;
+		}
+
+		synchronized void clear(){
+			map.clear();
+			generation++;
+		}
+
+		synchronized String stats(){
+			return name + " " + map.size() + " entries, " + hits + " hits, " + misses + " misses, "
+				+ map.getEvictions() + " evictions";
+		}
+	}//end Table
+
+	/**
+	 * A name to IDs index, least recently used entries evicted first.
+	 */
+	class NameIndex{
+		final String name;
+		final String sql;
+		final int size;
+		final LinkedHashMap<String, long[]> map;
+		long hits, misses, evictions;
+		//bumped by remove() and clear(), like Table.generation
+		long generation;
+
+		NameIndex(String name, String sql, int size){
+			this.name = name;
+			this.sql = sql;
+			this.size = size;
+			//access-ordered, so the eldest entry is the least recently used one
+			this.map = new LinkedHashMap<String, long[]>(16, 0.75f, true);
+		}
+
+		long[] get(String key) throws SQLException {
+			refresh(ttl);
+			long loading;
+			synchronized (this){
+				long[] ids = map.get(key);
+				if (ids != null){
+					hits++;
+					return ids;
+				}//end if
+				misses++;
+				loading = generation;
+			}//end synchronized
+			long[] ids = ids(esql.executeQueryAndReturnResult(sql, key));
+			synchronized (this){
+				//no such name yet, it may be added by another process
+				if (generation != loading || ids.length == 0){
+					return ids;
+				}//end if
+				map.put(key, ids);
+				if (map.size() > size){
+					Iterator<Map.Entry<String, long[]>> eldest = map.entrySet().iterator();
+					eldest.next();
+					eldest.remove();
+					evictions++;
+				}//end if
+			}//end synchronized
+			return ids;
+		}
+
+		synchronized void remove(String key){
+			map.remove(key);
+			generation++;
+		}
+
+		synchronized void clear(){
+			map.clear();
+			generation++;
+		}
+
+		synchronized String stats(){
+			return name + " " + map.size() + " entries, " + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+		}
+	}//end NameIndex
+
+	private final Ticketmaster esql;
+	private final Table<City> cities;
+	private final Table<Cinema> cinemas;
+	private final Table<Theater> theaters;
+	private final Table<Movie> movies;
+	//sid to the tids of Plays
+	private final Table<long[]> plays;
+	private final NameIndex cinemaNames;
+	private final NameIndex movieTitles;
+	//-1 until loaded
+	private volatile int theaterCount = -1;
+	private final long ttl;
+	//when invalidateAll() last ran
+	private volatile long clearedAt = System.currentTimeMillis();
+
+	public ReferenceCache(Ticketmaster esql){
+		this(esql, Integer.getInteger("ticketmaster.cache.size", DEFAULT_SIZE),
+			Long.getLong("ticketmaster.cache.ttl", DEFAULT_TTL));
+	}
+
+	public ReferenceCache(Ticketmaster esql, int size, long ttl){
+		this.esql = esql;
+		this.ttl = ttl;
+		cities = new Table<City>("cities", CITY, size, rows -> rows.isEmpty() ? null : new City(rows.get(0)));
+		cinemas = new Table<Cinema>("cinemas", CINEMA, size, rows -> rows.isEmpty() ? null : new Cinema(rows.get(0)));
+		theaters = new Table<Theater>("theaters", THEATER, size, rows -> rows.isEmpty() ? null : new Theater(rows.get(0)));
+		movies = new Table<Movie>("movies", MOVIE, size, rows -> rows.isEmpty() ? null : new Movie(rows.get(0)));
+		//a show without Plays rows may get them from another process
+		plays = new Table<long[]>("plays", PLAYS, size, rows -> rows.isEmpty() ? null : ids(rows));
+		cinemaNames = new NameIndex("cinema names", CINEMAS_NAMED, Math.max(1, size / 10));
+		movieTitles = new NameIndex("movie titles", MOVIES_TITLED, Math.max(1, size / 10));
+	}
+
+	private static long[] ids(List<List<String>> rows){
+		long[] ids = new long[rows.size()];
+		for (int i = 0; i < ids.length; ++i){
+			ids[i] = Long.parseLong(rows.get(i).get(0));
+		}//end for
+		return ids;
+	}
+
+	/**
+	 * @return the record, or null when there is no such row
+	 */
+	public City city(long cityId) throws SQLException {
+		return cities.get(cityId);
+	}
+
+	public Cinema cinema(long cid) throws SQLException {
+		return cinemas.get(cid);
+	}
+
+	public Theater theater(long tid) throws SQLException {
+		return theaters.get(tid);
+	}
+
+	public Movie movie(long mvid) throws SQLException {
+		return movies.get(mvid);
+	}
+
+	/**
+	 * @return the tids the show plays in, ascending; empty for none
+	 */
+	public long[] theatersOfShow(long sid) throws SQLException {
+		long[] tids = plays.get(sid);
+		return tids == null ? new long[0] : tids;
+	}
+
+	/**
+	 * @return the cids of the cinemas with this name, ascending
+	 */
+	public long[] cinemasNamed(String name) throws SQLException {
+		return cinemaNames.get(name);
+	}
+
+	/**
+	 * @return the mvids of the movies with this title, ascending
+	 */
+	public long[] moviesTitled(String title) throws SQLException {
+		return movieTitles.get(title);
+	}
+
+	public boolean theaterInCinema(long tid, long cid) throws SQLException {
+		Theater theater = theaters.get(tid);
+		return theater != null && theater.cid == cid;
+	}
+
+	public boolean showPlaysIn(long sid, long tid) throws SQLException {
+		for (long t : theatersOfShow(sid)){
+			if (t == tid){
+				return true;
+			}//end if
+		}//end for
+		return false;
+	}
+
+	public int theaterCount() throws SQLException {
+		int count = theaterCount;
+		if (count < 0){
+			count = Integer.parseInt(esql.executeQueryAndReturnResult(THEATER_COUNT).get(0).get(0));
+			theaterCount = count;
+		}//end if
+		return count;
+	}
+
+	/**
+	 * Drops what is cached about a show after its Plays rows changed or the
+	 * show was deleted.
+	 */
+	public void showChanged(long sid){
+		plays.remove(sid);
+	}
+
+	/**
+	 * Drops what is cached about a movie after it was added or changed.
+	 */
+	public void movieChanged(long mvid, String title){
+		movies.remove(mvid);
+		movieTitles.remove(title);
+	}
+
+	/**
+	 * Drops everything when it was cached more than maxAge milliseconds ago.
+	 * Lookups call it with ticketmaster.cache.ttl; ShowtimeIndex calls it with
+	 * its own ttl when it rebuilds, so the names it resolves are no older than
+	 * the shows it indexes.
+	 */
+	public void refresh(long maxAge){
+		if (System.currentTimeMillis() - clearedAt > maxAge){
+			invalidateAll();
+		}//end if
+	}
+
+	public void invalidateAll(){
+		clearedAt = System.currentTimeMillis();
+		cities.clear();
+		cinemas.clear();
+		theaters.clear();
+		movies.clear();
+		plays.clear();
+		cinemaNames.clear();
+		movieTitles.clear();
+		theaterCount = -1;
+	}
+
+	/**
+	 * @return hits over lookups across all tables and indexes, 0 before the
+	 *         first lookup
+	 */
+	public double getHitRate(){
+		long hits = 0, lookups = 0;
+		for (Table<?> table : new Table<?>[]{cities, cinemas, theaters, movies, plays}){
+			synchronized (table){
+				hits += table.hits;
+				lookups += table.hits + table.misses;
+			}//end synchronized
+		}//end for
+		for (NameIndex index : new NameIndex[]{cinemaNames, movieTitles}){
+			synchronized (index){
+				hits += index.hits;
+				lookups += index.hits + index.misses;
+			}//end synchronized
+		}//end for
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public String toString(){
+		return String.format("Reference cache: %.1f%% hits; ", 100 * getHitRate()) + cities.stats() + "; "
+			+ cinemas.stats() + "; " + theaters.stats() + "; " + movies.stats() + "; " + plays.stats() + "; "
+			+ cinemaNames.stats() + "; " + movieTitles.stats();
+	}
+}//end ReferenceCache
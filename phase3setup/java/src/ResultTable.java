@@ -0,0 +1,258 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * This class holds a query result column by column.  BIGINT columns are kept
+ * in a long[], INTEGER and SMALLINT columns in an int[], REAL columns in a
+ * float[] and DOUBLE PRECISION columns in a double[]; everything else is
+ * kept as the driver's string.  Reading a numeric cell with getLong(),
+ * getInt() or getFloat() neither parses nor allocates, and a numeric cell
+ * costs its primitive width plus one bit for NULL instead of a String and
+ * its share of an ArrayList per row.
+ *
+ * Columns are addressed by index, starting at 0, and can be looked up by
+ * name with column().  A table is not thread-safe; it is filled once by
+ * Ticketmaster.executeQueryAndReturnTable() and only read afterwards.
+ *
+ */
+
+public class ResultTable{
+	//how a column is stored
+	static final int LONG = 0;
+	static final int INT = 1;
+	static final int FLOAT = 2;
+	static final int DOUBLE = 3;
+	static final int STRING = 4;
+
+	private final String[] names;
+	private final int[] sqlTypes;
+	private final int[] kinds;
+	//one of these per column, by kind
+	private final long[][] longs;
+	private final int[][] ints;
+	private final float[][] floats;
+	private final double[][] doubles;
+	private final String[][] strings;
+	//a set bit per NULL cell, row-major: bit row * columns + column
+	private long[] nulls = new long[1];
+	private int capacity;
+	private int size;
+
+	ResultTable(ResultSetMetaData meta) throws SQLException {
+		int columns = meta.getColumnCount();
+		names = new String[columns];
+		sqlTypes = new int[columns];
+		kinds = new int[columns];
+		longs = new long[columns][];
+		ints = new int[columns][];
+		floats = new float[columns][];
+		doubles = new double[columns][];
+		strings = new String[columns][];
+		for (int c = 0; c < columns; ++c){
+			names[c] = meta.getColumnLabel(c + 1);
+			sqlTypes[c] = meta.getColumnType(c + 1);
+			kinds[c] = kind(sqlTypes[c]);
+		}//end for
+		grow(16);
+	}
+
+	private static int kind(int sqlType){
+		switch (sqlType){
+			case Types.BIGINT: return LONG;
+			case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT: return INT;
+			case Types.REAL: return FLOAT;
+			//the driver reports float8 as DOUBLE
+			case Types.DOUBLE: case Types.FLOAT: return DOUBLE;
+			default: return STRING;
+		}
+	}
+
+	/**
+	 * Reads every remaining row of the result set into a new table.
+	 */
+	static ResultTable read(ResultSet rs) throws SQLException {
+		ResultTable table = new ResultTable(rs.getMetaData());
+		while (rs.next()){
+			table.add(rs);
+		}//end while
+		return table;
+	}
+
+	private void add(ResultSet rs) throws SQLException {
+		if (size == capacity){
+			grow(capacity * 2);
+		}//end if
+		int row = size++;
+		for (int c = 0; c < kinds.length; ++c){
+			switch (kinds[c]){
+				case LONG: longs[c][row] = rs.getLong(c + 1); break;
+				case INT: ints[c][row] = rs.getInt(c + 1); break;
+				case FLOAT: floats[c][row] = rs.getFloat(c + 1); break;
+				case DOUBLE: doubles[c][row] = rs.getDouble(c + 1); break;
+				default: strings[c][row] = rs.getString(c + 1); break;
+			}
+			if (rs.wasNull()){
+				long bit = (long) row * kinds.length + c;
+				nulls[(int) (bit >>> 6)] |= 1L << bit;
+			}//end if
+		}//end for
+	}
+
+	private void grow(int rows){
+		for (int c = 0; c < kinds.length; ++c){
+			switch (kinds[c]){
+				case LONG: longs[c] = longs[c] == null ? new long[rows] : Arrays.copyOf(longs[c], rows); break;
+				case INT: ints[c] = ints[c] == null ? new int[rows] : Arrays.copyOf(ints[c], rows); break;
+				case FLOAT: floats[c] = floats[c] == null ? new float[rows] : Arrays.copyOf(floats[c], rows); break;
+				case DOUBLE: doubles[c] = doubles[c] == null ? new double[rows] : Arrays.copyOf(doubles[c], rows); break;
+				default: strings[c] = strings[c] == null ? new String[rows] : Arrays.copyOf(strings[c], rows); break;
+			}
+		}//end for
+		long bits = (long) rows * kinds.length;
+		nulls = Arrays.copyOf(nulls, (int) Math.max(1, (bits + 63) >>> 6));
+		capacity = rows;
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	public int size(){
+		return size;
+	}
+
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	public int columnCount(){
+		return names.length;
+	}
+
+	public String columnName(int column){
+		return names[column];
+	}
+
+	/**
+	 * @return the java.sql.Types code of the column
+	 */
+	public int columnType(int column){
+		return sqlTypes[column];
+	}
+
+	/**
+	 * @return the index of the column with this name or label, ignoring case
+	 * @throws java.lang.IllegalArgumentException when there is none
+	 */
+	public int column(String name){
+		for (int c = 0; c < names.length; ++c){
+			if (names[c].equalsIgnoreCase(name)){
+				return c;
+			}//end if
+		}//end for
+		throw new IllegalArgumentException("No column " + name + " in " + Arrays.toString(names));
+	}
+
+	public boolean isNull(int row, int column){
+		check(row);
+		long bit = (long) row * kinds.length + column;
+		return (nulls[(int) (bit >>> 6)] & (1L << bit)) != 0;
+	}
+
+	/**
+	 * @return the value of an integer column, 0 for NULL
+	 */
+	public long getLong(int row, int column){
+		check(row);
+		switch (kinds[column]){
+			case LONG: return longs[column][row];
+			case INT: return ints[column][row];
+			default: throw type(column, "long");
+		}
+	}
+
+	/**
+	 * @return the value of an INTEGER or SMALLINT column, or of a BIGINT
+	 *         column that fits, 0 for NULL
+	 */
+	public int getInt(int row, int column){
+		check(row);
+		switch (kinds[column]){
+			case INT: return ints[column][row];
+			case LONG: return Math.toIntExact(longs[column][row]);
+			default: throw type(column, "int");
+		}
+	}
+
+	/**
+	 * @return the value of a numeric column as a float, 0 for NULL
+	 */
+	public float getFloat(int row, int column){
+		check(row);
+		switch (kinds[column]){
+			case FLOAT: return floats[column][row];
+			case DOUBLE: return (float) doubles[column][row];
+			case INT: return ints[column][row];
+			case LONG: return longs[column][row];
+			default: throw type(column, "float");
+		}
+	}
+
+	/**
+	 * @return the value of a numeric column as a double, 0 for NULL
+	 */
+	public double getDouble(int row, int column){
+		check(row);
+		switch (kinds[column]){
+			case DOUBLE: return doubles[column][row];
+			case FLOAT: return floats[column][row];
+			case INT: return ints[column][row];
+			case LONG: return longs[column][row];
+			default: throw type(column, "double");
+		}
+	}
+
+	/**
+	 * @return the value of any column as text, null for NULL; numeric cells
+	 *         are formatted, which allocates
+	 */
+	public String getString(int row, int column){
+		if (isNull(row, column)){
+			return null;
+		}//end if
+		switch (kinds[column]){
+			case LONG: return Long.toString(longs[column][row]);
+			case INT: return Integer.toString(ints[column][row]);
+			case FLOAT: return Float.toString(floats[column][row]);
+			case DOUBLE: return Double.toString(doubles[column][row]);
+			default: return strings[column][row];
+		}
+	}
+
+	/**
+	 * @return a copy of an integer column, NULL as 0
+	 */
+	public long[] getLongs(int column){
+		long[] values = new long[size];
+		for (int row = 0; row < size; ++row){
+			values[row] = getLong(row, column);
+		}//end for
+		return values;
+	}
+
+	private void check(int row){
+		if (row < 0 || row >= size){
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+		}//end if
+	}
+
+	private IllegalStateException type(int column, String java){
+		return new IllegalStateException("Column " + names[column] + " of type " + sqlTypes[column] + " is not a " + java);
+	}
+
+	public String toString(){
+		return "ResultTable " + Arrays.toString(names) + ", " + size + " rows";
+	}
+}//end ResultTable
@@ -0,0 +1,191 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Types;
+
+/**
+ * This class writes query results row by row through a large buffer, in one
+ * of several output formats:
+ *
+ *   tsv    the console format: a header line and one line per row, every
+ *          value followed by a tab
+ *   csv    RFC 4180 comma separated values with a header line
+ *   jsonl  one JSON object per row, numbers unquoted
+ *
+ * The header is written together with the first row, so an empty result
+ * produces no output.  Nothing is kept per row, so memory use does not grow
+ * with the size of the result.
+ *
+ */
+
+public abstract class RowWriter{
+	//default size of the output buffer in characters
+	public static final int DEFAULT_BUFFER = 64 * 1024;
+
+	protected final Writer out;
+	protected String[] columns;
+	protected int[] types;
+	private boolean headerWritten = false;
+
+	protected RowWriter(Writer out){
+		this.out = out;
+	}
+
+	/**
+	 * Creates a writer for the given format name.
+	 *
+	 * @param format tsv, csv or jsonl
+	 * @param out the stream the rows are written to, it is not closed
+	 * @return the row writer
+	 */
+	public static RowWriter create(String format, OutputStream out){
+		int buffer = Integer.getInteger("ticketmaster.outputBuffer", DEFAULT_BUFFER);
+		return create(format, new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), buffer));
+	}
+
+	public static RowWriter create(String format, Writer out){
+		switch (format.toLowerCase()){
+			case "tsv": return new Tsv(out);
+			case "csv": return new Csv(out);
+			case "jsonl": return new JsonLines(out);
+			default: throw new IllegalArgumentException("Unknown output format: " + format);
+		}//end switch
+	}
+
+	/**
+	 * @return a writer to standard out in the format named by
+	 *         -Dticketmaster.format, tsv by default
+	 */
+	public static RowWriter console(){
+		return create(System.getProperty("ticketmaster.format", "tsv"), System.out);
+	}
+
+	/**
+	 * Sets the column names and java.sql.Types of the rows that follow.
+	 */
+	public void columns(String[] columns, int[] types){
+		this.columns = columns;
+		this.types = types;
+		this.headerWritten = false;
+	}
+
+	/**
+	 * Writes one row.  The array may be reused by the caller for the next row.
+	 */
+	public void row(String[] values){
+		try{
+			if (!headerWritten){
+				writeHeader();
+				headerWritten = true;
+			}//end if
+			writeRow(values);
+		}catch (IOException e){
+			throw new UncheckedIOException(e);
+		}//end try
+	}
+
+	public void flush(){
+		try{
+			out.flush();
+		}catch (IOException e){
+			throw new UncheckedIOException(e);
+		}//end try
+	}
+
+	protected abstract void writeHeader() throws IOException;
+
+	protected abstract void writeRow(String[] values) throws IOException;
+
+	static class Tsv extends RowWriter{
+		Tsv(Writer out){
+			super(out);
+		}
+
+		protected void writeHeader() throws IOException {
+			for (String column : columns){
+				out.write(column);
+				out.write('\t');
+			}//end for
+			out.write('\n');
+		}
+
+		protected void writeRow(String[] values) throws IOException {
+			for (String value : values){
+				out.write(String.valueOf(value));
+				out.write('\t');
+			}//end for
+			out.write('\n');
+		}
+	}//end Tsv
+
+	static class Csv extends RowWriter{
+		Csv(Writer out){
+			super(out);
+		}
+
+		protected void writeHeader() throws IOException {
+			writeRow(columns);
+		}
+
+		protected void writeRow(String[] values) throws IOException {
+			for (int i = 0; i < values.length; ++i){
+				if (i > 0){
+					out.write(',');
+				}//end if
+				String value = values[i];
+				if (value == null){
+					continue;
+				}//end if
+				if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0){
+					out.write(value);
+				}else{
+					out.write('"');
+					out.write(value.replace("\"", "\"\""));
+					out.write('"');
+				}//end if
+			}//end for
+			out.write("\r\n");
+		}
+	}//end Csv
+
+	static class JsonLines extends RowWriter{
+		JsonLines(Writer out){
+			super(out);
+		}
+
+		protected void writeHeader(){
+			// every row carries its column names.
+		}
+
+		protected void writeRow(String[] values) throws IOException {
+			out.write('{');
+			for (int i = 0; i < values.length; ++i){
+				if (i > 0){
+					out.write(',');
+				}//end if
+				Json.quote(out, columns[i]);
+				out.write(':');
+				if (values[i] != null && isNumeric(types[i])){
+					out.write(values[i]);
+				}else{
+					Json.quote(out, values[i]);
+				}//end if
+			}//end for
+			out.write("}\n");
+		}
+
+		private static boolean isNumeric(int type){
+			switch (type){
+				case Types.BIGINT: case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT:
+				case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+					return true;
+				default:
+					return false;
+			}//end switch
+		}
+	}//end JsonLines
+}//end RowWriter
@@ -0,0 +1,204 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * This class brings a database schema up to date with the versioned
+ * migrations in sql/migrations.  A migration is a file named
+ * V<version>__<description>.sql; versions are applied in numeric order, each
+ * in its own transaction, and recorded in the schema_version table together
+ * with a checksum of the file.
+ *
+ * Applied migrations must not change: when the checksum of an applied file
+ * differs from the recorded one the migrator stops before applying anything.
+ *
+ */
+
+public class SchemaMigrator{
+	static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+
+	static final String CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS schema_version ("
+		+ "version INTEGER NOT NULL PRIMARY KEY, description VARCHAR(128) NOT NULL, checksum BIGINT NOT NULL,"
+		+ " applied_at TIMESTAMPTZ NOT NULL DEFAULT now())";
+	static final String APPLIED = "SELECT version, checksum FROM schema_version";
+	static final String RECORD = "INSERT INTO schema_version (version, description, checksum) VALUES (?, ?, ?)";
+
+	/**
+	 * One migration file.
+	 */
+	static class Migration{
+		final int version;
+		final String description;
+		final File file;
+		final String sql;
+		final long checksum;
+
+		Migration(int version, String description, File file) throws IOException {
+			this.version = version;
+			this.description = description;
+			this.file = file;
+			this.sql = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			CRC32 crc = new CRC32();
+			crc.update(sql.getBytes(StandardCharsets.UTF_8));
+			this.checksum = crc.getValue();
+		}
+
+		/**
+		 * @return the statements of the file, comment lines removed
+		 */
+		List<String> statements(){
+			StringBuilder text = new StringBuilder();
+			for (String line : sql.split("\n")){
+				if (!line.trim().startsWith("--")){
+					text.append(line).append('\n');
+				}//end if
+			}//end for
+			List<String> statements = new ArrayList<String>();
+			for (String statement : text.toString().split(";")){
+				if (!statement.trim().isEmpty()){
+					statements.add(statement.trim());
+				}//end if
+			}//end for
+			return statements;
+		}
+	}//end Migration
+
+	private final ConnectionPool pool;
+	private final File dir;
+
+	public SchemaMigrator(ConnectionPool pool, File dir){
+		this.pool = pool;
+		this.dir = dir;
+	}
+
+	/**
+	 * @return the migrations in the directory, in version order
+	 */
+	List<Migration> migrations() throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null){
+			throw new IOException("No migration directory " + dir);
+		}//end if
+		Arrays.sort(files);
+		List<Migration> migrations = new ArrayList<Migration>();
+		for (File file : files){
+			Matcher m = FILE_NAME.matcher(file.getName());
+			if (m.matches()){
+				migrations.add(new Migration(Integer.parseInt(m.group(1)), m.group(2).replace('_', ' '), file));
+			}//end if
+		}//end for
+		migrations.sort((a, b) -> Integer.compare(a.version, b.version));
+		for (int i = 1; i < migrations.size(); ++i){
+			if (migrations.get(i).version == migrations.get(i - 1).version){
+				throw new IOException("Two migrations with version " + migrations.get(i).version);
+			}//end if
+		}//end for
+		return migrations;
+	}
+
+	/**
+	 * Applies every migration that is not recorded yet.
+	 *
+	 * @return the number of migrations applied
+	 */
+	public int migrate() throws SQLException, IOException {
+		List<Migration> migrations = migrations();
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		try{
+			Connection conn = pc.getConnection();
+			Statement stmt = conn.createStatement();
+			stmt.executeUpdate(CREATE_VERSION_TABLE);
+
+			Map<Integer, Long> applied = new HashMap<Integer, Long>();
+			ResultSet rs = stmt.executeQuery(APPLIED);
+			while (rs.next()){
+				applied.put(rs.getInt(1), rs.getLong(2));
+			}//end while
+			rs.close();
+
+			for (Migration m : migrations){
+				Long checksum = applied.get(m.version);
+				if (checksum != null && checksum != m.checksum){
+					throw new SQLException("Migration " + m.file.getName() + " was changed after it was applied");
+				}//end if
+			}//end for
+
+			int count = 0;
+			for (Migration m : migrations){
+				if (applied.containsKey(m.version)){
+					continue;
+				}//end if
+				long start = System.nanoTime();
+				conn.setAutoCommit(false);
+				try{
+					for (String sql : m.statements()){
+						stmt.executeUpdate(sql);
+					}//end for
+					PreparedStatement record = conn.prepareStatement(RECORD);
+					record.setInt(1, m.version);
+					record.setString(2, m.description);
+					record.setLong(3, m.checksum);
+					record.executeUpdate();
+					record.close();
+					conn.commit();
+				}catch (SQLException e){
+					conn.rollback();
+					throw new SQLException("Migration " + m.file.getName() + " failed: " + e.getMessage(), e);
+				}finally{
+					conn.setAutoCommit(true);
+				}//end try
+				System.out.println(String.format("Applied V%d %s in %.2f s", m.version, m.description,
+					(System.nanoTime() - start) / 1e9));
+				++count;
+			}//end for
+			stmt.close();
+			return count;
+		}finally{
+			pool.release(pc);
+		}//end try
+	}
+
+	/**
+	 * The migrator entry point.
+	 *
+	 * @param args <dbname> <port> <user> [migration directory]
+	 */
+	public static void main(String[] args){
+		if (args.length < 3 || args.length > 4){
+			System.err.println("Usage: java [-classpath <classpath>] " + SchemaMigrator.class.getName()
+				+ " <dbname> <port> <user> [migration directory]");
+			return;
+		}//end if
+
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		File dir = new File(args.length == 4 ? args[3] : "../sql/migrations");
+
+		ConnectionPool pool = null;
+		try{
+			pool = new ConnectionPool(url, args[2], "", 0, 1, 60000L, 0L);
+			int count = new SchemaMigrator(pool, dir).migrate();
+			System.out.println(count == 0 ? "Schema is up to date" : "Applied " + count + " migrations");
+		}catch (Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			if (pool != null){
+				pool.close();
+			}//end if
+		}//end try
+	}
+}//end SchemaMigrator
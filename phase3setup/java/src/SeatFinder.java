@@ -0,0 +1,331 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class finds the best available block of adjacent free seats of a
+ * show: the lowest-numbered run of N seats with consecutive CinemaSeats.sno
+ * in one theater, optionally all of one seat type.
+ *
+ * The seat layout of every theater (csid, sno and stype, from CinemaSeats)
+ * is loaded once and kept.  For each show that is searched, a SeatRuns is
+ * attached to the show's SeatIndex entry: the show's seats in (theater, sno)
+ * order with one segment tree per seat type, plus one for any type, whose
+ * nodes hold the longest run of free seats and the free runs touching either
+ * end of their range.  Finding a run is one descent of a tree and every seat
+ * the SeatIndex books, holds or frees updates one leaf and its ancestors, so
+ * both take microseconds.  A reloaded show gets a fresh SeatRuns on its
+ * next search.
+ *
+ * find() does not claim the seats; TicketOperations.holdBestSeats() holds
+ * what it finds and searches again when another session was faster.
+ *
+ */
+
+public class SeatFinder{
+	static final String THEATER_LAYOUT = "SELECT csid, sno, stype FROM CinemaSeats WHERE tid = ? ORDER BY csid";
+
+	/**
+	 * The seats of one theater, sorted by csid.
+	 */
+	static class Layout{
+		final long tid;
+		final long[] csids;
+		final int[] snos;
+		final String[] stypes;
+
+		Layout(long tid, ResultTable rows){
+			this.tid = tid;
+			int n = rows.size();
+			csids = new long[n];
+			snos = new int[n];
+			stypes = new String[n];
+			for (int i = 0; i < n; ++i){
+				csids[i] = rows.getLong(i, 0);
+				snos[i] = rows.getInt(i, 1);
+				stypes[i] = rows.getString(i, 2).trim().intern();
+			}//end for
+		}
+
+		int indexOf(long csid){
+			return Arrays.binarySearch(csids, csid);
+		}
+	}//end Layout
+
+	/**
+	 * The free runs of one show.  Positions are the show's seats in (theater,
+	 * sno) order; tree 0 counts every free seat, tree k + 1 only free seats
+	 * of types[k].  Each tree is stored heap-style over size leaves, size a
+	 * power of two, padding leaves never free.
+	 */
+	static class SeatRuns{
+		final long[] ssidAt;
+		final int[] snoAt;
+		//the position of the seat at index i of the ShowSeatMap
+		final int[] posOf;
+		final int[] typeAt;
+		final String[] types;
+		//linked[p]: seat p sits right after seat p - 1, same theater
+		final boolean[] linked;
+		final int size;
+		final int[][] pre, suf, best;
+
+		SeatRuns(long[] ssidAt, int[] snoAt, int[] posOf, int[] typeAt, String[] types, boolean[] linked){
+			this.ssidAt = ssidAt;
+			this.snoAt = snoAt;
+			this.posOf = posOf;
+			this.typeAt = typeAt;
+			this.types = types;
+			this.linked = linked;
+			int s = 1;
+			while (s < Math.max(1, ssidAt.length)){
+				s <<= 1;
+			}//end while
+			size = s;
+			pre = new int[types.length + 1][2 * size];
+			suf = new int[types.length + 1][2 * size];
+			best = new int[types.length + 1][2 * size];
+		}
+
+		/**
+		 * Sets the leaves of a seat from its state, without the ancestors.
+		 */
+		void leaf(int pos, boolean free){
+			set(0, size + pos, free);
+			set(typeAt[pos] + 1, size + pos, free);
+		}
+
+		private void set(int t, int node, boolean free){
+			int v = free ? 1 : 0;
+			pre[t][node] = v;
+			suf[t][node] = v;
+			best[t][node] = v;
+		}
+
+		/**
+		 * Recomputes every inner node, after all leaves were set.
+		 */
+		void build(){
+			for (int t = 0; t < pre.length; ++t){
+				for (int node = size - 1; node >= 1; --node){
+					pull(t, node);
+				}//end for
+			}//end for
+		}
+
+		synchronized void update(int index, boolean free){
+			int pos = posOf[index];
+			if (pos < 0){
+				return;
+			}//end if
+			leaf(pos, free);
+			for (int node = (size + pos) >> 1; node >= 1; node >>= 1){
+				pull(0, node);
+				pull(typeAt[pos] + 1, node);
+			}//end for
+		}
+
+		private void pull(int t, int node){
+			int left = 2 * node, right = left + 1;
+			//leaves per child at this height
+			int width = size >> (31 - Integer.numberOfLeadingZeros(left));
+			int mid = (left - (Integer.highestOneBit(left))) * width + width;
+			boolean join = mid < linked.length && linked[mid];
+			int[] p = pre[t], s = suf[t], b = best[t];
+			p[node] = p[left] == width && join ? width + p[right] : p[left];
+			s[node] = s[right] == width && join ? width + s[left] : s[right];
+			b[node] = Math.max(Math.max(b[left], b[right]), join ? s[left] + p[right] : 0);
+		}
+
+		/**
+		 * @return the first position of the lowest run of count free seats
+		 *         in the tree, -1 when there is none
+		 */
+		synchronized int find(int t, int count){
+			if (count < 1 || best[t][1] < count){
+				return -1;
+			}//end if
+			int node = 1;
+			while (node < size){
+				int left = 2 * node, right = left + 1;
+				int width = size >> (31 - Integer.numberOfLeadingZeros(left));
+				int mid = (left - Integer.highestOneBit(left)) * width + width;
+				boolean join = mid < linked.length && linked[mid];
+				if (best[t][left] >= count){
+					node = left;
+				}else if (join && suf[t][left] + pre[t][right] >= count){
+					return mid - suf[t][left];
+				}else{
+					node = right;
+				}//end if
+			}//end while
+			return node - size;
+		}
+
+		int type(String stype){
+			if (stype == null || stype.isEmpty()){
+				return 0;
+			}//end if
+			for (int k = 0; k < types.length; ++k){
+				if (types[k].equalsIgnoreCase(stype)){
+					return k + 1;
+				}//end if
+			}//end for
+			return -1;
+		}
+	}//end SeatRuns
+
+	private final SeatIndex seatIndex;
+	private final ReferenceCache references;
+	private final Ticketmaster esql;
+	private final ConcurrentHashMap<Long, Layout> layouts = new ConcurrentHashMap<Long, Layout>();
+
+	private final AtomicLong finds = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong builds = new AtomicLong();
+	private final AtomicLong findNanos = new AtomicLong();
+
+	public SeatFinder(Ticketmaster esql, SeatIndex seatIndex, ReferenceCache references){
+		this.esql = esql;
+		this.seatIndex = seatIndex;
+		this.references = references;
+	}
+
+	/**
+	 * Finds the lowest-numbered run of adjacent free seats of a show.
+	 *
+	 * @param stype the seat type every seat must have, null or "" for any
+	 * @return the ssids of the run in seat number order, null when the show
+	 *         has no such run
+	 * @throws java.sql.SQLException when the show or a layout could not be
+	 *         loaded
+	 */
+	public long[] find(long sid, int count, String stype) throws SQLException {
+		SeatRuns runs = runs(sid);
+		long start = System.nanoTime();
+		finds.incrementAndGet();
+		int t = runs.type(stype);
+		int pos = t < 0 ? -1 : runs.find(t, count);
+		findNanos.addAndGet(System.nanoTime() - start);
+		if (pos < 0){
+			misses.incrementAndGet();
+			return null;
+		}//end if
+		return Arrays.copyOfRange(runs.ssidAt, pos, pos + count);
+	}
+
+	/**
+	 * @return the seat numbers of the given seats of a show, 0 for unknown
+	 *         ones
+	 */
+	public int[] seatNumbers(long sid, long[] ssids) throws SQLException {
+		SeatRuns runs = runs(sid);
+		SeatIndex.ShowSeatMap map = seatIndex.map(sid);
+		int[] snos = new int[ssids.length];
+		for (int i = 0; i < ssids.length; ++i){
+			int index = map.indexOf(ssids[i]);
+			int pos = index < 0 || index >= runs.posOf.length ? -1 : runs.posOf[index];
+			snos[i] = pos < 0 ? 0 : runs.snoAt[pos];
+		}//end for
+		return snos;
+	}
+
+	private SeatRuns runs(long sid) throws SQLException {
+		SeatIndex.ShowSeatMap map = seatIndex.map(sid);
+		SeatRuns runs = map.runs;
+		if (runs != null){
+			return runs;
+		}//end if
+		runs = build(sid, map);
+		synchronized (map){
+			if (map.runs != null){
+				return map.runs;
+			}//end if
+			//attached before the leaves are read, so no seat change is missed
+			synchronized (runs){
+				map.runs = runs;
+				for (int i = 0; i < map.ssids.length; ++i){
+					int pos = runs.posOf[i];
+					if (pos >= 0){
+						runs.leaf(pos, map.state.get(i) == SeatIndex.FREE);
+					}//end if
+				}//end for
+				runs.build();
+			}//end synchronized
+		}//end synchronized
+		builds.incrementAndGet();
+		return runs;
+	}
+
+	private SeatRuns build(long sid, SeatIndex.ShowSeatMap map) throws SQLException {
+		List<Layout> theaters = new ArrayList<Layout>();
+		for (long tid : references.theatersOfShow(sid)){
+			theaters.add(layout(tid));
+		}//end for
+		int n = map.ssids.length;
+		//the seats in theater, then seat number order; seats of no theater of the show are left out.
+		//compared field by field rather than packed into one long, so any seat count and sno sorts right
+		Integer[] order = new Integer[n];
+		int[] layoutIndex = new int[n];
+		int[] theaterOf = new int[n];
+		int[] snoOf = new int[n];
+		int found = 0;
+		for (int i = 0; i < n; ++i){
+			theaterOf[i] = -1;
+			for (int k = 0; k < theaters.size() && theaterOf[i] < 0; ++k){
+				int at = theaters.get(k).indexOf(map.csids[i]);
+				if (at >= 0){
+					theaterOf[i] = k;
+					layoutIndex[i] = at;
+					snoOf[i] = theaters.get(k).snos[at];
+					order[found++] = i;
+				}//end if
+			}//end for
+		}//end for
+		Integer[] sorted = Arrays.copyOf(order, found);
+		Arrays.sort(sorted, (a, b) -> theaterOf[a] != theaterOf[b] ? Integer.compare(theaterOf[a], theaterOf[b])
+			: snoOf[a] != snoOf[b] ? Integer.compare(snoOf[a], snoOf[b]) : Integer.compare(a, b));
+
+		List<String> typeList = new ArrayList<String>();
+		long[] ssidAt = new long[found];
+		int[] snoAt = new int[found];
+		int[] typeAt = new int[found];
+		boolean[] linked = new boolean[found];
+		int[] posOf = new int[n];
+		Arrays.fill(posOf, -1);
+		for (int p = 0; p < found; ++p){
+			int i = sorted[p];
+			Layout layout = theaters.get(theaterOf[i]);
+			String stype = layout.stypes[layoutIndex[i]];
+			int type = typeList.indexOf(stype);
+			if (type < 0){
+				type = typeList.size();
+				typeList.add(stype);
+			}//end if
+			posOf[i] = p;
+			ssidAt[p] = map.ssids[i];
+			snoAt[p] = snoOf[i];
+			typeAt[p] = type;
+			linked[p] = p > 0 && theaterOf[i] == theaterOf[sorted[p - 1]] && (long) snoAt[p] == snoAt[p - 1] + 1L;
+		}//end for
+		return new SeatRuns(ssidAt, snoAt, posOf, typeAt, typeList.toArray(new String[0]), linked);
+	}
+
+	private Layout layout(long tid) throws SQLException {
+		Layout layout = layouts.get(tid);
+		if (layout == null){
+			layout = new Layout(tid, esql.executeQueryAndReturnTable(THEATER_LAYOUT, tid));
+			layouts.put(tid, layout);
+		}//end if
+		return layout;
+	}
+
+	public String toString(){
+		long n = finds.get();
+		return "Seat finder: " + layouts.size() + " layouts, " + builds.get() + " builds, " + n + " finds, " + misses.get()
+			+ " misses, " + (n == 0 ? 0 : findNanos.get() / n / 1000.0) + " us per find";
+	}
+}//end SeatFinder
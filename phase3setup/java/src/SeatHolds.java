@@ -0,0 +1,403 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps time-limited holds on show seats, so a clerk (or an HTTP
+ * client) can collect the seats of a booking one at a time and then book
+ * them all at once.  A seat is held in the SeatIndex the moment it is
+ * chosen, so nobody else sees it as free, and two sessions racing for a seat
+ * are decided by one compare-and-set in memory rather than by row locks in
+ * Postgres.  The database is only written when a hold is confirmed, by
+ * TicketOperations.confirmHold().
+ *
+ * A hold lives for ticketmaster.holds.ttl milliseconds after it was last
+ * changed.  Deadlines are kept in a DelayQueue; a daemon thread waits for
+ * the first one to pass and then frees every hold that is due in one sweep.
+ * A hold that was changed since it was queued has a later deadline queued
+ * too, so its stale entry is skipped.
+ *
+ * Holds are in memory only: they do not survive a restart and are not seen
+ * by other processes, whose bookings are still stopped by the "bid IS NULL"
+ * claim at confirmation.
+ *
+ */
+
+public class SeatHolds{
+	/**
+	 * The seats one session holds on one show.
+	 */
+	static class Hold{
+		final long id;
+		final long sid;
+		//changed holding the hold; ssids is replaced, never changed in place,
+		//so heldSeats() can read it without the lock from inside a show load.
+		//Seats are added before they are claimed, see claim()
+		volatile long[] ssids = new long[0];
+		volatile boolean done;
+		long deadline;
+
+		Hold(long id, long sid){
+			this.id = id;
+			this.sid = sid;
+		}
+	}//end Hold
+
+	/**
+	 * A deadline of a hold, as queued.
+	 */
+	static class Expiry implements Delayed{
+		final Hold hold;
+		final long deadline;
+
+		Expiry(Hold hold, long deadline){
+			this.hold = hold;
+			this.deadline = deadline;
+		}
+
+		public long getDelay(TimeUnit unit){
+			return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed other){
+			return Long.compare(deadline, ((Expiry) other).deadline);
+		}
+	}//end Expiry
+
+	private final SeatIndex seatIndex;
+	private final long ttlNanos;
+	private final ConcurrentHashMap<Long, Hold> holds = new ConcurrentHashMap<Long, Hold>();
+	private final DelayQueue<Expiry> deadlines = new DelayQueue<Expiry>();
+	private Thread sweeper;
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong confirmed = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong refused = new AtomicLong();
+	private final AtomicLong sweeps = new AtomicLong();
+
+	public SeatHolds(SeatIndex seatIndex){
+		this(seatIndex, Long.getLong("ticketmaster.holds.ttl", 5 * 60 * 1000L));
+	}
+
+	public SeatHolds(SeatIndex seatIndex, long ttl){
+		this.seatIndex = seatIndex;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+		seatIndex.setHolds(this);
+	}
+
+	/**
+	 * Opens a hold on a show, holding the given seats.
+	 *
+	 * @return the hold ID
+	 * @throws IllegalArgumentException naming the seats that are not free
+	 * @throws java.sql.SQLException when the show could not be loaded
+	 */
+	public long open(long sid, long... ssids) throws SQLException {
+		Hold hold;
+		do{
+			//random, so IDs cannot be guessed; below 2^53, so they survive JSON
+			hold = new Hold(ThreadLocalRandom.current().nextLong(1, 1L << 53), sid);
+		}while (holds.putIfAbsent(hold.id, hold) != null);
+		synchronized (hold){
+			if (!claim(hold, ssids.clone())){
+				hold.done = true;
+				holds.remove(hold.id);
+				refused.incrementAndGet();
+				throw new IllegalArgumentException("Show seats not available: " + unavailable(sid, ssids));
+			}//end if
+			touch(hold);
+		}//end synchronized
+		created.incrementAndGet();
+		startSweeper();
+		return hold.id;
+	}
+
+	/**
+	 * Adds seats to a hold and restarts its time to live.
+	 *
+	 * @return false, holding none of them, when a seat is not free
+	 * @throws IllegalArgumentException when there is no such hold
+	 * @throws java.sql.SQLException when the show could not be loaded
+	 */
+	public boolean add(long id, long... ssids) throws SQLException {
+		Hold hold = live(id);
+		synchronized (hold){
+			if (hold.done){
+				throw expired(id);
+			}//end if
+			if (!claim(hold, ssids)){
+				refused.incrementAndGet();
+				return false;
+			}//end if
+			touch(hold);
+		}//end synchronized
+		return true;
+	}
+
+	/**
+	 * Gives seats of a hold back and restarts its time to live.
+	 *
+	 * @throws IllegalArgumentException when there is no such hold
+	 */
+	public void remove(long id, long... ssids){
+		Hold hold = live(id);
+		synchronized (hold){
+			if (hold.done){
+				throw expired(id);
+			}//end if
+			long[] kept = new long[hold.ssids.length];
+			int n = 0;
+			for (long ssid : hold.ssids){
+				if (contains(ssids, ssid)){
+					seatIndex.unhold(hold.sid, ssid);
+				}else{
+					kept[n++] = ssid;
+				}//end if
+			}//end for
+			hold.ssids = Arrays.copyOf(kept, n);
+			touch(hold);
+		}//end synchronized
+	}
+
+	/**
+	 * Ends a hold and frees its seats; unknown or expired holds are ignored.
+	 */
+	public void release(long id){
+		Hold hold = holds.get(id);
+		if (hold != null && end(hold)){
+			seatIndex.unhold(hold.sid, hold.ssids);
+			released.incrementAndGet();
+		}//end if
+	}
+
+	/**
+	 * Ends a hold so that its seats can be booked; they stay held in the
+	 * SeatIndex until SeatIndex.book() or unhold().
+	 *
+	 * @return {sid, ssid...}
+	 * @throws IllegalArgumentException when the hold is unknown, expired or
+	 *         empty
+	 */
+	long[] take(long id){
+		Hold hold = live(id);
+		synchronized (hold){
+			if (hold.done){
+				throw expired(id);
+			}//end if
+			if (hold.ssids.length == 0){
+				throw new IllegalArgumentException("Hold " + id + " has no seats");
+			}//end if
+			hold.done = true;
+			holds.remove(id);
+			long[] taken = new long[hold.ssids.length + 1];
+			taken[0] = hold.sid;
+			System.arraycopy(hold.ssids, 0, taken, 1, hold.ssids.length);
+			confirmed.incrementAndGet();
+			return taken;
+		}//end synchronized
+	}
+
+	/**
+	 * @return the seats held on a show, by all holds
+	 */
+	long[] heldSeats(long sid){
+		long[] seats = new long[0];
+		for (Hold hold : holds.values()){
+			if (hold.sid != sid){
+				continue;
+			}//end if
+			long[] held = hold.ssids;
+			if (!hold.done){
+				int n = seats.length;
+				seats = Arrays.copyOf(seats, n + held.length);
+				System.arraycopy(held, 0, seats, n, held.length);
+			}//end if
+		}//end for
+		return seats;
+	}
+
+	/**
+	 * @return {sid, ssid...} of a live hold
+	 * @throws IllegalArgumentException when there is no such hold
+	 */
+	public long[] seats(long id){
+		Hold hold = live(id);
+		synchronized (hold){
+			long[] seats = new long[hold.ssids.length + 1];
+			seats[0] = hold.sid;
+			System.arraycopy(hold.ssids, 0, seats, 1, hold.ssids.length);
+			return seats;
+		}//end synchronized
+	}
+
+	/**
+	 * @return the milliseconds left before the hold expires
+	 * @throws IllegalArgumentException when there is no such hold
+	 */
+	public long remaining(long id){
+		Hold hold = live(id);
+		synchronized (hold){
+			return Math.max(0, TimeUnit.NANOSECONDS.toMillis(hold.deadline - System.nanoTime()));
+		}//end synchronized
+	}
+
+	private Hold live(long id){
+		Hold hold = holds.get(id);
+		if (hold == null){
+			throw expired(id);
+		}//end if
+		return hold;
+	}
+
+	private static IllegalArgumentException expired(long id){
+		return new IllegalArgumentException("No hold " + id + ", it may have expired");
+	}
+
+	//called holding the hold
+	private void touch(Hold hold){
+		hold.deadline = System.nanoTime() + ttlNanos;
+		deadlines.add(new Expiry(hold, hold.deadline));
+	}
+
+	private boolean end(Hold hold){
+		synchronized (hold){
+			if (hold.done){
+				return false;
+			}//end if
+			hold.done = true;
+			holds.remove(hold.id);
+			return true;
+		}//end synchronized
+	}
+
+	/**
+	 * Holds seats for a hold in the SeatIndex, adding them to the hold first
+	 * and taking them out again when the claim fails.  A show reloaded in
+	 * between saw them in the hold and marked them held, which fails the
+	 * claim on its own seats; those no other hold has are freed again and
+	 * the claim is tried once more.  Called holding the hold.
+	 *
+	 * @return false, holding none of the seats, when one is not free
+	 */
+	private boolean claim(Hold hold, long[] ssids) throws SQLException {
+		long[] had = hold.ssids;
+		long[] more = Arrays.copyOf(had, had.length + ssids.length);
+		System.arraycopy(ssids, 0, more, had.length, ssids.length);
+		for (int attempt = 0; attempt < 2; ++attempt){
+			SeatIndex.ShowSeatMap before = seatIndex.map(hold.sid);
+			hold.ssids = more;
+			if (seatIndex.hold(hold.sid, ssids)){
+				return true;
+			}//end if
+			hold.ssids = had;
+			if (seatIndex.map(hold.sid) == before){
+				return false;
+			}//end if
+			long[] held = heldSeats(hold.sid);
+			for (long ssid : ssids){
+				if (!contains(held, ssid)){
+					seatIndex.unhold(hold.sid, ssid);
+				}//end if
+			}//end for
+		}//end for
+		return false;
+	}
+
+	private String unavailable(long sid, long[] ssids) throws SQLException {
+		StringBuilder taken = new StringBuilder();
+		for (int i = 0; i < ssids.length; ++i){
+			if (contains(Arrays.copyOf(ssids, i), ssids[i]) || !seatIndex.isFree(sid, ssids[i])){
+				taken.append(taken.length() > 0 ? ", " : "").append(ssids[i]);
+			}//end if
+		}//end for
+		return taken.toString();
+	}
+
+	private static boolean contains(long[] ssids, long ssid){
+		for (long s : ssids){
+			if (s == ssid){
+				return true;
+			}//end if
+		}//end for
+		return false;
+	}
+
+	private synchronized void startSweeper(){
+		if (sweeper != null){
+			return;
+		}//end if
+		sweeper = new Thread(this::sweep, "seat-holds");
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+
+	/**
+	 * The sweeper thread: waits for the first deadline, then frees every
+	 * hold that is due.
+	 */
+	private void sweep(){
+		List<Expiry> due = new ArrayList<Expiry>();
+		try{
+			while (true){
+				due.add(deadlines.take());
+				deadlines.drainTo(due);
+				for (Expiry e : due){
+					Hold hold = e.hold;
+					synchronized (hold){
+						//ended, or changed after this deadline was queued
+						if (hold.done || hold.deadline != e.deadline){
+							continue;
+						}//end if
+						hold.done = true;
+						holds.remove(hold.id);
+					}//end synchronized
+					seatIndex.unhold(hold.sid, hold.ssids);
+					expired.incrementAndGet();
+				}//end for
+				due.clear();
+				sweeps.incrementAndGet();
+			}//end while
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}//end try
+	}
+
+	public int getLive(){
+		return holds.size();
+	}
+
+	public long getCreated(){
+		return created.get();
+	}
+
+	public long getConfirmed(){
+		return confirmed.get();
+	}
+
+	public long getExpired(){
+		return expired.get();
+	}
+
+	public long getReleased(){
+		return released.get();
+	}
+
+	public long getRefused(){
+		return refused.get();
+	}
+
+	public String toString(){
+		return "Seat holds: " + holds.size() + " live, " + created.get() + " created, " + confirmed.get() + " confirmed, "
+			+ released.get() + " released, " + expired.get() + " expired in " + sweeps.get() + " sweeps, " + refused.get()
+			+ " refused";
+	}
+}//end SeatHolds
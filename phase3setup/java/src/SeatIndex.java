@@ -0,0 +1,290 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps an in-memory availability map of the show seats of every
+ * show that has been looked at.  Each show is held as a sorted array of its
+ * ssids plus a parallel array of seat states, so "is this seat free" is a
+ * binary search and reserving seats is a compare-and-set per seat, without
+ * any locks or round trips.
+ *
+ * The database stays authoritative: callers write a reservation with a
+ * conditional "bid IS NULL" update after claiming it here, and invalidate
+ * the show when that update finds the seat taken by another process.  Shows
+ * are also reloaded once they are older than ticketmaster.seatIndex.ttl
+ * milliseconds, so changes made by other processes are picked up.
+ *
+ * Seats can also be held by a SeatHolds: a held seat is neither free nor
+ * booked, and only the hold can book or free it.  Holds live only in
+ * memory, so a reloaded show gets the seats of its live holds marked held
+ * again.
+ *
+ * A SeatFinder may attach the free runs of a show to its entry; every seat
+ * state change goes through the entry, which keeps them up to date.
+ *
+ */
+
+public class SeatIndex{
+	static final String SHOW_SEATS = "SELECT ssid, bid, csid FROM ShowSeats WHERE sid = ? ORDER BY ssid";
+
+	//seat states
+	static final int FREE = 0;
+	static final int BOOKED = 1;
+	static final int HELD = 2;
+
+	/**
+	 * The seats of one show.  ssids is sorted and never changes; state holds
+	 * the state of ssids[i] at index i and csids the cinema seat.  State is
+	 * only changed through cas() and set().
+	 */
+	static class ShowSeatMap{
+		final long sid;
+		final long[] ssids;
+		final long[] csids;
+		final AtomicIntegerArray state;
+		final long loadedAt;
+		//set once by SeatFinder
+		volatile SeatFinder.SeatRuns runs;
+
+		ShowSeatMap(long sid, long[] ssids, long[] csids, int[] state){
+			this.sid = sid;
+			this.ssids = ssids;
+			this.csids = csids;
+			this.state = new AtomicIntegerArray(state);
+			this.loadedAt = System.currentTimeMillis();
+		}
+
+		int indexOf(long ssid){
+			return Arrays.binarySearch(ssids, ssid);
+		}
+
+		boolean cas(int i, int from, int to){
+			if (!state.compareAndSet(i, from, to)){
+				return false;
+			}//end if
+			changed(i);
+			return true;
+		}
+
+		void set(int i, int to){
+			state.set(i, to);
+			changed(i);
+		}
+
+		private void changed(int i){
+			SeatFinder.SeatRuns r = runs;
+			if (r != null){
+				//the state is read holding the runs, so the last change wins
+				synchronized (r){
+					r.update(i, state.get(i) == FREE);
+				}//end synchronized
+			}//end if
+		}
+	}//end ShowSeatMap
+
+	private final Ticketmaster esql;
+	private final long ttl;
+	private final ConcurrentHashMap<Long, ShowSeatMap> shows = new ConcurrentHashMap<Long, ShowSeatMap>();
+	//the live holds, marked again on every load
+	private volatile SeatHolds holds;
+
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong conflicts = new AtomicLong();
+
+	public SeatIndex(Ticketmaster esql){
+		this(esql, Long.getLong("ticketmaster.seatIndex.ttl", 60000L));
+	}
+
+	public SeatIndex(Ticketmaster esql, long ttl){
+		this.esql = esql;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * @return true when the seat belongs to the show and is not booked
+	 * @throws java.sql.SQLException when the show could not be loaded
+	 */
+	public boolean isFree(long sid, long ssid) throws SQLException {
+		lookups.incrementAndGet();
+		ShowSeatMap map = show(sid);
+		int i = map.indexOf(ssid);
+		return i >= 0 && map.state.get(i) == FREE;
+	}
+
+	/**
+	 * Atomically claims all given seats of a show.  Either every seat is
+	 * claimed or, when one of them is taken or unknown, none is.
+	 *
+	 * @return true when all seats were claimed
+	 * @throws java.sql.SQLException when the show could not be loaded
+	 */
+	public boolean reserve(long sid, long... ssids) throws SQLException {
+		return claim(sid, ssids, BOOKED);
+	}//end reserve
+
+	/**
+	 * Atomically holds all given free seats of a show, like reserve().
+	 *
+	 * @return true when all seats were held
+	 * @throws java.sql.SQLException when the show could not be loaded
+	 */
+	public boolean hold(long sid, long... ssids) throws SQLException {
+		return claim(sid, ssids, HELD);
+	}
+
+	private boolean claim(long sid, long[] ssids, int to) throws SQLException {
+		lookups.incrementAndGet();
+		ShowSeatMap map = show(sid);
+		for (int n = 0; n < ssids.length; ++n){
+			int i = map.indexOf(ssids[n]);
+			if (i < 0 || !map.cas(i, FREE, to)){
+				conflicts.incrementAndGet();
+				//gives back what was claimed so far
+				for (int k = 0; k < n; ++k){
+					map.set(map.indexOf(ssids[k]), FREE);
+				}//end for
+				return false;
+			}//end if
+		}//end for
+		return true;
+	}
+
+	/**
+	 * Turns held seats of a show into booked ones.  A seat whose show was
+	 * reloaded without it being held is booked when it is still free.
+	 *
+	 * @return false, with none of the seats booked, when a seat was taken
+	 *         in the meantime
+	 * @throws java.sql.SQLException when the show could not be loaded
+	 */
+	public boolean book(long sid, long... ssids) throws SQLException {
+		ShowSeatMap map = show(sid);
+		for (int n = 0; n < ssids.length; ++n){
+			int i = map.indexOf(ssids[n]);
+			if (i < 0 || (!map.cas(i, HELD, BOOKED) && !map.cas(i, FREE, BOOKED))){
+				conflicts.incrementAndGet();
+				for (int k = 0; k < n; ++k){
+					map.set(map.indexOf(ssids[k]), FREE);
+				}//end for
+				return false;
+			}//end if
+		}//end for
+		return true;
+	}
+
+	/**
+	 * Frees seats of a show that are still held.  Unknown shows are left
+	 * alone.
+	 */
+	public void unhold(long sid, long... ssids){
+		ShowSeatMap map = shows.get(sid);
+		if (map == null){
+			return;
+		}//end if
+		for (long ssid : ssids){
+			int i = map.indexOf(ssid);
+			if (i >= 0){
+				map.cas(i, HELD, FREE);
+			}//end if
+		}//end for
+	}
+
+	/**
+	 * Marks seats of a show as booked after they were claimed in the
+	 * database by other means.  Unknown shows are left alone.
+	 */
+	public void markBooked(long sid, long... ssids){
+		ShowSeatMap map = shows.get(sid);
+		if (map == null){
+			return;
+		}//end if
+		for (long ssid : ssids){
+			int i = map.indexOf(ssid);
+			if (i >= 0){
+				map.set(i, BOOKED);
+			}//end if
+		}//end for
+	}//end markBooked
+
+	/**
+	 * Marks seats of a show as free again.  Unknown shows are left alone,
+	 * they are loaded from the database when next needed.
+	 */
+	public void release(long sid, long... ssids){
+		ShowSeatMap map = shows.get(sid);
+		if (map == null){
+			return;
+		}//end if
+		for (long ssid : ssids){
+			int i = map.indexOf(ssid);
+			if (i >= 0){
+				map.set(i, FREE);
+			}//end if
+		}//end for
+	}//end release
+
+	/**
+	 * Drops a show so that it is reloaded from the database on next use.
+	 */
+	public void invalidate(long sid){
+		shows.remove(sid);
+	}
+
+	public void invalidateAll(){
+		shows.clear();
+	}
+
+	void setHolds(SeatHolds holds){
+		this.holds = holds;
+	}
+
+	/**
+	 * @return the current entry of a show, loading it when needed
+	 */
+	ShowSeatMap map(long sid) throws SQLException {
+		return show(sid);
+	}
+
+	private ShowSeatMap show(long sid) throws SQLException {
+		ShowSeatMap map = shows.get(sid);
+		if (map != null && System.currentTimeMillis() - map.loadedAt < ttl){
+			return map;
+		}//end if
+		map = load(sid);
+		shows.put(sid, map);
+		return map;
+	}
+
+	private ShowSeatMap load(long sid) throws SQLException {
+		loads.incrementAndGet();
+		ResultTable rows = esql.executeQueryAndReturnTable(SHOW_SEATS, sid);
+		long[] ssids = rows.getLongs(0);
+		int[] state = new int[rows.size()];
+		for (int i = 0; i < ssids.length; ++i){
+			state[i] = rows.isNull(i, 1) ? FREE : BOOKED;
+		}//end for
+		SeatHolds live = holds;
+		if (live != null){
+			for (long ssid : live.heldSeats(sid)){
+				int i = Arrays.binarySearch(ssids, ssid);
+				if (i >= 0 && state[i] == FREE){
+					state[i] = HELD;
+				}//end if
+			}//end for
+		}//end if
+		return new ShowSeatMap(sid, ssids, rows.getLongs(2), state);
+	}
+
+	public int getShowCount(){
+		return shows.size();
+	}
+
+	public String toString(){
+		return "Seat index: " + shows.size() + " shows, " + lookups.get() + " lookups, " + loads.get() + " loads, "
+			+ conflicts.get() + " conflicts";
+	}
+}//end SeatIndex
@@ -0,0 +1,369 @@
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class answers "when does this movie play at this cinema between two
+ * dates" (option 13) from memory.  Shows are indexed by movie, then by
+ * cinema; the shows of one movie at one cinema are held as parallel
+ * primitive arrays sorted by start (epoch day * 86400 + second of day), so a
+ * date range is two binary searches.
+ *
+ * The index is built from one scan of Shows, Plays and Theaters on a
+ * background thread the first time it is needed, and rebuilt the same way
+ * once it is older than ticketmaster.showtimes.ttl milliseconds, so shows
+ * added by other processes are picked up; the rebuild also refreshes the
+ * ReferenceCache it resolves titles and cinema names with.  Until the first
+ * build is done searches run one join query instead.  Shows added or
+ * removed through TicketOperations update the index in place.
+ *
+ */
+
+public class ShowtimeIndex{
+	static final String ALL_SHOWS = "SELECT S.sid, S.mvid, T.cid, S.sdate, S.sttime FROM Shows S, Plays P, Theaters T"
+		+ " WHERE P.sid = S.sid AND T.tid = P.tid";
+	//the cold path, and the answer for dates the index cannot parse
+	static final String SHOWTIMES = "SELECT M.title, M.duration, X.sdate, X.sttime FROM Movies M,"
+		+ " (SELECT DISTINCT S.sid, S.mvid, S.sdate, S.sttime FROM Shows S, Plays P, Theaters T, Cinemas C"
+		+ " WHERE S.mvid IN (SELECT mvid FROM Movies WHERE title = ?) AND S.sdate BETWEEN CAST(? AS DATE) AND CAST(? AS DATE)"
+		+ " AND P.sid = S.sid AND T.tid = P.tid AND C.cid = T.cid AND C.cname = ?) X"
+		+ " WHERE M.mvid = X.mvid ORDER BY X.sdate, X.sttime, X.sid";
+
+	private static final DateTimeFormatter US_DATE = DateTimeFormatter.ofPattern("M/d/yyyy");
+	//an index, not a cache: nothing is ever evicted
+	private static final int UNBOUNDED = 1 << 28;
+
+	/**
+	 * The shows of one movie at one cinema, sorted by start.  Never changed
+	 * once published; updates replace it.
+	 */
+	static class Showings{
+		static final Showings EMPTY = new Showings(new long[0], new long[0]);
+
+		final long[] starts;
+		final long[] sids;
+
+		Showings(long[] starts, long[] sids){
+			this.starts = starts;
+			this.sids = sids;
+		}
+
+		/**
+		 * @return the index of the first show starting at or after start
+		 */
+		int lowerBound(long start){
+			int lo = 0, hi = starts.length;
+			while (lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if (starts[mid] < start){
+					lo = mid + 1;
+				}else{
+					hi = mid;
+				}//end if
+			}//end while
+			return lo;
+		}
+
+		Showings with(long start, long sid){
+			//shows starting at the same time are in sid order
+			int i = lowerBound(start);
+			for (; i < starts.length && starts[i] == start && sids[i] <= sid; ++i){
+				if (sids[i] == sid){
+					return this;
+				}//end if
+			}//end for
+			long[] s = new long[starts.length + 1], d = new long[sids.length + 1];
+			System.arraycopy(starts, 0, s, 0, i);
+			System.arraycopy(sids, 0, d, 0, i);
+			s[i] = start;
+			d[i] = sid;
+			System.arraycopy(starts, i, s, i + 1, starts.length - i);
+			System.arraycopy(sids, i, d, i + 1, sids.length - i);
+			return new Showings(s, d);
+		}
+
+		Showings without(long sid){
+			for (int i = 0; i < sids.length; ++i){
+				if (sids[i] == sid){
+					long[] s = new long[starts.length - 1], d = new long[sids.length - 1];
+					System.arraycopy(starts, 0, s, 0, i);
+					System.arraycopy(sids, 0, d, 0, i);
+					System.arraycopy(starts, i + 1, s, i, s.length - i);
+					System.arraycopy(sids, i + 1, d, i, d.length - i);
+					return new Showings(s, d);
+				}//end if
+			}//end for
+			return this;
+		}
+	}//end Showings
+
+	/**
+	 * One generation of the index.
+	 */
+	static class Index{
+		//mvid to cid to showings
+		final LongMap<LongMap<Showings>> byMovie = new LongMap<LongMap<Showings>>(UNBOUNDED);
+		//sid to {mvid, cid, cid, ...}, to find a show again for removal
+		final LongMap<long[]> bySid = new LongMap<long[]>(UNBOUNDED);
+		final long builtAt = System.currentTimeMillis();
+
+		Showings get(long mvid, long cid){
+			LongMap<Showings> cinemas = byMovie.get(mvid);
+			Showings showings = cinemas == null ? null : cinemas.get(cid);
+			return showings == null ? Showings.EMPTY : showings;
+		}
+
+		void add(long sid, long mvid, long cid, long start){
+			LongMap<Showings> cinemas = byMovie.get(mvid);
+			if (cinemas == null){
+				cinemas = new LongMap<Showings>(UNBOUNDED);
+				byMovie.put(mvid, cinemas);
+			}//end if
+			Showings showings = cinemas.get(cid);
+			cinemas.put(cid, (showings == null ? Showings.EMPTY : showings).with(start, sid));
+
+			long[] key = bySid.get(sid);
+			if (key == null){
+				bySid.put(sid, new long[]{mvid, cid});
+			}else{
+				for (int i = 1; i < key.length; ++i){
+					if (key[i] == cid){
+						return;
+					}//end if
+				}//end for
+				long[] grown = Arrays.copyOf(key, key.length + 1);
+				grown[key.length] = cid;
+				bySid.put(sid, grown);
+			}//end if
+		}
+
+		void remove(long sid){
+			long[] key = bySid.remove(sid);
+			if (key == null){
+				return;
+			}//end if
+			LongMap<Showings> cinemas = byMovie.get(key[0]);
+			for (int i = 1; i < key.length; ++i){
+				Showings showings = cinemas.get(key[i]);
+				if (showings != null){
+					cinemas.put(key[i], showings.without(sid));
+				}//end if
+			}//end for
+		}
+	}//end Index
+
+	/**
+	 * A change made while a new generation was being built, replayed on it.
+	 */
+	interface Change{
+		void apply(Index index);
+	}
+
+	private final Ticketmaster esql;
+	private final ReferenceCache references;
+	private final long ttl;
+	//null until the first build is done
+	private Index index;
+	//changes seen during a build, null when no build is running
+	private List<Change> pending;
+
+	private long searches, coldSearches, builds;
+	private volatile long lastBuildMillis;
+
+	public ShowtimeIndex(Ticketmaster esql, ReferenceCache references){
+		this(esql, references, Long.getLong("ticketmaster.showtimes.ttl", 300000L));
+	}
+
+	public ShowtimeIndex(Ticketmaster esql, ReferenceCache references, long ttl){
+		this.esql = esql;
+		this.references = references;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Lists title, duration, date and start time of the shows of the movies
+	 * with this title at the cinemas with this name, from date1 to date2
+	 * inclusive, ordered by start.
+	 *
+	 * @return the number of rows written
+	 */
+	public int search(String title, String cinemaName, String date1, String date2, RowWriter out) throws SQLException {
+		long from = 0, to = 0;
+		boolean parsed = true;
+		try{
+			from = parseDate(date1).toEpochDay() * 86400;
+			to = (parseDate(date2).toEpochDay() + 1) * 86400;
+		}catch (DateTimeParseException e){
+			parsed = false;
+		}//end try
+
+		Index current;
+		synchronized (this){
+			searches++;
+			current = index;
+			if ((current == null || System.currentTimeMillis() - current.builtAt > ttl) && pending == null){
+				startBuild();
+			}//end if
+			if (current == null || !parsed){
+				coldSearches++;
+			}//end if
+		}//end synchronized
+		if (current == null || !parsed){
+			return esql.executeQueryAndPrintResult(out, SHOWTIMES, title, date1, date2, cinemaName);
+		}//end if
+
+		out.columns(new String[]{"title", "duration", "sdate", "sttime"},
+			new int[]{Types.VARCHAR, Types.INTEGER, Types.DATE, Types.TIME});
+		long[] mvids = references.moviesTitled(title);
+		long[] cids = references.cinemasNamed(cinemaName);
+		//start, sid and mvid of every match; a show playing in two cinemas of that name counts once
+		List<long[]> matches = new ArrayList<long[]>();
+		synchronized (this){
+			for (long mvid : mvids){
+				for (long cid : cids){
+					Showings showings = current.get(mvid, cid);
+					for (int i = showings.lowerBound(from); i < showings.starts.length && showings.starts[i] < to; ++i){
+						matches.add(new long[]{showings.starts[i], showings.sids[i], mvid});
+					}//end for
+				}//end for
+			}//end for
+		}//end synchronized
+		matches.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+		String[] row = new String[4];
+		int count = 0;
+		long lastSid = -1;
+		for (long[] match : matches){
+			if (match[1] == lastSid){
+				continue;
+			}//end if
+			lastSid = match[1];
+			ReferenceCache.Movie movie = references.movie(match[2]);
+			if (movie == null){
+				continue;
+			}//end if
+			row[0] = movie.title;
+			row[1] = String.valueOf(movie.duration);
+			row[2] = LocalDate.ofEpochDay(Math.floorDiv(match[0], 86400)).toString();
+			long second = Math.floorMod(match[0], 86400);
+			row[3] = String.format("%02d:%02d:%02d", second / 3600, second / 60 % 60, second % 60);
+			out.row(row);
+			++count;
+		}//end for
+		out.flush();
+		return count;
+	}
+
+	/**
+	 * Adds a show playing in a theater of the cinema.
+	 */
+	public void showAdded(final long sid, final long mvid, final long cid, String sdate, String sttime){
+		final long start;
+		try{
+			start = parseDate(sdate).toEpochDay() * 86400 + parseTime(sttime);
+		}catch (DateTimeParseException e){
+			//the database accepted a format this class does not know; read it back
+			invalidate();
+			return;
+		}//end try
+		change(index -> index.add(sid, mvid, cid, start));
+	}
+
+	/**
+	 * Drops a show from every cinema it plays at.
+	 */
+	public void showRemoved(final long sid){
+		change(index -> index.remove(sid));
+	}
+
+	/**
+	 * Rebuilds the index in the background; searches use the old one, or
+	 * the join query if there is none, until the new one is ready.
+	 */
+	public synchronized void invalidate(){
+		if (pending == null){
+			startBuild();
+		}//end if
+	}
+
+	private synchronized void change(Change change){
+		if (index != null){
+			change.apply(index);
+		}//end if
+		if (pending != null){
+			pending.add(change);
+		}//end if
+	}
+
+	//called holding the lock
+	private void startBuild(){
+		pending = new ArrayList<Change>();
+		Thread thread = new Thread(this::build, "showtime-index");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void build(){
+		long start = System.currentTimeMillis();
+		references.refresh(ttl);
+		Index built = new Index();
+		try{
+			final Index target = built;
+			//streamed, so the whole Shows table is never held as strings
+			esql.executeQueryAndVisit(rs -> target.add(rs.getLong(1), rs.getLong(2), rs.getLong(3),
+				rs.getDate(4).toLocalDate().toEpochDay() * 86400 + rs.getTime(5).toLocalTime().toSecondOfDay()), ALL_SHOWS);
+		}catch (Exception e){
+			System.err.println("Showtime index: " + e.getMessage());
+			built = null;
+		}//end try
+		synchronized (this){
+			if (built != null){
+				//changes made while the rows were read may or may not be in them; replaying is idempotent
+				for (Change change : pending){
+					change.apply(built);
+				}//end for
+				index = built;
+				builds++;
+				lastBuildMillis = System.currentTimeMillis() - start;
+			}//end if
+			pending = null;
+		}//end synchronized
+	}
+
+	/**
+	 * @return the date of 2019-01-01 or 01/01/2019
+	 */
+	static LocalDate parseDate(String date){
+		date = date.trim();
+		return date.indexOf('/') >= 0 ? LocalDate.parse(date, US_DATE) : LocalDate.parse(date);
+	}
+
+	/**
+	 * @return the second of the day of 8:25, 08:25 or 08:25:00
+	 */
+	static int parseTime(String time){
+		String[] parts = time.trim().split(":");
+		try{
+			LocalTime t = LocalTime.of(Integer.parseInt(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : 0,
+				parts.length > 2 ? (int) Double.parseDouble(parts[2]) : 0);
+			return t.toSecondOfDay();
+		}catch (RuntimeException e){
+			throw new DateTimeParseException("Invalid time", time, 0);
+		}//end try
+	}
+
+	public synchronized boolean isWarm(){
+		return index != null;
+	}
+
+	public synchronized String toString(){
+		return "Showtime index: " + (index == null ? "cold" : index.bySid.size() + " shows") + ", " + searches
+			+ " searches, " + coldSearches + " by query, " + builds + " builds, last in " + lastBuildMillis + " ms";
+	}
+}//end ShowtimeIndex
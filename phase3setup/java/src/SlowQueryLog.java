@@ -0,0 +1,576 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * This class aggregates every statement Ticketmaster runs by fingerprint and
+ * logs the slow ones, with their parameters and query plan, to a rolling
+ * local file.
+ *
+ * A fingerprint is the statement text with literals replaced by ?, lists of
+ * placeholders folded into one, whitespace collapsed and keywords lower
+ * cased, so statements that differ only in their values share one count,
+ * total time and maximum time.  Fingerprints are computed once per distinct
+ * SQL text; after that, recording a statement is a map lookup and a few
+ * counter adds.
+ *
+ * Statements that take longer than ticketmaster.slowQuery.ms milliseconds
+ * are queued, and so are statements still running after that long, which
+ * is how a hung statement shows up before it finishes.  A background thread
+ * writes the queue to ticketmaster.slowQuery.file, running EXPLAIN for at
+ * most one statement per fingerprint every ticketmaster.slowQuery.planInterval
+ * milliseconds.  The file rolls over at ticketmaster.slowQuery.maxBytes,
+ * keeping ticketmaster.slowQuery.files old files.  The statement never waits
+ * on the disk or on EXPLAIN; when the queue is full the entry is dropped and
+ * counted.
+ *
+ * Bound parameters can hold passwords, emails and phone numbers, so by
+ * default each is logged only as its type and length, and quoted literals
+ * are blanked out of the plans.  -Dticketmaster.slowQuery.values=true logs
+ * the values themselves.
+ *
+ */
+
+public class SlowQueryLog{
+	/**
+	 * Runs EXPLAIN for a statement, on a connection of its own.
+	 */
+	public interface Explainer{
+		List<String> explain(String sql, Object[] params) throws SQLException;
+	}
+
+	/**
+	 * The counters of one fingerprint.
+	 */
+	public static class Fingerprint{
+		final String text;
+		final String id;
+		final LongAdder count = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final AtomicLong maxNanos = new AtomicLong();
+		final LongAdder slow = new LongAdder();
+		//written by the log thread only
+		long lastPlanMillis;
+
+		Fingerprint(String text){
+			this.text = text;
+			this.id = hash(text);
+		}
+
+		public String getText(){
+			return text;
+		}
+
+		public String getId(){
+			return id;
+		}
+
+		public long getCount(){
+			return count.sum();
+		}
+
+		public long getSlow(){
+			return slow.sum();
+		}
+
+		public double getTotalMillis(){
+			return totalNanos.sum() / 1e6;
+		}
+
+		public double getMaxMillis(){
+			return maxNanos.get() / 1e6;
+		}
+	}//end Fingerprint
+
+	/**
+	 * The statement a thread is running, if any.
+	 */
+	static class Running{
+		final Thread thread = Thread.currentThread();
+		volatile String sql;
+		volatile Object[] params;
+		volatile long start;
+		volatile long seq;
+		//the last seq reported as running, written by the log thread only
+		long reported;
+	}//end Running
+
+	/**
+	 * One slow statement waiting to be written.
+	 */
+	static class Entry{
+		final long at = System.currentTimeMillis();
+		final Fingerprint fp;
+		final String sql;
+		final Object[] params;
+		final long nanos;
+		final String thread;
+		//finished, failed or still running
+		final String state;
+
+		Entry(Fingerprint fp, String sql, Object[] params, long nanos, String thread, String state){
+			this.fp = fp;
+			this.sql = sql;
+			this.params = params;
+			this.nanos = nanos;
+			this.thread = thread;
+			this.state = state;
+		}
+	}//end Entry
+
+	private static final Pattern LIST = Pattern.compile("\\(\\?(?:, ?\\?)+\\)");
+	//a quoted literal in a plan, such as a bound email in a filter
+	private static final Pattern LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+	private final ConcurrentHashMap<String, Fingerprint> byText = new ConcurrentHashMap<String, Fingerprint>();
+	private final ConcurrentHashMap<String, Fingerprint> byFingerprint = new ConcurrentHashMap<String, Fingerprint>();
+	private final Set<Running> running = Collections.newSetFromMap(new ConcurrentHashMap<Running, Boolean>());
+	private final ThreadLocal<Running> current = ThreadLocal.withInitial(() -> {
+		//the log thread prunes too, but it is not running once closed
+		running.removeIf(r -> !r.thread.isAlive());
+		Running r = new Running();
+		running.add(r);
+		return r;
+	});
+	private final BlockingQueue<Entry> queue;
+	private final Explainer explainer;
+	private final long thresholdNanos;
+	private final File file;
+	private final long maxBytes;
+	private final int files;
+	private final long planInterval;
+	private final int maxTexts;
+	//log parameter values and plan literals, not just their types and lengths
+	private final boolean values = Boolean.getBoolean("ticketmaster.slowQuery.values");
+	private final LongAdder logged = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder plans = new LongAdder();
+	private Thread writer;
+	private volatile boolean closing;
+	//the open log and its size, used by the log thread only
+	private Writer out;
+	private long bytes;
+
+	public SlowQueryLog(Explainer explainer){
+		this(explainer, Long.getLong("ticketmaster.slowQuery.ms", 200L),
+			new File(System.getProperty("ticketmaster.slowQuery.file", "slow-query.log")),
+			Long.getLong("ticketmaster.slowQuery.maxBytes", 10L << 20),
+			Integer.getInteger("ticketmaster.slowQuery.files", 5),
+			Long.getLong("ticketmaster.slowQuery.planInterval", 60000L));
+	}
+
+	/**
+	 * @param thresholdMillis statements slower than this are logged, none
+	 *        when negative
+	 */
+	public SlowQueryLog(Explainer explainer, long thresholdMillis, File file, long maxBytes, int files, long planInterval){
+		this.explainer = explainer;
+		this.thresholdNanos = thresholdMillis < 0 ? Long.MAX_VALUE : thresholdMillis * 1000000L;
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.files = Math.max(0, files);
+		this.planInterval = planInterval;
+		this.maxTexts = Integer.getInteger("ticketmaster.slowQuery.texts", 10000);
+		this.queue = new ArrayBlockingQueue<Entry>(Integer.getInteger("ticketmaster.slowQuery.queue", 1024));
+		if (thresholdMillis >= 0){
+			//the log thread also watches for statements that never finish
+			startWriter();
+		}//end if
+	}
+
+	/**
+	 * Marks the statement as running on this thread, unless nothing is
+	 * logged.
+	 *
+	 * @return the start time to pass to end()
+	 */
+	public long begin(String sql, Object[] params){
+		long start = System.nanoTime();
+		if (thresholdNanos == Long.MAX_VALUE){
+			return start;
+		}//end if
+		Running r = current.get();
+		r.params = params;
+		r.start = start;
+		r.seq = r.seq + 1;
+		r.sql = sql;
+		return start;
+	}
+
+	/**
+	 * Counts the statement under its fingerprint and queues it for the log
+	 * when it was slow.
+	 */
+	public void end(String sql, Object[] params, long start, boolean failed){
+		long nanos = System.nanoTime() - start;
+		if (thresholdNanos != Long.MAX_VALUE){
+			current.get().sql = null;
+		}//end if
+		Fingerprint fp = fingerprintOf(sql);
+		fp.count.increment();
+		fp.totalNanos.add(nanos);
+		fp.maxNanos.accumulateAndGet(nanos, Math::max);
+		if (nanos >= thresholdNanos){
+			fp.slow.increment();
+			offer(new Entry(fp, sql, params, nanos, Thread.currentThread().getName(), failed ? "failed" : "finished"));
+		}//end if
+	}
+
+	private Fingerprint fingerprintOf(String sql){
+		Fingerprint fp = byText.get(sql);
+		if (fp == null){
+			fp = byFingerprint.computeIfAbsent(fingerprint(sql), Fingerprint::new);
+			//SQL built from input would grow the text map without bound
+			if (byText.size() < maxTexts){
+				byText.put(sql, fp);
+			}//end if
+		}//end if
+		return fp;
+	}
+
+	private void offer(Entry e){
+		if (thresholdNanos == Long.MAX_VALUE){
+			return;
+		}//end if
+		if (!queue.offer(e)){
+			dropped.increment();
+		}//end if
+	}
+
+	/**
+	 * Normalizes a statement: literals and placeholders become ?, lists of
+	 * them become one (?+), comments go, whitespace collapses to one space
+	 * and everything outside quoted identifiers is lower cased.
+	 */
+	static String fingerprint(String sql){
+		StringBuilder sb = new StringBuilder(sql.length());
+		int n = sql.length();
+		int i = 0;
+		while (i < n){
+			char c = sql.charAt(i);
+			if (c == '\''){
+				//string literal, with '' as an escaped quote
+				++i;
+				while (i < n){
+					if (sql.charAt(i) == '\'' && (i + 1 >= n || sql.charAt(i + 1) != '\'')){
+						break;
+					}//end if
+					i += sql.charAt(i) == '\'' ? 2 : 1;
+				}//end while
+				sb.append('?');
+				++i;
+			}else if (c == '"'){
+				int close = sql.indexOf('"', i + 1);
+				close = close < 0 ? n - 1 : close;
+				sb.append(sql, i, close + 1);
+				i = close + 1;
+			}else if (c == '-' && i + 1 < n && sql.charAt(i + 1) == '-'){
+				while (i < n && sql.charAt(i) != '\n'){
+					++i;
+				}//end while
+			}else if (Character.isWhitespace(c)){
+				while (i < n && Character.isWhitespace(sql.charAt(i))){
+					++i;
+				}//end while
+				if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' '){
+					sb.append(' ');
+				}//end if
+			}else if ((Character.isDigit(c) || c == '$') && !identifierBefore(sb)){
+				//a number, or a $1 placeholder
+				++i;
+				while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')){
+					++i;
+				}//end while
+				sb.append('?');
+			}else{
+				sb.append(Character.toLowerCase(c));
+				++i;
+			}//end if
+		}//end while
+		int end = sb.length();
+		while (end > 0 && (sb.charAt(end - 1) == ' ' || sb.charAt(end - 1) == ';')){
+			--end;
+		}//end while
+		sb.setLength(end);
+		return LIST.matcher(sb).replaceAll("(?+)");
+	}
+
+	private static boolean identifierBefore(StringBuilder sb){
+		if (sb.length() == 0){
+			return false;
+		}//end if
+		char c = sb.charAt(sb.length() - 1);
+		return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+	}
+
+	/**
+	 * @return a 64-bit FNV-1a hash of the text, in hex, to grep the log by
+	 */
+	static String hash(String text){
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < text.length(); ++i){
+			h ^= text.charAt(i);
+			h *= 0x100000001b3L;
+		}//end for
+		return String.format("%016x", h);
+	}
+
+	private synchronized void startWriter(){
+		if (writer != null || closing){
+			return;
+		}//end if
+		writer = new Thread(this::write, "slow-query-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * The log thread: writes queued entries and, once a second, statements
+	 * that have been running for longer than the threshold.
+	 */
+	private void write(){
+		try{
+			while (!closing || !queue.isEmpty()){
+				Entry e = queue.poll(1, TimeUnit.SECONDS);
+				while (e != null){
+					write(e);
+					e = queue.poll();
+				}//end while
+				scanRunning();
+				if (out != null){
+					out.flush();
+				}//end if
+			}//end while
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}catch (IOException e){
+			System.err.println("Slow query log: cannot write " + file + ": " + e.getMessage());
+		}finally{
+			closeFile();
+		}//end try
+	}
+
+	private void scanRunning(){
+		long now = System.nanoTime();
+		for (Running r : running){
+			if (!r.thread.isAlive()){
+				running.remove(r);
+				continue;
+			}//end if
+			long seq = r.seq;
+			long start = r.start;
+			Object[] params = r.params;
+			String sql = r.sql;
+			if (sql != null && seq != r.reported && now - start >= thresholdNanos && seq == r.seq){
+				r.reported = seq;
+				Entry e = new Entry(fingerprintOf(sql), sql, params, now - start, r.thread.getName(), "running");
+				try{
+					write(e);
+				}catch (IOException x){
+					System.err.println("Slow query log: cannot write " + file + ": " + x.getMessage());
+				}//end try
+			}//end if
+		}//end for
+	}
+
+	private void write(Entry e) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(Instant.ofEpochMilli(e.at)).append(' ').append(e.state);
+		sb.append(String.format(" %.1f ms", e.nanos / 1e6));
+		sb.append(" fingerprint=").append(e.fp.id).append(" thread=").append(e.thread).append('\n');
+		sb.append("  fingerprint: ").append(e.fp.text).append('\n');
+		sb.append("  sql: ").append(e.sql.replaceAll("\\s+", " ").trim()).append('\n');
+		if (e.params != null && e.params.length > 0){
+			sb.append("  params: ").append(values ? render(e.params) : describe(e.params)).append('\n');
+		}//end if
+		long now = System.currentTimeMillis();
+		if (!e.state.equals("failed") && explainable(e.fp.text) && now - e.fp.lastPlanMillis >= planInterval){
+			e.fp.lastPlanMillis = now;
+			try{
+				List<String> plan = explainer.explain(e.sql, e.params == null ? new Object[0] : e.params);
+				plans.increment();
+				sb.append("  plan:\n");
+				for (String line : plan){
+					sb.append("    ").append(values ? line : LITERAL.matcher(line).replaceAll("'?'")).append('\n');
+				}//end for
+			}catch (SQLException | RuntimeException x){
+				sb.append("  plan: unavailable (").append(x.getMessage()).append(")\n");
+			}//end try
+		}//end if
+		append(sb.append('\n').toString());
+		logged.increment();
+	}
+
+	private static boolean explainable(String fingerprint){
+		return fingerprint.startsWith("select") || fingerprint.startsWith("with") || fingerprint.startsWith("insert")
+			|| fingerprint.startsWith("update") || fingerprint.startsWith("delete");
+	}
+
+	/**
+	 * @return the type and length of each parameter, such as String(17) or
+	 *         long[3], without its value
+	 */
+	static String describe(Object[] params){
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < params.length; ++i){
+			if (i > 0){
+				sb.append(", ");
+			}//end if
+			Object p = params[i];
+			if (p == null){
+				sb.append("null");
+			}else if (p instanceof long[]){
+				sb.append("long[").append(((long[]) p).length).append(']');
+			}else{
+				sb.append(p.getClass().getSimpleName()).append('(').append(String.valueOf(p).length()).append(')');
+			}//end if
+		}//end for
+		return sb.append(']').toString();
+	}
+
+	private static String render(Object[] params){
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < params.length; ++i){
+			if (i > 0){
+				sb.append(", ");
+			}//end if
+			Object p = params[i];
+			String s = p instanceof long[] ? Arrays.toString((long[]) p) : String.valueOf(p);
+			if (s.length() > 80){
+				s = s.substring(0, 77) + "...";
+			}//end if
+			sb.append(p instanceof String ? Json.quote(s) : s);
+		}//end for
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * Appends to the log, rolling it over first when it is full.
+	 */
+	private void append(String text) throws IOException {
+		byte[] data = text.getBytes(StandardCharsets.UTF_8);
+		if (out != null && bytes + data.length > maxBytes){
+			closeFile();
+			roll();
+		}//end if
+		if (out == null){
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+			bytes = file.length();
+		}//end if
+		out.write(text);
+		bytes += data.length;
+	}
+
+	private void roll(){
+		if (files == 0){
+			file.delete();
+			return;
+		}//end if
+		new File(file.getPath() + "." + files).delete();
+		for (int k = files - 1; k >= 1; --k){
+			new File(file.getPath() + "." + k).renameTo(new File(file.getPath() + "." + (k + 1)));
+		}//end for
+		file.renameTo(new File(file.getPath() + ".1"));
+	}
+
+	private void closeFile(){
+		if (out != null){
+			try{
+				out.close();
+			}catch (IOException ignored){
+				// nothing more can be logged.
+			}//end try
+			out = null;
+		}//end if
+	}
+
+	/**
+	 * @return the fingerprints seen so far, by total time, longest first
+	 */
+	public List<Fingerprint> getFingerprints(){
+		List<Fingerprint> list = new ArrayList<Fingerprint>(byFingerprint.values());
+		list.sort((a, b) -> Long.compare(b.totalNanos.sum(), a.totalNanos.sum()));
+		return list;
+	}
+
+	public long getLogged(){
+		return logged.sum();
+	}
+
+	public long getDropped(){
+		return dropped.sum();
+	}
+
+	public long getPlans(){
+		return plans.sum();
+	}
+
+	/**
+	 * @return how many statements have been running for longer than the
+	 *         threshold right now
+	 */
+	public int getRunningSlow(){
+		long now = System.nanoTime();
+		int count = 0;
+		for (Running r : running){
+			if (r.sql != null && now - r.start >= thresholdNanos){
+				++count;
+			}//end if
+		}//end for
+		return count;
+	}
+
+	/**
+	 * Writes what is queued and stops the log thread, waiting for it at most
+	 * five seconds.
+	 */
+	public void close(){
+		Thread t;
+		synchronized (this){
+			closing = true;
+			t = writer;
+		}//end synchronized
+		if (t != null){
+			try{
+				t.join(5000);
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}//end try
+		}//end if
+	}
+
+	/**
+	 * @return the ten fingerprints with the most total time, and the log
+	 *         counters
+	 */
+	public String toString(){
+		StringBuilder sb = new StringBuilder(String.format("Slow query log: %d logged, %d dropped, %d plans, %s%n",
+			logged.sum(), dropped.sum(), plans.sum(), file));
+		sb.append(String.format("%-16s %9s %7s %10s %10s  %s%n", "fingerprint", "calls", "slow", "total ms", "max ms", "statement"));
+		List<Fingerprint> list = getFingerprints();
+		for (Fingerprint fp : list.subList(0, Math.min(10, list.size()))){
+			String text = fp.text.length() > 60 ? fp.text.substring(0, 57) + "..." : fp.text;
+			sb.append(String.format("%-16s %9d %7d %10.1f %10.1f  %s%n", fp.id, fp.getCount(), fp.getSlow(),
+				fp.getTotalMillis(), fp.getMaxMillis(), text));
+		}//end for
+		return sb.toString();
+	}
+}//end SlowQueryLog
@@ -0,0 +1,120 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * This class keeps a bounded, least-recently-used cache of prepared
+ * statements for one physical connection, keyed by SQL text.  Statements are
+ * switched to server-side prepared plans on first use, so a cached statement
+ * is parsed and planned by Postgres only once.
+ *
+ */
+
+public class StatementCache{
+	//default number of statements kept per connection
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private final Connection connection;
+	private final int capacity;
+	private final int prepareThreshold;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public StatementCache(Connection connection){
+		this(connection, Integer.getInteger("ticketmaster.statementCache.size", DEFAULT_CAPACITY),
+			Integer.getInteger("ticketmaster.prepareThreshold", 1));
+	}
+
+	/**
+	 * @param connection the connection the statements are prepared on
+	 * @param capacity maximum number of statements kept open
+	 * @param prepareThreshold executions before the driver switches to a
+	 *        server-side prepared plan, 0 keeps statements client-side
+	 */
+	public StatementCache(Connection connection, int capacity, int prepareThreshold){
+		this.connection = connection;
+		this.capacity = capacity;
+		this.prepareThreshold = prepareThreshold;
+		//access-ordered, so the eldest entry is the least recently used one
+		this.statements = new LinkedHashMap<String, PreparedStatement>(capacity * 2, 0.75f, true);
+	}
+
+	/**
+	 * Returns an open prepared statement for the given SQL text, preparing it
+	 * when it is not cached yet.  The caller must not close the statement.
+	 *
+	 * @param sql the SQL text with ? placeholders
+	 * @return the cached prepared statement
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	public synchronized PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = statements.get(sql);
+		if (stmt != null && !stmt.isClosed()){
+			hits++;
+			stmt.clearParameters();
+			return stmt;
+		}//end if
+
+		misses++;
+		stmt = connection.prepareStatement(sql);
+		if (prepareThreshold > 0){
+			stmt.unwrap(PGStatement.class).setPrepareThreshold(prepareThreshold);
+		}//end if
+		statements.put(sql, stmt);
+
+		if (statements.size() > capacity){
+			Iterator<Map.Entry<String, PreparedStatement>> eldest = statements.entrySet().iterator();
+			closeQuietly(eldest.next().getValue());
+			eldest.remove();
+			evictions++;
+		}//end if
+		return stmt;
+	}//end prepare
+
+	/**
+	 * Closes every cached statement.
+	 */
+	public synchronized void close(){
+		for (PreparedStatement stmt : statements.values()){
+			closeQuietly(stmt);
+		}//end for
+		statements.clear();
+	}//end close
+
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+
+	public synchronized int size(){
+		return statements.size();
+	}
+
+	public synchronized String toString(){
+		return "Statement cache: " + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+			+ statements.size() + "/" + capacity + " cached";
+	}
+
+	private static void closeQuietly(PreparedStatement stmt){
+		try{
+			stmt.close();
+		}catch (SQLException e){
+			// ignored.
+		}//end try
+	}
+}//end StatementCache
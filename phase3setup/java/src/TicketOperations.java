@@ -0,0 +1,667 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class holds the booking operations behind the Ticketmaster menu,
+ * without any console I/O.  Every method takes its inputs as arguments and
+ * runs against the connection pool of the given Ticketmaster, so one instance
+ * can be shared by any number of concurrent sessions.
+ *
+ * Business-rule violations are reported as IllegalArgumentException with a
+ * message meant for the user.
+ *
+ * Seat availability is answered from an in-memory SeatIndex; seat writes
+ * are conditional on "bid IS NULL" so the database still decides races
+ * between processes.  Seats can be held in memory for a while with
+ * SeatHolds and then booked from the hold.  Cinemas, theaters, movies and
+ * plays are read through
+ * a ReferenceCache.  Showtimes (option 13) are searched in a ShowtimeIndex
+ * and movie titles and descriptions in a MovieSearchIndex.  The listings
+ * (options 9 to 14) run through Ticketmaster.reading(), on the read-only
+ * snapshot connections of the read pool.
+ *
+ * Every operation records its latency, errors, round trips and rows in the
+ * Metrics of the Ticketmaster, under the name of the method.
+ *
+ */
+
+public class TicketOperations{
+	//names of the checks reported by the validate* methods
+	public static final String CHECK_EMAIL = "email";
+	public static final String CHECK_THEATER = "theater";
+	public static final String CHECK_SHOW = "show";
+	public static final String CHECK_PLAYS = "plays";
+	public static final String CHECK_BOOKING = "booking";
+	public static final String CHECK_SEAT = "seat";
+	public static final String CHECK_NEW_SEAT = "newSeat";
+	public static final String CHECK_NEW_SEAT_FREE = "newSeatFree";
+	public static final String CHECK_PRICE = "price";
+
+	static final String USER_EXISTS = "Select 1 from Users where email = ?";
+	static final String SHOW_OF_MOVIE = "Select 1 from Shows where sid = ? AND mvid = ?";
+	static final String BOOKING_EXISTS = "Select 1 from Bookings where bid = ?";
+	static final String SEAT_OF_BOOKING = "Select 1 from ShowSeats where ssid = ? AND bid = ?";
+	static final String SEAT_OF_SAME_SHOW = "Select 1 from ShowSeats N, ShowSeats O where N.ssid = ? AND O.ssid = ? AND N.sid = O.sid";
+	static final String SEAT_FREE = "Select 1 from ShowSeats where ssid = ? AND bid IS NULL";
+	static final String SEAT_SAME_PRICE = "Select 1 from ShowSeats N, ShowSeats O where N.ssid = ? AND O.ssid = ? AND N.price = O.price";
+	static final String INSERT_USER = "INSERT INTO Users (email, lname, fname, phone, pwd) VALUES (?, ?, ?, ?, ?)";
+	static final String INSERT_BOOKING = "Insert into Bookings VALUES (?, ?, ?, ?, ?, ?)";
+	static final String CLAIM_SEATS = "UPDATE ShowSeats SET bid = ? WHERE sid = ? AND ssid = ANY(?) AND bid IS NULL RETURNING ssid";
+	static final String INSERT_MOVIE = "INSERT INTO Movies (mvid, title, rdate, country, description, duration, lang, genre) values "
+		+ "(?, ?, CAST(? AS DATE), ?, ?, ?, ?, ?)";
+	static final String INSERT_SHOW = "INSERT INTO Shows (sid, mvid, sdate, sttime, edtime) values (?, ?, CAST(? AS DATE), CAST(? AS TIME), CAST(? AS TIME))";
+	static final String INSERT_PLAY = "INSERT INTO Plays (sid, tid) values (?, ?)";
+	static final String CANCEL_PENDING_BOOKING = "Update Bookings SET status = 'Cancelled' where bid = ? AND status = 'Pending'";
+	static final String RELEASE_SEAT = "UPDATE ShowSeats SET bid = NULL WHERE ssid = ? AND bid = ? RETURNING sid";
+	static final String MOVE_SEAT = "UPDATE ShowSeats SET bid = ? WHERE ssid = ? AND bid IS NULL RETURNING sid";
+	static final String PAID_BOOKING = "Select 1 from bookings where status = 'Paid' AND bid = ?";
+	static final String DELETE_PAYMENT = "Delete From Payments where bid = ?";
+	static final String CANCEL_BOOKING = "Update Bookings SET status = 'Cancelled' where bid = ?";
+	static final String RELEASE_BOOKING_SEATS = "Update ShowSeats SET bid = NULL where bid = ? RETURNING sid, ssid";
+	//the shows of a cinema on a date, locked so no booking is added while they are removed
+	static final String LOCK_SHOWS_ON_DATE = "SELECT S.sid FROM Shows S WHERE S.sdate = CAST(? AS DATE) AND EXISTS"
+		+ " (SELECT 1 FROM Plays P, Theaters T, Cinemas C WHERE P.sid = S.sid AND T.tid = P.tid AND C.cid = T.cid AND C.cname = ?)"
+		+ " ORDER BY S.sid FOR UPDATE OF S";
+	static final String DELETE_SHOW_PAYMENTS = "DELETE FROM Payments P USING Bookings B WHERE P.bid = B.bid AND B.sid = ANY(?)";
+	static final String DELETE_SHOW_SEATS = "DELETE FROM ShowSeats WHERE sid = ANY(?)";
+	static final String DELETE_SHOW_BOOKINGS = "DELETE FROM Bookings WHERE sid = ANY(?)";
+	static final String DELETE_SHOW_PLAYS = "DELETE FROM Plays WHERE sid = ANY(?)";
+	static final String DELETE_SHOWS = "DELETE FROM Shows WHERE sid = ANY(?)";
+	static final String SHOWS_AT = "Select * from Shows where sdate = CAST(? AS DATE) AND sttime = CAST(? AS TIME)";
+	static final String USERS_WITH_PENDING = "Select fname,lname,email from Users where email in (select distinct email from bookings where status = 'Pending')";
+	//movie titles and theater names are filled in from the reference cache
+	static final String BOOKINGS_OF_USER = "SELECT S0.mvid, S0.sdate, S0.sttime, P.tid, C.sno FROM Shows S0, ShowSeats S1, CinemaSeats C, Plays P, Bookings B WHERE B.email = ? AND B.sid = S0.sid AND S0.sid = P.sid AND B.bid = S1.bid AND S1.csid = C.csid";
+
+	private final Ticketmaster esql;
+	private final SeatIndex seatIndex;
+	private final SeatHolds holds;
+	private final ReferenceCache references;
+	private final BookingReaper reaper;
+	private final ShowtimeIndex showtimes;
+	private final MovieSearchIndex movieSearch;
+	private final SeatFinder seatFinder;
+	private final Metrics metrics;
+
+	public TicketOperations(Ticketmaster esql){
+		this.esql = esql;
+		this.seatIndex = new SeatIndex(esql);
+		this.holds = new SeatHolds(seatIndex);
+		this.references = new ReferenceCache(esql);
+		this.reaper = new BookingReaper(esql, seatIndex);
+		this.showtimes = new ShowtimeIndex(esql, references);
+		this.movieSearch = new MovieSearchIndex(esql);
+		this.seatFinder = new SeatFinder(esql, seatIndex, references);
+		this.metrics = esql.getMetrics();
+	}
+
+	public Ticketmaster getTicketmaster(){
+		return esql;
+	}
+
+	public SeatIndex getSeatIndex(){
+		return seatIndex;
+	}
+
+	public SeatHolds getHolds(){
+		return holds;
+	}
+
+	public ReferenceCache getReferences(){
+		return references;
+	}
+
+	public BookingReaper getReaper(){
+		return reaper;
+	}
+
+	public ShowtimeIndex getShowtimes(){
+		return showtimes;
+	}
+
+	public MovieSearchIndex getMovieSearch(){
+		return movieSearch;
+	}
+
+	public SeatFinder getSeatFinder(){
+		return seatFinder;
+	}
+
+	public void addUser(String email, String lname, String fname, BigDecimal phone, String pwd) throws SQLException {//1
+		metrics.timed("addUser", () -> {
+			esql.executeUpdate(INSERT_USER, email, lname, fname, phone, pwd);
+			return null;
+		});
+	}
+
+	public long newBookingId() throws SQLException {//2
+		return metrics.timed("newBookingId", () -> esql.bookingKeys.nextKey());
+	}
+
+	/**
+	 * Checks all inputs of a booking.  The theater and plays checks are
+	 * answered by the reference cache, the others in one round trip.
+	 *
+	 * @return the failed checks out of CHECK_EMAIL, CHECK_THEATER (theater
+	 *         not in cinema), CHECK_SHOW (show not of movie) and CHECK_PLAYS
+	 *         (theater does not play show); empty when the booking is valid
+	 */
+	public List<String> validateBooking(String email, long cid, long tid, long sid, long mvid) throws SQLException {
+		return metrics.timed("validateBooking", () -> {
+			List<String> checked = bookingChecks(esql, email, sid, mvid).run();
+			List<String> failed = new ArrayList<String>();
+			if (checked.contains(CHECK_EMAIL)) {
+				failed.add(CHECK_EMAIL);
+			}
+			if (!references.theaterInCinema(tid, cid)) {
+				failed.add(CHECK_THEATER);
+			}
+			if (checked.contains(CHECK_SHOW)) {
+				failed.add(CHECK_SHOW);
+			}
+			if (!references.showPlaysIn(sid, tid)) {
+				failed.add(CHECK_PLAYS);
+			}
+			return failed;
+		});
+	}
+
+	/**
+	 * @return the checks validateBooking() runs in the database; PlanCheck
+	 *         explains the same query
+	 */
+	static Validation bookingChecks(Ticketmaster esql, String email, long sid, long mvid){
+		return new Validation(esql)
+			.exists(CHECK_EMAIL, USER_EXISTS, email)
+			.exists(CHECK_SHOW, SHOW_OF_MOVIE, sid, mvid);
+	}
+
+	public boolean seatFree(long sid, long ssid) throws SQLException {
+		return seatIndex.isFree(sid, ssid);
+	}
+
+	/**
+	 * Creates a booking together with all of its seats in one transaction.
+	 * The seats are claimed in the seat index first and then in the database
+	 * with a single set-based update; if any seat turns out to be taken the
+	 * whole booking is rolled back.
+	 *
+	 * @param ssids the show seats to book, the booking gets one seat per entry
+	 * @return the booking time stored with the booking
+	 * @throws IllegalArgumentException naming the seats that are not available
+	 */
+	public Timestamp addBooking(final long bid, final String status, final long sid, final String email,
+			final long[] ssids) throws SQLException {
+		return metrics.timed("addBooking", () -> {
+			if (!seatIndex.reserve(sid, ssids)){
+				throw new IllegalArgumentException("Show seats not available: " + unavailable(sid, ssids));
+			}
+			return insertBooking(bid, status, sid, email, ssids);
+		});
+	}
+
+	/**
+	 * Writes a booking whose seats are booked in the seat index, and frees
+	 * them there again when the transaction it commits with rolls back.
+	 */
+	private Timestamp insertBooking(final long bid, final String status, final long sid, final String email,
+			final long[] ssids) throws SQLException {
+		final Timestamp now = new Timestamp(System.currentTimeMillis());
+		final boolean[] conflict = new boolean[1];
+		esql.inTransaction(() -> {
+			esql.afterRollback(() -> {
+				if (conflict[0]) {
+					//another process booked some of the seats, the index is stale
+					seatIndex.invalidate(sid);
+				} else {
+					seatIndex.release(sid, ssids);
+				}
+			});
+			esql.executeUpdate(INSERT_BOOKING, bid, status, now, ssids.length, sid, email);
+			ResultTable claimed = esql.executeQueryAndReturnTable(CLAIM_SEATS, bid, sid, ssids);
+			if (claimed.size() != ssids.length){
+				conflict[0] = true;
+				throw new IllegalArgumentException("Show seats not available: " + missing(ssids, claimed));
+			}
+			return null;
+		});
+		return now;
+	}
+
+	/**
+	 * Holds seats of a show for ticketmaster.holds.ttl milliseconds, without
+	 * touching the database.  More seats can be added with addToHold().
+	 *
+	 * @return the hold ID, for addToHold(), confirmHold() and releaseHold()
+	 * @throws IllegalArgumentException naming the seats that are not available
+	 */
+	public long holdSeats(long sid, long... ssids) throws SQLException {
+		return metrics.timed("holdSeats", () -> holds.open(sid, ssids));
+	}
+
+	/**
+	 * Holds the best available block of adjacent seats of a show, as found
+	 * by the SeatFinder: the lowest-numbered run of count free seats in one
+	 * theater, all of type stype unless it is null or empty.  When another
+	 * session takes one of the seats first, it searches again.
+	 *
+	 * @return the hold ID; its seats are given by SeatHolds.seats()
+	 * @throws IllegalArgumentException when the show has no such run
+	 */
+	public long holdBestSeats(long sid, int count, String stype) throws SQLException {
+		return metrics.timed("holdBestSeats", () -> {
+			for (int attempt = 0; ; ++attempt) {
+				long[] ssids = seatFinder.find(sid, count, stype);
+				if (ssids == null) {
+					throw new IllegalArgumentException("No " + count + " adjacent " + (stype == null || stype.isEmpty() ? "" : stype + " ")
+						+ "seats available for show " + sid);
+				}
+				try {
+					return holds.open(sid, ssids);
+				} catch (IllegalArgumentException e) {
+					//taken between find and hold
+					if (attempt == 4) {
+						throw e;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Adds seats to a hold, restarting its time to live.
+	 *
+	 * @return false when one of the seats is not available; none is added
+	 * @throws IllegalArgumentException when the hold is unknown or expired
+	 */
+	public boolean addToHold(long hold, long... ssids) throws SQLException {
+		return metrics.timed("addToHold", () -> holds.add(hold, ssids));
+	}
+
+	/**
+	 * Frees the seats of a hold; unknown or expired holds are ignored.
+	 */
+	public void releaseHold(long hold){
+		holds.release(hold);
+	}
+
+	/**
+	 * Books every seat of a hold, ending it.  The booking and its seats are
+	 * written in one transaction exactly as by addBooking(); if another
+	 * process took one of the seats, nothing is booked and the seats are
+	 * freed.
+	 *
+	 * @return the booking time stored with the booking
+	 * @throws IllegalArgumentException when the hold is unknown, expired or
+	 *         empty, or a seat is no longer available
+	 */
+	public Timestamp confirmHold(long hold, long bid, String status, String email) throws SQLException {
+		return metrics.timed("confirmHold", () -> {
+			long[] taken = holds.take(hold);
+			long sid = taken[0];
+			long[] ssids = Arrays.copyOfRange(taken, 1, taken.length);
+			if (!seatIndex.book(sid, ssids)){
+				seatIndex.unhold(sid, ssids);
+				throw new IllegalArgumentException("Show seats not available: " + unavailable(sid, ssids));
+			}
+			return insertBooking(bid, status, sid, email, ssids);
+		});
+	}
+
+	private String unavailable(long sid, long[] ssids) throws SQLException {
+		StringBuilder taken = new StringBuilder();
+		for (int i = 0; i < ssids.length; ++i){
+			boolean repeated = false;
+			for (int k = 0; k < i; ++k){
+				repeated |= ssids[k] == ssids[i];
+			}
+			if (repeated || !seatIndex.isFree(sid, ssids[i])){
+				taken.append(taken.length() > 0 ? ", " : "").append(ssids[i]);
+			}
+		}
+		return taken.toString();
+	}
+
+	private static String missing(long[] ssids, ResultTable claimed){
+		StringBuilder taken = new StringBuilder();
+		for (long ssid : ssids){
+			boolean found = false;
+			for (int i = 0; i < claimed.size(); ++i){
+				found |= claimed.getLong(i, 0) == ssid;
+			}
+			if (!found){
+				taken.append(taken.length() > 0 ? ", " : "").append(ssid);
+			}
+		}
+		return taken.toString();
+	}
+
+	/**
+	 * Inserts a new movie together with one showing of it in the given
+	 * theater, in one transaction.
+	 *
+	 * @return the new movie ID and show ID
+	 */
+	public long[] addMovieShowing(String title, String releaseDate, String country, String description, int duration,
+			String lang, String genre, String sdate, String sttime, String edtime, int tid) throws SQLException {//3
+		return metrics.timed("addMovieShowing", () -> {
+			long movieId = esql.movieKeys.nextKey();
+			long sid = esql.showKeys.nextKey();
+
+			ReferenceCache.Theater theater = references.theater(tid);
+			esql.inTransaction(() -> {
+				esql.executeUpdate(INSERT_MOVIE, movieId, title, releaseDate, country, description, duration, lang, genre);
+				esql.executeUpdate(INSERT_SHOW, sid, movieId, sdate, sttime, edtime);
+				esql.executeUpdate(INSERT_PLAY, sid, tid);
+				String released = releaseDate(movieId, releaseDate);
+				esql.afterCommit(() -> {
+					references.movieChanged(movieId, title);
+					references.showChanged(sid);
+					movieSearch.movieAdded(new ReferenceCache.Movie(Arrays.asList(String.valueOf(movieId), title,
+						released, country, description, String.valueOf(duration), lang, genre)));
+					if (theater != null) {
+						showtimes.showAdded(sid, movieId, theater.cid, sdate, sttime);
+					}
+				});
+				return null;
+			});
+			return new long[]{movieId, sid};
+		});
+	}
+
+	/**
+	 * @return the release date of a movie just inserted in ISO form, as the
+	 *         rows MovieSearchIndex is built from have it
+	 */
+	private String releaseDate(long movieId, String releaseDate) throws SQLException {
+		try {
+			return ShowtimeIndex.parseDate(releaseDate).toString();
+		} catch (DateTimeParseException e) {
+			//the database accepted a format ShowtimeIndex does not know; read it back
+			return esql.executeQueryAndReturnResult(ReferenceCache.MOVIE, movieId).get(0).get(2);
+		}
+	}
+
+	public int theaterCount() throws SQLException {
+		return references.theaterCount();
+	}
+
+	/**
+	 * Cancels all pending bookings and releases their seats, in chunks.
+	 */
+	public int cancelPendingBookings() throws SQLException {//4
+		return metrics.timed("cancelPendingBookings", () -> reaper.expirePending("infinity"));
+	}
+
+	/**
+	 * Cancels one pending booking and releases its seats, in one transaction.
+	 *
+	 * @return false when there is no pending booking with this ID
+	 */
+	public boolean cancelPendingBooking(final long bid) throws SQLException {
+		return metrics.timed("cancelPendingBooking", () -> {
+			return esql.inTransaction(() -> {
+				if (esql.executeUpdate(CANCEL_PENDING_BOOKING, bid) == 0) {
+					return false;
+				}
+				ResultTable released = esql.executeQueryAndReturnTable(RELEASE_BOOKING_SEATS, bid);
+				esql.afterCommit(() -> {
+					for (int i = 0; i < released.size(); ++i) {
+						seatIndex.release(released.getLong(i, 0), released.getLong(i, 1));
+					}
+				});
+				return true;
+			});
+		});
+	}
+
+	/**
+	 * Checks a seat change in one round trip.
+	 *
+	 * @return the failed checks out of CHECK_BOOKING, CHECK_SEAT (old seat
+	 *         not held by the booking), CHECK_NEW_SEAT (new seat not in the
+	 *         same show), CHECK_NEW_SEAT_FREE and CHECK_PRICE
+	 */
+	public List<String> validateSeatChange(long bid, long oldSsid, long newSsid) throws SQLException {
+		return metrics.timed("validateSeatChange", () -> seatChangeChecks(esql, bid, oldSsid, newSsid).run());
+	}
+
+	/**
+	 * @return the checks validateSeatChange() runs; PlanCheck explains the
+	 *         same query
+	 */
+	static Validation seatChangeChecks(Ticketmaster esql, long bid, long oldSsid, long newSsid){
+		return new Validation(esql)
+			.exists(CHECK_BOOKING, BOOKING_EXISTS, bid)
+			.exists(CHECK_SEAT, SEAT_OF_BOOKING, oldSsid, bid)
+			.exists(CHECK_NEW_SEAT, SEAT_OF_SAME_SHOW, newSsid, oldSsid)
+			.exists(CHECK_NEW_SEAT_FREE, SEAT_FREE, newSsid)
+			.exists(CHECK_PRICE, SEAT_SAME_PRICE, newSsid, oldSsid);
+	}
+
+	/**
+	 * Moves one seat of a booking to another free seat of the same show and
+	 * price.  The new seat is claimed before the old one is given up, in one
+	 * transaction.
+	 */
+	public void changeSeat(final long bid, final long oldSsid, final long newSsid) throws SQLException {//5
+		metrics.timed("changeSeat", () -> {
+			List<String> failed = validateSeatChange(bid, oldSsid, newSsid);
+			if (failed.contains(CHECK_BOOKING)) {
+				throw new IllegalArgumentException("Sorry! Invalid booking ID");
+			}
+			if (failed.contains(CHECK_SEAT)) {
+				throw new IllegalArgumentException("Sorry! Seat " + oldSsid + " is not part of booking " + bid);
+			}
+			if (failed.contains(CHECK_NEW_SEAT)) {//In case user input invalid ID
+				throw new IllegalArgumentException("Sorry! Invalid ID");
+			}
+			if (failed.contains(CHECK_NEW_SEAT_FREE)) {
+				throw new IllegalArgumentException("Sorry! Seat " + newSsid + " is already taken.");
+			}
+			if (failed.contains(CHECK_PRICE)) {
+				throw new IllegalArgumentException("Sorry! The seat you want to switch is different in price.");
+			}
+
+			esql.inTransaction(() -> {
+				ResultTable moved = esql.executeQueryAndReturnTable(MOVE_SEAT, bid, newSsid);
+				if (moved.isEmpty()) {
+					throw new IllegalArgumentException("Sorry! Seat " + newSsid + " is already taken.");
+				}
+				esql.executeUpdate(RELEASE_SEAT, oldSsid, bid);
+				long sid = moved.getLong(0, 0);
+				esql.afterCommit(() -> {
+					seatIndex.markBooked(sid, newSsid);
+					seatIndex.release(sid, oldSsid);
+				});
+				return null;
+			});
+			return null;
+		});
+	}
+
+	/**
+	 * @return true when the booking exists and is paid, checked in one
+	 *         round trip
+	 */
+	public boolean isPaidBooking(long bid) throws SQLException {//6
+		return metrics.timed("isPaidBooking", () -> new Validation(esql).exists(CHECK_BOOKING, PAID_BOOKING, bid).run().isEmpty());
+	}
+
+	/**
+	 * Deletes the payment of a booking, cancels the booking and releases its
+	 * seats, in one transaction.  The seat index frees the seats once it
+	 * commits.
+	 */
+	public void removePayment(long bid) throws SQLException {
+		metrics.timed("removePayment", () -> {
+			esql.inTransaction(() -> {
+				esql.executeUpdate(DELETE_PAYMENT, bid);
+				esql.executeUpdate(CANCEL_BOOKING, bid);
+				ResultTable released = esql.executeQueryAndReturnTable(RELEASE_BOOKING_SEATS, bid);
+				esql.afterCommit(() -> {
+					for (int i = 0; i < released.size(); ++i) {
+						seatIndex.release(released.getLong(i, 0), released.getLong(i, 1));
+					}
+				});
+				return null;
+			});
+			return null;
+		});
+	}
+
+	/**
+	 * Deletes all cancelled bookings, releasing any seats they still hold,
+	 * in chunks.
+	 */
+	public int clearCancelledBookings() throws SQLException {//7
+		return metrics.timed("clearCancelledBookings", () -> reaper.purgeCancelled());
+	}
+
+	/**
+	 * What removeShowsOnDate() deleted.
+	 */
+	public static class ShowRemoval{
+		public final int shows;
+		public final int plays;
+		public final int showSeats;
+		public final int bookings;
+		public final int payments;
+
+		ShowRemoval(int shows, int plays, int showSeats, int bookings, int payments){
+			this.shows = shows;
+			this.plays = plays;
+			this.showSeats = showSeats;
+			this.bookings = bookings;
+			this.payments = payments;
+		}
+
+		public String toString(){
+			return shows + " shows, " + plays + " plays, " + showSeats + " show seats, " + bookings + " bookings and "
+				+ payments + " payments removed";
+		}
+	}//end ShowRemoval
+
+	/**
+	 * Removes every show playing at the named cinema on the given date,
+	 * together with its plays, show seats, bookings and their payments.
+	 *
+	 * The shows are locked and collected once; each table is then cleared by
+	 * one statement over the whole set, in one transaction, so the number of
+	 * round trips does not grow with the number of shows or bookings.
+	 */
+	public ShowRemoval removeShowsOnDate(final String cinemaName, final String showDate) throws SQLException {//8
+		return metrics.timed("removeShowsOnDate", () -> {
+			final long[][] locked = new long[1][];
+			ShowRemoval removed = esql.inTransaction(() -> {
+				long[] sids = esql.executeQueryAndReturnTable(LOCK_SHOWS_ON_DATE, showDate, cinemaName).getLongs(0);
+				locked[0] = sids;
+				if (sids.length == 0) {
+					return new ShowRemoval(0, 0, 0, 0, 0);
+				}
+				//children first: ShowSeats and Plays do not cascade
+				int payments = esql.executeUpdate(DELETE_SHOW_PAYMENTS, sids);
+				int showSeats = esql.executeUpdate(DELETE_SHOW_SEATS, sids);
+				int bookings = esql.executeUpdate(DELETE_SHOW_BOOKINGS, sids);
+				int plays = esql.executeUpdate(DELETE_SHOW_PLAYS, sids);
+				int shows = esql.executeUpdate(DELETE_SHOWS, sids);
+				return new ShowRemoval(shows, plays, showSeats, bookings, payments);
+			});
+			esql.afterCommit(() -> {
+				for (long sid : locked[0]) {
+					seatIndex.invalidate(sid);
+					references.showChanged(sid);
+					showtimes.showRemoved(sid);
+				}
+			});
+			return removed;
+		});
+	}
+
+	/**
+	 * Lists the theaters of the cinema that play the show, from the reference
+	 * cache.
+	 */
+	public int listTheatersPlayingShow(long cid, long sid, RowWriter out) throws SQLException {//9
+		return metrics.timed("listTheatersPlayingShow", () -> {
+			return esql.reading(() -> {
+				out.columns(new String[]{"tname"}, new int[]{Types.VARCHAR});
+				String[] row = new String[1];
+				int count = 0;
+				for (long tid : references.theatersOfShow(sid)) {
+					ReferenceCache.Theater theater = references.theater(tid);
+					if (theater != null && theater.cid == cid) {
+						row[0] = theater.name;
+						out.row(row);
+						++count;
+					}
+				}
+				out.flush();
+				return count;
+			});
+		});
+	}
+
+	public int listShowsStartingOnTimeAndDate(String sdate, String sttime, RowWriter out) throws SQLException {//10
+		return metrics.timed("listShowsStartingOnTimeAndDate", () -> esql.reading(() -> esql.executeQueryAndPrintResult(out, SHOWS_AT, sdate, sttime)));
+	}
+
+	/**
+	 * Lists the movies with "Love" in the title released after 2010, from
+	 * the search index.
+	 */
+	public int listMovieTitlesContainingLoveReleasedAfter2010(RowWriter out) throws SQLException {//11
+		return metrics.timed("listMovieTitlesContainingLoveReleasedAfter2010", () -> {
+			return esql.reading(() -> movieSearch.search("Love", MovieSearchIndex.TITLE, true, "2010-01-01", null,
+				MovieSearchIndex.COLUMNS, out));
+		});
+	}
+
+	/**
+	 * Lists the movies whose title or description contains the text,
+	 * ignoring case.
+	 *
+	 * @see MovieSearchIndex#search
+	 */
+	public int listMoviesMatching(String text, int fields, String releasedAfter, String genre, String[] columns,
+			RowWriter out) throws SQLException {
+		return metrics.timed("listMoviesMatching", () -> esql.reading(() -> movieSearch.search(text, fields, releasedAfter, genre, columns, out)));
+	}
+
+	public int listUsersWithPendingBooking(RowWriter out) throws SQLException {//12
+		return metrics.timed("listUsersWithPendingBooking", () -> esql.reading(() -> esql.executeQueryAndPrintResult(out, USERS_WITH_PENDING)));
+	}
+
+	public int listMovieAndShowInfoAtCinemaInDateRange(String movieTitle, String cinemaName, String date1, String date2,
+			RowWriter out) throws SQLException {//13
+		return metrics.timed("listMovieAndShowInfoAtCinemaInDateRange", () -> esql.reading(() -> showtimes.search(movieTitle, cinemaName, date1, date2, out)));
+	}
+
+	public int listBookingInfoForUser(String email, RowWriter out) throws SQLException {//14
+		return metrics.timed("listBookingInfoForUser", () -> {
+			return esql.reading(() -> {
+				ResultTable rows = esql.executeQueryAndReturnTable(BOOKINGS_OF_USER, email);
+				out.columns(new String[]{"title", "sdate", "sttime", "tname", "sno"},
+					new int[]{Types.VARCHAR, Types.DATE, Types.TIME, Types.VARCHAR, Types.INTEGER});
+				String[] row = new String[5];
+				for (int i = 0; i < rows.size(); ++i) {
+					ReferenceCache.Movie movie = references.movie(rows.getLong(i, 0));
+					ReferenceCache.Theater theater = references.theater(rows.getLong(i, 3));
+					row[0] = movie == null ? null : movie.title;
+					row[1] = rows.getString(i, 1);
+					row[2] = rows.getString(i, 2);
+					row[3] = theater == null ? null : theater.name;
+					row[4] = rows.getString(i, 4);
+					out.row(row);
+				}
+				out.flush();
+				return rows.size();
+			});
+		});
+	}
+}//end TicketOperations
@@ -11,9 +11,9 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -23,19 +23,43 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
 import java.text.SimpleDateFormat;
 import java.math.BigDecimal;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
- * work with PostgreSQL JDBC drivers.
+ * work with PostgreSQL JDBC drivers.  Every call borrows a connection from a
+ * shared pool, so one instance can be used by many threads at once.  The
+ * console menu at the bottom is a single session driving TicketOperations.
  *
  */
 
 public class Ticketmaster{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections, each with its own statement cache
+	private ConnectionPool _pool = null;
+	//read-only snapshot connections for listings, on ticketmaster.readUrl when set; _pool when routing is off
+	private ConnectionPool _readPool = null;
+	//milliseconds a thread reads from the primary after it wrote, 0 to never
+	private final long _readYourWrites = Long.getLong("ticketmaster.readYourWrites.ms", 0L);
+	//until when reading() on this thread stays on the primary
+	private final ThreadLocal<Long> _pinnedUntil = new ThreadLocal<Long>();
+	//connection of the transaction the current thread is running, if any
+	private final ThreadLocal<ConnectionPool.PooledConnection> _transaction = new ThreadLocal<ConnectionPool.PooledConnection>();
+	//actions to run once that transaction commits, see afterCommit()
+	private final ThreadLocal<List<Runnable>> _afterCommit = new ThreadLocal<List<Runnable>>();
+	//actions to run if it rolls back instead, see afterRollback()
+	private final ThreadLocal<List<Runnable>> _afterRollback = new ThreadLocal<List<Runnable>>();
+	//rows fetched per round trip when streaming a result
+	private final int _fetchSize = Integer.getInteger("ticketmaster.fetchSize", 1000);
+	//latency histograms and round trip counters per operation and statement kind
+	private final Metrics _metrics = new Metrics ();
+	//statement counts per fingerprint, and the log of slow statements with their plans
+	private final SlowQueryLog _slowLog = new SlowQueryLog (this::explain);
+	//block-allocating key generators backed by the sequences in create.sql
+	final KeyGenerator bookingKeys = new KeyGenerator(this, "bookings_bid_seq");
+	final KeyGenerator movieKeys = new KeyGenerator(this, "movies_mvid_seq");
+	final KeyGenerator showKeys = new KeyGenerator(this, "shows_sid_seq");
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	
 	public Ticketmaster(String dbname, String dbport, String user, String passwd) throws SQLException {
@@ -45,8 +69,22 @@ public class Ticketmaster{
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// opens the pool with its minimum number of physical connections
+	        this._pool = new ConnectionPool(url, user, passwd);
+	        // reads go to a separate group of read-only connections, on a replica when one is named
+	        if (Boolean.parseBoolean(System.getProperty("ticketmaster.readPool", "true"))){
+	        	String readUrl = System.getProperty("ticketmaster.readUrl", url);
+	        	this._readPool = new ConnectionPool(readUrl, user, passwd,
+	        		Integer.getInteger("ticketmaster.readPool.min", 0),
+	        		Integer.getInteger("ticketmaster.readPool.max", this._pool.getMaxSize()),
+	        		Long.getLong("ticketmaster.pool.idleTimeout", 300000L),
+	        		Long.getLong("ticketmaster.pool.leakThreshold", 60000L), true);
+	        	if (!readUrl.equals(url)){
+	        		System.out.println ("Read URL: " + readUrl + "\n");
+	        	}//end if
+	        }else{
+	        	this._readPool = this._pool;
+	        }//end if
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -59,35 +97,86 @@ public class Ticketmaster{
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		long start = this._slowLog.begin (sql, params);
+		int rowCount = 0;
+		boolean failed = true;
+		ConnectionPool.PooledConnection pc = null;
+		try{
+			pc = acquire ();
+			// fetches the cached statement and binds the parameters
+			PreparedStatement stmt = prepare (pc, sql, params);
+
+			// issues the update instruction
+			rowCount = stmt.executeUpdate ();
+			failed = false;
+			if (pc != this._transaction.get ()){
+				wrote ();
+			}//end if
+			return rowCount;
+		}finally{
+			done (pc);
+			this._metrics.statement (Metrics.JDBC_UPDATE, start, 1, rowCount, failed);
+			this._slowLog.end (sql, params, start, failed);
+		}
 	}//end executeUpdate
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * standard out, in the format named by -Dticketmaster.format.
+	 * 
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		return executeQueryAndPrintResult (RowWriter.console (), query, params);
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and streams the results to the
+	 * given row writer.  Rows are fetched through a cursor, fetchSize rows
+	 * per round trip, so memory use does not depend on the result size.
 	 * 
-	 * @param query the input query string
+	 * @param out the writer the rows are written to, flushed at the end
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders, in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQueryAndPrintResult (RowWriter out, String query, Object... params) throws SQLException {
+		return streaming (() -> {
+			long start = this._slowLog.begin (query, params);
+			int rowCount = 0;
+			boolean failed = true;
+			ConnectionPool.PooledConnection pc = null;
+			try{
+				pc = acquire ();
+				PreparedStatement stmt = prepare (pc, query, params);
+				stmt.setFetchSize (this._fetchSize);
+				rowCount = printResult (out, stmt);
+				failed = false;
+				return rowCount;
+			}finally{
+				done (pc);
+				// one round trip per fetchSize rows, and one for the last, partial fetch
+				this._metrics.statement (Metrics.JDBC_QUERY, start, 1 + rowCount / this._fetchSize, rowCount, failed);
+				this._slowLog.end (query, params, start, failed);
+			}
+		});
+	}
 
+	private int printResult (RowWriter out, PreparedStatement stmt) throws SQLException {
 		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+		ResultSet rs = stmt.executeQuery ();
 
 		/*
 		 *  obtains the metadata object for the returned result set.  The metadata
@@ -97,22 +186,24 @@ public class Ticketmaster{
 		int numCol = rsmd.getColumnCount ();
 		int rowCount = 0;
 		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
+		String[] columns = new String[numCol];
+		int[] types = new int[numCol];
+		for(int i = 1; i <= numCol; i++){
+			columns[i - 1] = rsmd.getColumnName(i);
+			types[i - 1] = rsmd.getColumnType(i);
+		}
+		out.columns(columns, types);
+
+		//iterates through the result set and streams each row to the writer.
+		String[] row = new String[numCol];
 		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
 			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
+				row[i - 1] = rs.getString (i);
+			out.row (row);
 			++rowCount;
 		}//end while
-		stmt.close ();
+		rs.close ();
+		out.flush ();
 		return rowCount;
 	}
 	
@@ -121,16 +212,29 @@ public class Ticketmaster{
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders, in order
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		long start = this._slowLog.begin (query, params);
+		List<List<String>> result = null;
+		ConnectionPool.PooledConnection pc = null;
+		try{
+			pc = acquire ();
+			result = returnResult (prepare (pc, query, params));
+			return result;
+		}finally{
+			done (pc);
+			this._metrics.statement (Metrics.JDBC_QUERY, start, 1, result == null ? 0 : result.size (), result == null);
+			this._slowLog.end (query, params, start, result == null);
+		}
+	}//end executeQueryAndReturnResult
 		
+	private List<List<String>> returnResult (PreparedStatement stmt) throws SQLException { 
 		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
+		ResultSet rs = stmt.executeQuery (); 
 	 
 		/*
 		 * obtains the metadata object for the returned result set.  The metadata 
@@ -138,10 +242,8 @@ public class Ticketmaster{
 		*/ 
 		ResultSetMetaData rsmd = rs.getMetaData (); 
 		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
 	 
 		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
 		List<List<String>> result  = new ArrayList<List<String>>(); 
 		while (rs.next()){
 			List<String> record = new ArrayList<String>(); 
@@ -149,33 +251,450 @@ public class Ticketmaster{
 				record.add(rs.getString (i)); 
 			result.add(record); 
 		}//end while 
-		stmt.close (); 
+		rs.close (); 
 		return result; 
-	}//end executeQueryAndReturnResult
+	}//end returnResult
+	
+	/**
+	 * Maps the current row of a result set to an object.  It must only read
+	 * the current row, and must not call next().
+	 */
+	public interface RowMapper<T>{
+		T map (ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * Consumes the current row of a result set.  It must only read the
+	 * current row, and must not call next().
+	 */
+	public interface RowVisitor{
+		void visit (ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results as a
+	 * table whose numeric columns are held in primitive arrays, see
+	 * ResultTable.
+	 * 
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result, column by column
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ResultTable executeQueryAndReturnTable (String query, Object... params) throws SQLException {
+		long start = this._slowLog.begin (query, params);
+		ResultTable result = null;
+		ConnectionPool.PooledConnection pc = null;
+		try{
+			pc = acquire ();
+			ResultSet rs = prepare (pc, query, params).executeQuery ();
+			result = ResultTable.read (rs);
+			rs.close ();
+			return result;
+		}finally{
+			done (pc);
+			this._metrics.statement (Metrics.JDBC_QUERY, start, 1, result == null ? 0 : result.size (), result == null);
+			this._slowLog.end (query, params, start, result == null);
+		}
+	}//end executeQueryAndReturnTable
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns one object per row,
+	 * made by the mapper straight from the result set.
+	 * 
+	 * @param mapper makes the object of the current row
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders, in order
+	 * @return the objects, in row order
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public <T> List<T> executeQueryAndMap (RowMapper<T> mapper, String query, Object... params) throws SQLException {
+		long start = this._slowLog.begin (query, params);
+		List<T> result = null;
+		ConnectionPool.PooledConnection pc = null;
+		try{
+			pc = acquire ();
+			ResultSet rs = prepare (pc, query, params).executeQuery ();
+			List<T> mapped = new ArrayList<T>();
+			while (rs.next ()){
+				mapped.add (mapper.map (rs));
+			}//end while
+			rs.close ();
+			result = mapped;
+			return result;
+		}finally{
+			done (pc);
+			this._metrics.statement (Metrics.JDBC_QUERY, start, 1, result == null ? 0 : result.size (), result == null);
+			this._slowLog.end (query, params, start, result == null);
+		}
+	}//end executeQueryAndMap
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and hands every row to the
+	 * visitor, without keeping any.  Like executeQueryAndPrintResult, rows
+	 * are fetched through a cursor, fetchSize rows per round trip.
+	 * 
+	 * @param visitor consumes the current row
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows visited
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndVisit (RowVisitor visitor, String query, Object... params) throws SQLException {
+		return streaming (() -> {
+			long start = this._slowLog.begin (query, params);
+			int rowCount = 0;
+			boolean failed = true;
+			ConnectionPool.PooledConnection pc = null;
+			try{
+				pc = acquire ();
+				PreparedStatement stmt = prepare (pc, query, params);
+				stmt.setFetchSize (this._fetchSize);
+				ResultSet rs = stmt.executeQuery ();
+				while (rs.next ()){
+					visitor.visit (rs);
+					++rowCount;
+				}//end while
+				rs.close ();
+				failed = false;
+				return rowCount;
+			}finally{
+				done (pc);
+				this._metrics.statement (Metrics.JDBC_QUERY, start, 1 + rowCount / this._fetchSize, rowCount, failed);
+				this._slowLog.end (query, params, start, failed);
+			}
+		});
+	}//end executeQueryAndVisit
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders, in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQuery (String query, Object... params) throws SQLException {
+		long start = this._slowLog.begin (query, params);
+		int rowCount = 0;
+		boolean failed = true;
+		ConnectionPool.PooledConnection pc = null;
+		try{
+			pc = acquire ();
+			//issues the query instruction
+			ResultSet rs = prepare (pc, query, params).executeQuery ();
+
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			rs.close ();
+			failed = false;
+			return rowCount;
+		}finally{
+			done (pc);
+			this._metrics.statement (Metrics.JDBC_QUERY, start, 1, rowCount, failed);
+			this._slowLog.end (query, params, start, failed);
+		}
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to fetch a prepared statement for the given SQL text from the
+	 * statement cache of a connection and bind the parameters to it.
+	 * 
+	 * @param pc the borrowed connection the statement runs on
+	 * @param sql the SQL string with ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the prepared statement, ready to execute
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	private PreparedStatement prepare (ConnectionPool.PooledConnection pc, String sql, Object[] params) throws SQLException {
+		return bind (pc.getConnection (), pc.getStatements ().prepare (sql), params);
+	}
 
-		int rowCount = 0;
+	/**
+	 * Method to bind parameters to a statement the way every statement of
+	 * this class is bound: a long[] becomes an int8 array for "= ANY(?)",
+	 * anything else is set as it is.  Shared with PlanCheck, so the plans it
+	 * checks are those of the statements as they run.
+	 * 
+	 * @param conn the connection the statement was prepared on
+	 * @param stmt the statement
+	 * @param params the values bound to the placeholders, in order
+	 * @return the statement, ready to execute
+	 * @throws java.sql.SQLException when a value could not be bound
+	 */
+	static PreparedStatement bind (Connection conn, PreparedStatement stmt, Object[] params) throws SQLException {
+		for (int i = 0; i < params.length; ++i){
+			if (params[i] instanceof long[]){
+				long[] ids = (long[]) params[i];
+				Long[] boxed = new Long[ids.length];
+				for (int k = 0; k < ids.length; ++k){
+					boxed[k] = ids[k];
+				}//end for
+				stmt.setArray (i + 1, conn.createArrayOf ("int8", boxed));
+			}else{
+				stmt.setObject (i + 1, params[i]);
+			}//end if
+		}//end for
+		return stmt;
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to fetch the plan of a statement, for the slow query log.  The
+	 * statement is explained without ANALYZE, so it is not run again, on a
+	 * connection of its own outside any transaction.
+	 * 
+	 * @param sql the SQL string with ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the lines of the plan
+	 * @throws java.sql.SQLException when the statement could not be explained
+	 */
+	private List<String> explain (String sql, Object[] params) throws SQLException {
+		List<String> plan = new ArrayList<String>();
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try (PreparedStatement stmt = pc.getConnection ().prepareStatement ("EXPLAIN " + sql)){
+			ResultSet rs = bind (pc.getConnection (), stmt, params).executeQuery ();
+			while (rs.next ()){
+				plan.add (rs.getString (1));
+			}//end while
+			rs.close ();
+		}finally{
+			this._pool.release (pc);
+		}
+		return plan;
+	}
+
+	/**
+	 * A unit of work run inside a transaction by inTransaction().
+	 */
+	public interface Work<T>{
+		T run () throws SQLException;
+	}
+
+	/**
+	 * Method to run several statements as one transaction.  Every execute*
+	 * call made by the work on this thread uses the same connection with
+	 * autocommit off.  The transaction commits when the work returns and
+	 * rolls back when it throws.  Calls nested inside a running transaction
+	 * join it.
+	 * 
+	 * @param work the statements to run
+	 * @return the value returned by the work
+	 * @throws java.sql.SQLException when a statement or the commit failed
+	 */
+	public <T> T inTransaction (Work<T> work) throws SQLException {
+		if (this._transaction.get () != null){
+			return work.run ();
+		}//end if
+		T result = transaction (this._pool, work);
+		wrote ();
+		return result;
+	}//end inTransaction
+
+	/**
+	 * Method to run read-only work, such as a listing, on the read pool so
+	 * that it does not take primary connections from bookings.  Every
+	 * execute* call made by the work on this thread shares one read-only,
+	 * repeatable read transaction, so the work sees a single snapshot of
+	 * the database; a write fails.  Work inside a running transaction joins
+	 * it, and work on a thread that wrote within the last
+	 * ticketmaster.readYourWrites.ms milliseconds runs on the primary, so
+	 * it sees that write even when the read pool is a lagging replica.
+	 * 
+	 * @param work the statements to run
+	 * @return the value returned by the work
+	 * @throws java.sql.SQLException when a statement failed
+	 */
+	public <T> T reading (Work<T> work) throws SQLException {
+		if (this._transaction.get () != null || this._readPool == this._pool || pinned ()){
+			return work.run ();
+		}//end if
+		return transaction (this._readPool, work);
+	}//end reading
+
+	/**
+	 * Method to update in-memory state only once the database has it.  With
+	 * no transaction running on this thread the action runs right away;
+	 * inside one it runs after the outermost transaction commits, and it is
+	 * dropped when the transaction rolls back, so a cache never holds rows
+	 * that were never committed.
+	 * 
+	 * @param action the update of in-memory state
+	 */
+	public void afterCommit (Runnable action){
+		List<Runnable> actions = this._afterCommit.get ();
+		if (actions == null){
+			action.run ();
+			return;
+		}//end if
+		actions.add (action);
+	}//end afterCommit
+
+	/**
+	 * Method to undo in-memory state that had to change before the commit,
+	 * such as seats claimed in the SeatIndex.  The action runs if the
+	 * outermost transaction running on this thread rolls back, or its commit
+	 * fails; with no transaction running there is nothing to undo and it is
+	 * dropped.
+	 * 
+	 * @param action the undo of in-memory state
+	 */
+	public void afterRollback (Runnable action){
+		List<Runnable> actions = this._afterRollback.get ();
+		if (actions != null){
+			actions.add (action);
+		}//end if
+	}//end afterRollback
+
+	/**
+	 * Runs a streamed query in the running transaction, or else in a
+	 * read-only one on the read pool (the primary while this thread is
+	 * pinned): the driver only fetches through a cursor with autocommit off.
+	 */
+	private <T> T streaming (Work<T> work) throws SQLException {
+		if (this._transaction.get () != null){
+			return work.run ();
+		}//end if
+		return transaction (pinned () ? this._pool : this._readPool, work);
+	}
+
+	private <T> T transaction (ConnectionPool pool, Work<T> work) throws SQLException {
+		ConnectionPool.PooledConnection pc = pool.borrow ();
+		List<Runnable> actions = new ArrayList<Runnable> ();
+		List<Runnable> undo = new ArrayList<Runnable> ();
+		this._transaction.set (pc);
+		this._afterCommit.set (actions);
+		this._afterRollback.set (undo);
+		T result;
+		boolean committed = false;
+		try{
+			pc.getConnection ().setAutoCommit (false);
+			result = work.run ();
+			long start = System.nanoTime ();
+			boolean failed = true;
+			try{
+				pc.getConnection ().commit ();
+				failed = false;
+				committed = true;
+			}finally{
+				this._metrics.statement (Metrics.JDBC_COMMIT, start, 1, 0, failed);
+			}
+		}catch (SQLException | RuntimeException e){
+			long start = System.nanoTime ();
+			try{
+				pc.getConnection ().rollback ();
+			}catch (SQLException ignored){
+				// the original failure is reported.
+			}
+			this._metrics.statement (Metrics.JDBC_ROLLBACK, start, 1, 0, false);
+			throw e;
+		}finally{
+			this._transaction.remove ();
+			this._afterCommit.remove ();
+			this._afterRollback.remove ();
+			pool.release (pc);
+			if (!committed){
+				for (Runnable action : undo){
+					action.run ();
+				}//end for
+			}//end if
+		}
+		//outside the transaction, so an action that queries gets a connection of its own
+		for (Runnable action : actions){
+			action.run ();
+		}//end for
+		return result;
+	}//end transaction
+
+	/**
+	 * Pins reading() on this thread to the primary after a committed write.
+	 */
+	private void wrote (){
+		if (this._readYourWrites > 0){
+			this._pinnedUntil.set (System.currentTimeMillis () + this._readYourWrites);
+		}//end if
+	}
+
+	private boolean pinned (){
+		Long until = this._pinnedUntil.get ();
+		if (until == null){
+			return false;
+		}//end if
+		if (System.currentTimeMillis () < until){
+			return true;
+		}//end if
+		this._pinnedUntil.remove ();
+		return false;
+	}
+
+	/**
+	 * @return the connection of the running transaction, or a freshly
+	 *         borrowed one for a single statement
+	 */
+	private ConnectionPool.PooledConnection acquire () throws SQLException {
+		ConnectionPool.PooledConnection pc = this._transaction.get ();
+		return pc != null ? pc : this._pool.borrow ();
+	}
+
+	/**
+	 * Gives back a connection taken by acquire(), unless it belongs to the
+	 * running transaction or none was taken because acquire() failed.
+	 */
+	private void done (ConnectionPool.PooledConnection pc){
+		if (pc != null && pc != this._transaction.get ()){
+			this._pool.release (pc);
+		}//end if
+	}
+
+	/**
+	 * @return the connection pool, whose toString() reports the pool and
+	 *         statement cache counters
+	 */
+	public ConnectionPool getPool(){
+		return this._pool;
+	}
+
+	/**
+	 * @return the pool reading() uses, the primary pool when read routing
+	 *         is off (-Dticketmaster.readPool=false)
+	 */
+	public ConnectionPool getReadPool(){
+		return this._readPool;
+	}
+
+	/**
+	 * @return the latency histograms and round trip counters of this
+	 *         process
+	 */
+	public Metrics getMetrics(){
+		return this._metrics;
+	}
+
+	/**
+	 * @return the statement counts per fingerprint and the slow query log
+	 */
+	public SlowQueryLog getSlowQueryLog(){
+		return this._slowLog;
+	}
+
+	/**
+	 * Parses a user-entered ID.  Input that is not a number maps to -1, which
+	 * matches no row, so callers can treat it like an unknown ID.
+	 * 
+	 * @param input the text typed by the user
+	 * @return the ID, or -1 when the input is not a number
+	 */
+	public static long parseId(String input){
+		try{
+			return Long.parseLong(input.trim());
+		}catch(Exception e){
+			return -1;
+		}
 	}
 	
 	/**
@@ -189,24 +708,39 @@ public class Ticketmaster{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
+		List<List<String>> rs = executeQueryAndReturnResult ("Select currval(CAST(? AS regclass))", sequence);
+		if (rs.size() > 0) return Integer.parseInt(rs.get(0).get(0));
+		return -1;
+	}
+
+	/**
+	 * Method to advance a sequence. This method issues the query to the DBMS
+	 * and returns the next value of the sequence. For the key sequences this
+	 * value is the first key of a freshly reserved block.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return next value of a sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long getNextSeqVal(String sequence) throws SQLException {
+		List<List<String>> rs = executeQueryAndReturnResult ("Select nextval(CAST(? AS regclass))", sequence);
+		if (rs.size() > 0) return Long.parseLong(rs.get(0).get(0));
 		return -1;
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close the physical connections if they are open.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		this._metrics.close ();
+		// the log may still explain queued statements on the pool
+		this._slowLog.close ();
+		if (this._readPool != null && this._readPool != this._pool){
+			this._readPool.close ();
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -223,6 +757,7 @@ public class Ticketmaster{
 		}//end if
 		
 		Ticketmaster esql = null;
+		TicketOperations ops = null;
 		
 		try{
 			System.out.println("(1)");
@@ -242,6 +777,7 @@ public class Ticketmaster{
 			String user = args[2];
 			
 			esql = new Ticketmaster (dbname, dbport, user, "");
+			ops = new TicketOperations (esql);
 			
 			boolean keepon = true;
 			while(keepon){
@@ -267,20 +803,20 @@ public class Ticketmaster{
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
 				switch (readChoice()){
-					case 1: AddUser(esql); break;
-					case 2: AddBooking(esql); break;
-					case 3: AddMovieShowingToTheater(esql); break;
-					case 4: CancelPendingBookings(esql); break;
-					case 5: ChangeSeatsForBooking(esql); break;
-					case 6: RemovePayment(esql); break;
-					case 7: ClearCancelledBookings(esql); break;
-					case 8: RemoveShowsOnDate(esql); break;
-					case 9: ListTheatersPlayingShow(esql); break;
-					case 10: ListShowsStartingOnTimeAndDate(esql); break;
-					case 11: ListMovieTitlesContainingLoveReleasedAfter2010(esql); break;
-					case 12: ListUsersWithPendingBooking(esql); break;
-					case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
-					case 14: ListBookingInfoForUser(esql); break;
+					case 1: AddUser(ops); break;
+					case 2: AddBooking(ops); break;
+					case 3: AddMovieShowingToTheater(ops); break;
+					case 4: CancelPendingBookings(ops); break;
+					case 5: ChangeSeatsForBooking(ops); break;
+					case 6: RemovePayment(ops); break;
+					case 7: ClearCancelledBookings(ops); break;
+					case 8: RemoveShowsOnDate(ops); break;
+					case 9: ListTheatersPlayingShow(ops); break;
+					case 10: ListShowsStartingOnTimeAndDate(ops); break;
+					case 11: ListMovieTitlesContainingLoveReleasedAfter2010(ops); break;
+					case 12: ListUsersWithPendingBooking(ops); break;
+					case 13: ListMovieAndShowInfoAtCinemaInDateRange(ops); break;
+					case 14: ListBookingInfoForUser(ops); break;
 					case 15: keepon = false; break;
 				}
 			}
@@ -289,6 +825,15 @@ public class Ticketmaster{
 		}finally{
 			try{
 				if(esql != null) {
+					System.out.println(esql.getPool());
+					if (esql.getReadPool() != esql.getPool()) {
+						System.out.println(esql.getReadPool());
+					}//end if
+					if (ops != null) {
+						System.out.println(ops.getReferences());
+					}//end if
+					System.out.print(esql.getMetrics());
+					System.out.print(esql.getSlowQueryLog());
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -315,7 +860,7 @@ public class Ticketmaster{
 		return input;
 	}//end readChoice
 	
-	public static void AddUser(Ticketmaster esql){//1
+	public static void AddUser(TicketOperations ops){//1
 	
 		try {
 			System.out.print("Please enter Email: ");
@@ -333,8 +878,7 @@ public class Ticketmaster{
 			System.out.print("Enter Password: ");
 			String pwd = in.readLine();
 
-			String query = String.format("INSERT INTO Users (email, lname, fname, phone, pwd) VALUES ('%s' ,'%s', '%s', %.2f, '%s')", email, lname, fname, phone, pwd);
-			esql.executeUpdate(query);
+			ops.addUser(email, lname, fname, phone, pwd);
 			System.out.print("Account Created Successfully\n");
 			System.out.print("========================================================\n");
 		}catch(Exception err) {
@@ -343,25 +887,15 @@ public class Ticketmaster{
 
 	}
 	
-	public static void AddBooking(Ticketmaster esql){//2
+	public static void AddBooking(TicketOperations ops){//2
 		try{
-			List <List<String>> data = esql.executeQueryAndReturnResult("Select bid from Bookings");
-
 			//CREATE BOOKING ID
-			int bid = data.size() + 1;
-			System.out.print("Booking ID: " + Integer.toString(bid) + "\n" );
+			long bid = ops.newBookingId();
+			System.out.print("Booking ID: " + Long.toString(bid) + "\n" );
 
 			//ENTERING USER EMAIL ====================================================================================================================================
 			System.out.print("Enter User Email: ");
 			String email = in.readLine();
-			
-			int row = (esql.executeQueryAndReturnResult("Select email from Users where email = \'" + email + "\'")).size();
-			
-			while(row == 0) {
-				System.out.print("Invalid email, Enter User Email: ");
-				email = in.readLine();
-				row = (esql.executeQueryAndReturnResult("Select email from Users where email = \'" + email + "\'")).size();
-			}
 
 			//ENTERING CINEMA and THEATER ID ==========================================================================================================================
 			System.out.print("Enter Cinema ID: ");
@@ -370,20 +904,6 @@ public class Ticketmaster{
 			System.out.print("Enter Theater ID: ");
 			String tid = in.readLine();
 
-			row = (esql.executeQueryAndReturnResult("Select tid from Theaters where tid = \'" + tid + "\' AND cid = \'" + cid + "\'" )).size();
-
-			while(row == 0) {
-				System.out.print("Invalid Cinema ID or Theater ID. \n");
-
-				System.out.print("Enter Cinema ID: ");
-				cid = in.readLine();
-
-				System.out.print("Enter Theater ID: ");
-				tid = in.readLine();
-
-				row = (esql.executeQueryAndReturnResult("Select tid from Theaters where tid = \'" + tid + "\' AND cid = \'" + cid + "\'" )).size();
-			}
-
 			//ENTERTING MOVIE ID AND SHOW ID =========================================================================================================================
 			System.out.print("Enter show ID: ");
 			String sid = in.readLine();
@@ -391,23 +911,37 @@ public class Ticketmaster{
 			System.out.print("Enter Movie ID: ");
 			String mvid = in.readLine();
 
-			row = (esql.executeQueryAndReturnResult("Select sid from Shows where sid = \'" + sid + "\' AND mvid = \'" + mvid + "\'" )).size();
+			//VALIDATING all inputs in one round trip, asking again only for the invalid ones ===========================================================================
+			List<String> failed = ops.validateBooking(email, parseId(cid), parseId(tid), parseId(sid), parseId(mvid));
+			while(failed.contains(TicketOperations.CHECK_EMAIL) || failed.contains(TicketOperations.CHECK_THEATER)
+					|| failed.contains(TicketOperations.CHECK_SHOW)) {
+				if(failed.contains(TicketOperations.CHECK_EMAIL)) {
+					System.out.print("Invalid email, Enter User Email: ");
+					email = in.readLine();
+				}
+				if(failed.contains(TicketOperations.CHECK_THEATER)) {
+					System.out.print("Invalid Cinema ID or Theater ID. \n");
 
-			while(row == 0) {
-				System.out.print("Invalid Movie ID or Movie ID. \n");
+					System.out.print("Enter Cinema ID: ");
+					cid = in.readLine();
 
-				System.out.print("Enter show ID: ");
-				sid = in.readLine();
+					System.out.print("Enter Theater ID: ");
+					tid = in.readLine();
+				}
+				if(failed.contains(TicketOperations.CHECK_SHOW)) {
+					System.out.print("Invalid Movie ID or Movie ID. \n");
 
-				System.out.print("Enter Movie ID: ");
-				mvid = in.readLine();
+					System.out.print("Enter show ID: ");
+					sid = in.readLine();
 
-				row = (esql.executeQueryAndReturnResult("Select sid from Shows where sid = \'" + sid + "\' AND mvid = \'" + mvid + "\'" )).size();
+					System.out.print("Enter Movie ID: ");
+					mvid = in.readLine();
+				}
+				failed = ops.validateBooking(email, parseId(cid), parseId(tid), parseId(sid), parseId(mvid));
 			}
 
 			//Checks if the theater plays that show =====================================================================================================================
-			row = (esql.executeQueryAndReturnResult("Select sid from Plays where sid = \'" + sid + "\' AND tid = \'" + tid + "\'" )).size();
-			if(row == 0) {
+			if(failed.contains(TicketOperations.CHECK_PLAYS)) {
 				System.out.print("Show ID and Theater ID does not match. Please try again. \n");
 				System.out.print("========================================================\n");
 				return;
@@ -427,8 +961,6 @@ public class Ticketmaster{
 				}
 			}
 
-			int count = 1;
-			
 			//Entering Booking status ===================================================================================================================================
 			System.out.print("Enter Booking status (Pending/Paid): ");
 			String status = in.readLine();
@@ -441,28 +973,47 @@ public class Ticketmaster{
 			}
 			*/
 
-			//CREATING BOOKING ==========================================================================================================================================
-			String time = new SimpleDateFormat("MM/dd/YYYY HH:mm").format(new Date());
-			String temp = String.format("Insert into Bookings VALUES (%d, '%s', '%s', %d, '%s', '%s')", bid, status, time, seats, sid, email);
-			esql.executeUpdate(temp);
-
-			//ENTERING SHOW SEAT ID =====================================================================================================================================
-			while(count <= seats) {
-				System.out.print("Enter Show Seat ID for Seat #" + count + ": ");
-				String ssid = in.readLine();
-
-				row = (esql.executeQueryAndReturnResult("Select ssid from ShowSeats where ssid = " + ssid + " AND sid = " + sid + " AND bid IS NULL")).size();
+			//BEST AVAILABLE: the lowest-numbered adjacent free seats, held at once ========================================================================================
+			System.out.print("Best available adjacent seats (y/n)? ");
+			boolean best = in.readLine().trim().equalsIgnoreCase("y");
+			long hold;
+			long show = parseId(sid);
+			if(best) {
+				System.out.print("Seat type (Regular/Handicap, Enter for any): ");
+				hold = ops.holdBestSeats(show, seats, in.readLine().trim());
+			}else {
+				hold = ops.holdSeats(show);
+			}
+			Timestamp created;
+			try{
+				if(best) {
+					long[] held = ops.getHolds().seats(hold);
+					long[] ssids = Arrays.copyOfRange(held, 1, held.length);
+					int[] snos = ops.getSeatFinder().seatNumbers(show, ssids);
+					for(int i = 0; i < ssids.length; i++) {
+						System.out.print("Holding Show Seat ID " + ssids[i] + " (seat number " + snos[i] + ")\n");
+					}
+				}
 
-				while(row == 0) {
-					System.out.print("Invalid Show Seat ID.\n");
-					row = (esql.executeQueryAndReturnResult("Select ssid from ShowSeats where ssid = " + ssid + " AND sid = " + sid  + " AND bid IS NULL")).size();
+				//ENTERING SHOW SEAT ID, each seat held as it is entered so no other session can take it ===================================================================
+				for(int count = 1; !best && count <= seats; count++) {
 					System.out.print("Enter Show Seat ID for Seat #" + count + ": ");
-					ssid = in.readLine();
+					long ssid = parseId(in.readLine());
+
+					while(!ops.addToHold(hold, ssid)) {
+						System.out.print("Invalid Show Seat ID.\n");
+						System.out.print("Enter Show Seat ID for Seat #" + count + ": ");
+						ssid = parseId(in.readLine());
+					}
 				}
-				esql.executeUpdate("Update ShowSeats SET bid = " + bid + " WHERE ssid = " + ssid + " AND sid = " + sid);
 
-				count++;
+				//CREATING BOOKING from the held seats ======================================================================================================================
+				created = ops.confirmHold(hold, bid, status, email);
+			}finally{
+				//frees the seats unless the booking took them
+				ops.releaseHold(hold);
 			}
+			String time = new SimpleDateFormat("MM/dd/yyyy HH:mm").format(created);
 
 			System.out.print("Booking created at time: " + time + "\n");
 			System.out.print("========================================================\n");
@@ -474,13 +1025,10 @@ public class Ticketmaster{
 		}
 	}
 	
-	public static void AddMovieShowingToTheater(Ticketmaster esql){//3
+	public static void AddMovieShowingToTheater(TicketOperations ops){//3
 		try{
-			String movieTitle, releaseDate, country, description, lang, genre, sdate, sttime, edtime, q1, q2, q3;
-			int movieId, sid, tid, duration;
-
-			movieId = (esql.executeQueryAndReturnResult("Select mvid from movies")).size()+1;
-			sid = (esql.executeQueryAndReturnResult("Select sid from shows")).size()+1;
+			String movieTitle, releaseDate, country, description, lang, genre, sdate, sttime, edtime;
+			int tid, duration;
 
 			System.out.println("The Below Shows Movie Info");
 			System.out.print("Movie Title is: ");
@@ -534,32 +1082,21 @@ public class Ticketmaster{
 			System.out.println("");
 
 			int tidMIN = 0;
-			int tidMAX = (esql.executeQueryAndReturnResult("Select tid from theaters")).size()+1;
+			int tidMAX = ops.theaterCount()+1;
 
 			System.out.print("Theater ID (Between " + tidMIN + " and " + tidMAX + ") : ");
 			tid = Integer.parseInt(in.readLine());
 			System.out.println("");
 
-			q1 = "INSERT INTO Movies (mvid, title, rdate, country, description, duration, lang, genre) values (" 
-			+ movieId + ", '" + movieTitle + "', '" + releaseDate + "', '" + country + "', '" + description + "', " + 
-			duration + ", '" + lang + "', '" + genre + "' );";
-			esql.executeUpdate(q1);
-
-			q2 = "INSERT INTO Shows (sid, mvid, sdate, sttime, edtime) values (" + sid + ", " + movieId + ", '" + 
-			sdate + "', '" + sttime + "', '" + edtime + "');";
-			esql.executeUpdate(q2);
-
-			q3 = "INSERT INTO Plays (sid, tid) values (" + sid + ", " + tid + ");";
-			esql.executeUpdate(q3);
+			ops.addMovieShowing(movieTitle, releaseDate, country, description, duration, lang, genre, sdate, sttime, edtime, tid);
 		}catch (Exception err) {
 			System.err.println(err.getMessage());
 		}
 	}
 	
-	public static void CancelPendingBookings(Ticketmaster esql){//4
+	public static void CancelPendingBookings(TicketOperations ops){//4
 		try {
-			//esql.executeUpdate("Update ShowSeats SET bid = NULL where bid = (select bid from bookings where status = 'Pending')");
-			esql.executeUpdate("Update Bookings SET status = 'Cancelled' where status = 'Pending'");
+			ops.cancelPendingBookings();
 			System.out.print("Cancelled all pending bookings\n");
 			System.out.print("========================================================\n");
 		}catch(Exception err) {
@@ -567,13 +1104,12 @@ public class Ticketmaster{
 		}
 	}
 	
-	public static void ChangeSeatsForBooking(Ticketmaster esql) throws Exception{//5
+	public static void ChangeSeatsForBooking(TicketOperations ops) throws Exception{//5
 		try {
 
 			String bookingID;
 			String seatID;
 			String newSeatID;
-			String sqlFormat;
  
 			System.out.print("Please Type in the bookingID of for seat change: ");
 			bookingID = in.readLine();//read the bookingID input
@@ -583,27 +1119,7 @@ public class Ticketmaster{
 			System.out.print("What is the ID of the new seat that you want to change: ");
 			newSeatID = in.readLine();
  
-			List<String> oldSeat = esql.executeQueryAndReturnResult(String.format("SELECT * FROM ShowSeats WHERE ssid = '%s';", seatID)).get(0);
-			List<String> newSeat = esql.executeQueryAndReturnResult(String.format("SELECT * FROM ShowSeats WHERE ssid = '%s';", newSeatID)).get(0);
- 
-			int oldSeatPrice = Integer.parseInt(oldSeat.get(4));
-			int newSeatPrice = Integer.parseInt(newSeat.get(4));
-			String newSeatBid = newSeat.get(3);
- 
-			if (newSeatBid == null) {
-				if (newSeatPrice == oldSeatPrice) {
-				 sqlFormat = String.format("UPDATE ShowSeats SET bid = NULL WHERE ssid = '%s';", seatID);
-					esql.executeUpdate(sqlFormat);
-					sqlFormat = String.format("UPDATE ShowSeats SET bid = '%s' WHERE ssid = '%s';", bookingID, newSeatID);
-					esql.executeUpdate(sqlFormat);
-				} else {
-					System.out.println("Sorry! The seat you want to switch is different in price. \n");
-					return;
-				}
-			} else {//In case user input invalid ID
-				System.out.println("Sorry! Invalid ID \n");
-				return;
-			}
+			ops.changeSeat(parseId(bookingID), parseId(seatID), parseId(newSeatID));
  
 			System.out.println("Seat Changed!\n");// success signal
 		} catch (Exception e) {
@@ -611,22 +1127,18 @@ public class Ticketmaster{
 		}
 	}
 	
-	public static void RemovePayment(Ticketmaster esql){//6
+	public static void RemovePayment(TicketOperations ops){//6
 		try{
 			System.out.print("Please Enter Booking ID that you would like to cancel: ");
 			String bid = in.readLine();
 
-			int row = esql.executeQueryAndReturnResult("Select bid from bookings where status = 'Paid' AND bid = " + bid).size();
-			while(row == 0) {
+			while(!ops.isPaidBooking(parseId(bid))) {
 				System.out.print("Invalid Booking ID.\n");
 				System.out.print("Please Enter Booking ID that you would like to cancel: ");
 				bid = in.readLine();
-				row = esql.executeQueryAndReturnResult("Select bid from bookings where status = 'Paid' AND bid = " + bid).size();
 			}
 
-			esql.executeUpdate("Delete From Payments where bid = " + bid);
-			esql.executeUpdate("Update Bookings SET status = 'Cancelled' where bid = " + bid);
-			esql.executeUpdate("Update ShowSeats SET bid = NULL where bid = " + bid);
+			ops.removePayment(parseId(bid));
 			System.out.print("Removed Payment\n");
 			System.out.print("========================================================\n");
 
@@ -636,15 +1148,15 @@ public class Ticketmaster{
 
 	}
 	
-	public static void ClearCancelledBookings(Ticketmaster esql){//7
+	public static void ClearCancelledBookings(TicketOperations ops){//7
 		try {
-			esql.executeUpdate("Delete From Bookings where status = 'Cancelled'");
+			ops.clearCancelledBookings();
 		}catch(Exception err) {
 			System.err.println(err.getMessage());
 		}
 	}
 	
-	public static void RemoveShowsOnDate(Ticketmaster esql){//8
+	public static void RemoveShowsOnDate(TicketOperations ops){//8
 		try {
 			String cinemaName;
 			String showDate;
@@ -655,33 +1167,22 @@ public class Ticketmaster{
 			System.out.print("What is the date that you want to cancel?\n");
 			showDate = in.readLine();
 			
-			// TODO:
-			// "remove" bookings using remove payment above
-			List<List<String>> bids = esql.executeQueryAndReturnResult(String.format("SELECT B.bid FROM Bookings B, Shows S, Plays P, Theaters T, Cinemas C WHERE C.cname = '%s' AND C.cid = T.cid AND T.tid = P.tid AND P.sid = S.sid AND S.sdate = CAST('%s' AS DATE) AND B.sid = S.sid;", cinemaName, showDate));
-			for(List<String> bid : bids) {
-				esql.executeUpdate(String.format("UPDATE Bookings SET status = 'Cancelled' WHERE bid = '%s';", bid.get(0)));
-				esql.executeUpdate(String.format("DELETE FROM Payments WHERE bid = '%s';", bid.get(0)));
-			}
+			TicketOperations.ShowRemoval removed = ops.removeShowsOnDate(cinemaName, showDate);
 
-			List<List<String>> sids = esql.executeQueryAndReturnResult(String.format("SELECT S.sid FROM Shows S, Plays P, Theaters T, Cinemas C WHERE C.cname = '%s' AND C.cid = T.cid AND T.tid = P.tid AND P.sid = S.sid AND S.sdate = CAST('%s' AS DATE);", cinemaName, showDate));
-			for(List<String> sid : sids) {
-				esql.executeUpdate(String.format("DELETE FROM Shows WHERE sid = '%s';", sid.get(0)));
-			}
-
-			System.out.println("Successfully removed all shows on that date!\n");
+			System.out.println("Successfully removed all shows on that date: " + removed + "\n");
 		} catch (Exception e) {
 			System.out.println(e.getMessage() + "\n");
 		}	
 	}
 	
-	public static void ListTheatersPlayingShow(Ticketmaster esql){//9
+	public static void ListTheatersPlayingShow(TicketOperations ops){//9
 		try {
 			System.out.print("Enter Cinema ID: ");
 			String cid = in.readLine();
 			System.out.print("Enter Show ID: ");
 			String sid = in.readLine();
 
-			esql.executeQueryAndPrintResult("Select tname from Theaters where tid = (Select tid from Plays where sid = " + sid + " AND tid = (select tid from Cinemas where cid = " + cid + "))");
+			ops.listTheatersPlayingShow(parseId(cid), parseId(sid), RowWriter.console());
 
 
 		}catch(Exception err) {
@@ -690,14 +1191,14 @@ public class Ticketmaster{
 		
 	}
 	
-	public static void ListShowsStartingOnTimeAndDate(Ticketmaster esql){//10
+	public static void ListShowsStartingOnTimeAndDate(TicketOperations ops){//10
 		try{
 			System.out.print("Enter Date (YYYY-MM-DD): ");
 			String sdate = in.readLine();
 			System.out.print("Enter Start Time (HH:MM:SS): ");
 			String sttime = in.readLine();
 
-			esql.executeQueryAndPrintResult("Select * from Shows where sdate = '" + sdate + "' AND sttime = '" + sttime + "\'");
+			ops.listShowsStartingOnTimeAndDate(sdate, sttime, RowWriter.console());
 
 
 
@@ -707,25 +1208,25 @@ public class Ticketmaster{
 		
 	}
 
-	public static void ListMovieTitlesContainingLoveReleasedAfter2010(Ticketmaster esql){//11
+	public static void ListMovieTitlesContainingLoveReleasedAfter2010(TicketOperations ops){//11
 		try {
-			esql.executeQueryAndPrintResult("Select * from Movies where title LIKE '%Love%' AND rdate > '2010-01-01'");
+			ops.listMovieTitlesContainingLoveReleasedAfter2010(RowWriter.console());
 		}catch(Exception err) {
 			System.err.println(err.getMessage());
 		}
 		
 	}
 
-	public static void ListUsersWithPendingBooking(Ticketmaster esql){//12
+	public static void ListUsersWithPendingBooking(TicketOperations ops){//12
 		try {
-			esql.executeQueryAndPrintResult("Select fname,lname,email from Users where email in (select distinct email from bookings where status = 'Pending');");
+			ops.listUsersWithPendingBooking(RowWriter.console());
 		}catch(Exception err) {
 			System.err.println(err.getMessage());
 		}
 		
 	}
 
-	public static void ListMovieAndShowInfoAtCinemaInDateRange(Ticketmaster esql){//13
+	public static void ListMovieAndShowInfoAtCinemaInDateRange(TicketOperations ops){//13
 		//
 		try{
 			String movieTitle, theaterName, date1, date2;
@@ -742,21 +1243,15 @@ public class Ticketmaster{
 			System.out.println("End Date(MM/DD/YYYY): ");
 			date2 = in.readLine();
 
-			String q = "select m1.title, m1.duration, s1.sdate, s1.sttime from movies m1, shows s1 where m1.title = '"
-			+ movieTitle + "' and sdate in (select s2.sdate from shows s2 where s2.sdate between '" + date1 + "' and'" 
-			+ date2 + "' and s2.mvid = (select m2.mvid from movies m2 where m2.title = '" + movieTitle + "')) and" 
-			+ " sid in (select p1.sid from plays p1 where p1.tid in (select t1.tid from theaters t1 where " + 
-			"t1.cid in (select c1.cid from cinemas c1 where c1.cname = '" + theaterName + "')));";
-
 			System.out.println("");
-			int result = esql.executeQueryAndPrintResult(q);
+			int result = ops.listMovieAndShowInfoAtCinemaInDateRange(movieTitle, theaterName, date1, date2, RowWriter.console());
 			System.out.println("\n");
 		} catch (Exception e) {
 			System.out.println(e.getMessage() + "\n");
 		}
 	}
 
-	public static void ListBookingInfoForUser(Ticketmaster esql){//14
+	public static void ListBookingInfoForUser(TicketOperations ops){//14
 		//
 		try {
 			String email;
@@ -765,7 +1260,7 @@ public class Ticketmaster{
 			email = in.readLine();//read the email
 
 			System.out.print("Here are all the bookings for this user\n");
-			esql.executeQueryAndPrintResult(String.format("SELECT M.title, S0.sdate, S0.sttime, T.tname, C.sno FROM Movies M, Shows S0, Theaters T, ShowSeats S1, CinemaSeats C, Plays P, Bookings B WHERE B.email = '%s' AND B.sid = S0.sid AND S0.mvid = M.mvid AND S0.sid = P.sid AND P.tid = T.tid AND B.bid = S1.bid AND S1.csid = C.csid", email));
+			ops.listBookingInfoForUser(email, RowWriter.console());
 		} catch (Exception e) {
 			System.out.println(e.getMessage() + "\n");
 		}
@@ -0,0 +1,79 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class bundles the existence checks of one operation into a single
+ * query.  Each check is a named subquery; run() sends
+ *
+ *   SELECT EXISTS (check1), EXISTS (check2), ...
+ *
+ * in one round trip and returns the names of the checks that found no row.
+ * The same set of checks always produces the same SQL text, so the
+ * statement is prepared once and reused from the statement cache.
+ *
+ */
+
+public class Validation{
+	private final Ticketmaster esql;
+	private final List<String> names = new ArrayList<String>();
+	private final List<Object> params = new ArrayList<Object>();
+	private final StringBuilder sql = new StringBuilder("SELECT ");
+
+	public Validation(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Adds a check that passes when the query returns at least one row.
+	 *
+	 * @param name reported by run() when the check fails
+	 * @param query the subquery, with ? placeholders
+	 * @param args the values bound to the placeholders of this subquery
+	 * @return this validation, for chaining
+	 */
+	public Validation exists(String name, String query, Object... args){
+		if (!names.isEmpty()){
+			sql.append(", ");
+		}//end if
+		sql.append("EXISTS (").append(query).append(')');
+		names.add(name);
+		for (Object arg : args){
+			params.add(arg);
+		}//end for
+		return this;
+	}
+
+	/**
+	 * Runs all checks in one query.
+	 *
+	 * @return the names of the failed checks, in the order they were added;
+	 *         empty when every check passed
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public List<String> run() throws SQLException {
+		List<String> failed = new ArrayList<String>();
+		if (names.isEmpty()){
+			return failed;
+		}//end if
+		List<String> result = esql.executeQueryAndReturnResult(sql.toString(), params.toArray()).get(0);
+		for (int i = 0; i < names.size(); ++i){
+			String passed = result.get(i);
+			if (!"t".equals(passed) && !"true".equals(passed)){
+				failed.add(names.get(i));
+			}//end if
+		}//end for
+		return failed;
+	}
+
+	public String getSql(){
+		return sql.toString();
+	}
+
+	/**
+	 * @return the values bound to the placeholders of getSql(), in order
+	 */
+	public Object[] getParams(){
+		return params.toArray();
+	}
+}//end Validation
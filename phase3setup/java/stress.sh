@@ -0,0 +1,12 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Example: ./stress.sh --buyers 1000 --duration 60 --sessions 4 --skew 1.2
+#          ./stress.sh --check-only   (only checks all bookings for seats sold twice)
+# Exits with 1 when a seat was sold twice.  More buyers than connections
+# wait for one; raise JAVA_OPTS="-Dticketmaster.pool.max=50" to go wider.
+java $JAVA_OPTS -cp lib/*:bin/ BookingStress $dbname $PGPORT $(logname) "$@"
@@ -9,6 +9,9 @@ DROP TABLE IF EXISTS CinemaSeats;
 DROP TABLE IF EXISTS Theaters;
 DROP TABLE IF EXISTS Cinemas;
 DROP TABLE IF EXISTS Cities;
+DROP SEQUENCE IF EXISTS bookings_bid_seq;
+DROP SEQUENCE IF EXISTS movies_mvid_seq;
+DROP SEQUENCE IF EXISTS shows_sid_seq;
 
 -- Entities
 
@@ -128,6 +131,14 @@ CREATE TABLE Plays (
 );
 
 
+-- Key sequences
+-- Each nextval reserves a block of 50 keys for one client (see KeyGenerator.java)
+
+CREATE SEQUENCE bookings_bid_seq INCREMENT BY 50;
+CREATE SEQUENCE movies_mvid_seq INCREMENT BY 50;
+CREATE SEQUENCE shows_sid_seq INCREMENT BY 50;
+
+
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
@@ -239,3 +250,10 @@ COPY Plays (
 )
 FROM 'Plays.csv'
 WITH DELIMITER ',';
+
+
+-- Start the key sequences after the loaded data
+
+SELECT setval('bookings_bid_seq', (SELECT COALESCE(MAX(bid), 0) + 1 FROM Bookings), false);
+SELECT setval('movies_mvid_seq', (SELECT COALESCE(MAX(mvid), 0) + 1 FROM Movies), false);
+SELECT setval('shows_sid_seq', (SELECT COALESCE(MAX(sid), 0) + 1 FROM Shows), false);
@@ -0,0 +1,33 @@
+-- Indexes on the columns the application filters and joins on.
+-- Applied by SchemaMigrator (java/migrate.sh); do not edit once applied,
+-- add a new V<n>__<name>.sql instead.
+
+-- Seat release by booking: UPDATE ShowSeats SET bid = NULL WHERE bid = ?.
+-- Most show seats are free, so only the booked ones are indexed.
+CREATE INDEX IF NOT EXISTS showseats_bid_idx ON ShowSeats (bid) WHERE bid IS NOT NULL;
+
+-- Status sweeps.  A plain index on a three-valued column is useless;
+-- partial indexes hold only the rows each sweep looks for, ordered for
+-- age-based expiry and keyset paging.
+CREATE INDEX IF NOT EXISTS bookings_pending_idx ON Bookings (bdatetime, bid) WHERE status = 'Pending';
+CREATE INDEX IF NOT EXISTS bookings_cancelled_idx ON Bookings (bid) WHERE status = 'Cancelled';
+
+-- Bookings of a user (option 14) and of a show (option 8).
+CREATE INDEX IF NOT EXISTS bookings_email_idx ON Bookings (email);
+CREATE INDEX IF NOT EXISTS bookings_sid_idx ON Bookings (sid);
+
+-- The primary key (sid, tid) covers lookups by show; this covers theaters.
+CREATE INDEX IF NOT EXISTS plays_tid_idx ON Plays (tid);
+
+-- Shows starting at a date and time (option 10) and date ranges (option 13).
+CREATE INDEX IF NOT EXISTS shows_sdate_sttime_idx ON Shows (sdate, sttime);
+
+-- Name lookups (options 8 and 13) and the theaters of a cinema.
+CREATE INDEX IF NOT EXISTS cinemas_cname_idx ON Cinemas (cname);
+CREATE INDEX IF NOT EXISTS theaters_cid_idx ON Theaters (cid);
+CREATE INDEX IF NOT EXISTS movies_title_idx ON Movies (title);
+
+-- Seat layout of a theater, in seat number order.
+CREATE INDEX IF NOT EXISTS cinemaseats_tid_sno_idx ON CinemaSeats (tid, sno);
+
+ANALYZE;
@@ -0,0 +1,5 @@
+-- Shows of a movie in a date range: the cold path of ShowtimeIndex
+-- (option 13) looks movies up by title and then their shows by date.
+CREATE INDEX IF NOT EXISTS shows_mvid_sdate_idx ON Shows (mvid, sdate, sttime);
+
+ANALYZE Shows;